@@ -14,36 +14,47 @@ public class AccelerometerWrapper
   public final static String TAG = "AccelerometerWrapper";
 
   //private int oid;
-  private String timestamp;
+  private long timestamp;
+  private String deviceTimestamp;
   private float x;
   private float y;
   private float z;
 
   /**
    * Constructs an object of type {@code AccelerometerWrapper}.
-   * @param timestamp The timestamp of adding the accelerometer 
-   * data to the accelerometer db.
+   * @param timestamp The time the sample was received, in ms since the
+   * epoch.
+   * @param deviceTimestamp The timestamp sent by the embedded system.
    * @param x The x axis accelerometer reading.
    * @param y The y axis accelerometer reading.
    * @param z The z axis accelerometer reading.
    */
-  public AccelerometerWrapper( String timestamp, float x, float y, float z)
+  public AccelerometerWrapper( long timestamp, String deviceTimestamp, float x, float y, float z)
   {
     Log.i(TAG, "Create a LocationWrapper.");
     this.timestamp = timestamp;
+    this.deviceTimestamp = deviceTimestamp;
     this.x = x;
     this.y = y;
     this.z = z;
   }
   
   /**
-   * @return The recorded-at timestamp of the location.
+   * @return The time the sample was received, in ms since the epoch.
    */
-  public String getTimestamp()
+  public long getTimestamp()
   {
     return timestamp;
   }
 
+  /**
+   * @return The timestamp as sent by the embedded system.
+   */
+  public String getDeviceTimestamp()
+  {
+    return deviceTimestamp;
+  }
+
   /**
    * @return The value of the x axis reading.
    */
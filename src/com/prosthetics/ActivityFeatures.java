@@ -0,0 +1,133 @@
+package com.prosthetics;
+
+/**
+ * Activity features of one window of accelerometer samples, as produced by
+ * {@link GaitFeatureExtractor} and stored in the activity table of the
+ * patient db.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see GaitFeatureExtractor
+ * @see PatientDB
+ */
+public class ActivityFeatures
+{
+  /** Not enough samples to tell. */
+  public static final int CLASS_UNKNOWN = 0;
+  /** Still, with the prosthesis upright. */
+  public static final int CLASS_UPRIGHT = 1;
+  /** Still, with the prosthesis tilted, e.g. sitting or lying. */
+  public static final int CLASS_SEATED = 2;
+  /** Moving without a steady gait. */
+  public static final int CLASS_ACTIVE = 3;
+  /** Walking. */
+  public static final int CLASS_WALKING = 4;
+
+  private final long timestamp;
+  private final long duration;
+  private final int count;
+  private final int steps;
+  private final double cadence;
+  private final double intensity;
+  private final int activityClass;
+  private final long uprightTime;
+  private final long seatedTime;
+
+  /**
+   * Constructs an object of type {@code ActivityFeatures}.
+   * @param timestamp The start of the window, in ms since the epoch.
+   * @param duration The length of the window in ms.
+   * @param count The number of samples in the window.
+   * @param steps The number of steps detected in the window.
+   * @param cadence The cadence in steps per minute, 0 if unknown.
+   * @param intensity The RMS of the dynamic acceleration, relative to gravity.
+   * @param activityClass One of the {@code CLASS_} constants.
+   * @param uprightTime The time in ms the prosthesis was upright.
+   * @param seatedTime The time in ms the prosthesis was tilted.
+   */
+  public ActivityFeatures(long timestamp, long duration, int count, int steps, double cadence,
+                          double intensity, int activityClass, long uprightTime, long seatedTime)
+  {
+    this.timestamp = timestamp;
+    this.duration = duration;
+    this.count = count;
+    this.steps = steps;
+    this.cadence = cadence;
+    this.intensity = intensity;
+    this.activityClass = activityClass;
+    this.uprightTime = uprightTime;
+    this.seatedTime = seatedTime;
+  }
+
+  /**
+   * @return The start of the window, in ms since the epoch.
+   */
+  public long getTimestamp()
+  {
+    return timestamp;
+  }
+
+  /**
+   * @return The length of the window in ms.
+   */
+  public long getDuration()
+  {
+    return duration;
+  }
+
+  /**
+   * @return The number of samples in the window.
+   */
+  public int getCount()
+  {
+    return count;
+  }
+
+  /**
+   * @return The number of steps detected in the window.
+   */
+  public int getSteps()
+  {
+    return steps;
+  }
+
+  /**
+   * @return The cadence in steps per minute, 0 if fewer than two steps
+   * were close enough to measure it.
+   */
+  public double getCadence()
+  {
+    return cadence;
+  }
+
+  /**
+   * @return The RMS of the dynamic acceleration, relative to gravity.
+   */
+  public double getIntensity()
+  {
+    return intensity;
+  }
+
+  /**
+   * @return One of the {@code CLASS_} constants.
+   */
+  public int getActivityClass()
+  {
+    return activityClass;
+  }
+
+  /**
+   * @return The time in ms the prosthesis was upright.
+   */
+  public long getUprightTime()
+  {
+    return uprightTime;
+  }
+
+  /**
+   * @return The time in ms the prosthesis was tilted.
+   */
+  public long getSeatedTime()
+  {
+    return seatedTime;
+  }
+}
@@ -0,0 +1,136 @@
+package com.prosthetics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Settings of the aggregation of the samples received from the embedded
+ * system, kept in the app's {@code SharedPreferences}. They are read when
+ * a {@link SampleWriter} starts.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see SampleWriter
+ * @see SampleAggregator
+ */
+public class AggregationSettings
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "AggregationSettings";
+
+  /** Default length in ms of an accelerometer summary window. */
+  public static final long DEFAULT_ACCELEROMETER_WINDOW = 1000;
+  /** Default length in ms of a temperature summary window. */
+  public static final long DEFAULT_TEMPERATURE_WINDOW = 60 * 1000;
+  /** Default length in ms of an activity window. */
+  public static final long DEFAULT_ACTIVITY_WINDOW = 10 * 1000;
+  /** Default axis, y, that is vertical when the patient stands. */
+  public static final int DEFAULT_UPRIGHT_AXIS = 1;
+
+  /** Name of the preferences file. */
+  private static final String PREFS_NAME = "aggregation";
+  private static final String KEY_ACCELEROMETER_WINDOW = "accelerometer_window";
+  private static final String KEY_TEMPERATURE_WINDOW = "temperature_window";
+  private static final String KEY_KEEP_RAW = "keep_raw";
+  private static final String KEY_ACTIVITY_WINDOW = "activity_window";
+  private static final String KEY_UPRIGHT_AXIS = "upright_axis";
+
+  private final SharedPreferences mPrefs;
+
+  /**
+   * Constructs an object of type {@code AggregationSettings}.
+   * @param context The {@code Context} used to open the preferences.
+   */
+  public AggregationSettings(Context context)
+  {
+    mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+  }
+
+  /**
+   * @return The length in ms of an accelerometer summary window.
+   */
+  public long getAccelerometerWindow()
+  {
+    return mPrefs.getLong(KEY_ACCELEROMETER_WINDOW, DEFAULT_ACCELEROMETER_WINDOW);
+  }
+
+  /**
+   * @return The length in ms of a temperature summary window.
+   */
+  public long getTemperatureWindow()
+  {
+    return mPrefs.getLong(KEY_TEMPERATURE_WINDOW, DEFAULT_TEMPERATURE_WINDOW);
+  }
+
+  /**
+   * Sets the length of the summary windows.
+   * @param accelerometer The length in ms of an accelerometer window.
+   * @param temperature The length in ms of a temperature window.
+   */
+  public void setWindows(long accelerometer, long temperature)
+  {
+    if (accelerometer <= 0 || temperature <= 0)
+      throw new IllegalArgumentException("Windows must be positive");
+    mPrefs.edit()
+          .putLong(KEY_ACCELEROMETER_WINDOW, accelerometer)
+          .putLong(KEY_TEMPERATURE_WINDOW, temperature)
+          .commit();
+  }
+
+  /**
+   * @return The length in ms of an activity window.
+   */
+  public long getActivityWindow()
+  {
+    return mPrefs.getLong(KEY_ACTIVITY_WINDOW, DEFAULT_ACTIVITY_WINDOW);
+  }
+
+  /**
+   * Sets the length of the activity windows.
+   * @param window The length in ms of an activity window.
+   */
+  public void setActivityWindow(long window)
+  {
+    if (window <= 0)
+      throw new IllegalArgumentException("Window must be positive");
+    mPrefs.edit().putLong(KEY_ACTIVITY_WINDOW, window).commit();
+  }
+
+  /**
+   * @return The accelerometer axis, 0 for x, 1 for y or 2 for z, that is
+   * vertical when the patient stands.
+   */
+  public int getUprightAxis()
+  {
+    return mPrefs.getInt(KEY_UPRIGHT_AXIS, DEFAULT_UPRIGHT_AXIS);
+  }
+
+  /**
+   * Sets the accelerometer axis that is vertical when the patient stands,
+   * which depends on how the embedded system is mounted.
+   * @param axis 0 for x, 1 for y or 2 for z.
+   */
+  public void setUprightAxis(int axis)
+  {
+    if (axis < 0 || axis > 2)
+      throw new IllegalArgumentException("Axis must be 0, 1 or 2");
+    mPrefs.edit().putInt(KEY_UPRIGHT_AXIS, axis).commit();
+  }
+
+  /**
+   * @return {@code true} if every raw sample is stored as well as the
+   * summaries.
+   */
+  public boolean isKeepRaw()
+  {
+    return mPrefs.getBoolean(KEY_KEEP_RAW, false);
+  }
+
+  /**
+   * Sets whether every raw sample is stored as well as the summaries.
+   * @param keepRaw {@code true} to store raw samples.
+   */
+  public void setKeepRaw(boolean keepRaw)
+  {
+    mPrefs.edit().putBoolean(KEY_KEEP_RAW, keepRaw).commit();
+  }
+}
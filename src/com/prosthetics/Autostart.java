@@ -9,11 +9,12 @@ import android.util.Log;
 
 /**
  * This class listens for the intent sent when the phone has been
- * booted. If the intent is received the {@code ProstheticsMonitoringActivity}
- * is started.
+ * booted. If the intent is received the {@code IngestService} and the
+ * {@code LocationGathererService} are started, without bringing up the UI.
  * @author aumar11
  * @version 1.0
- * @see ProstheticsMonitoringActivity
+ * @see IngestService
+ * @see LocationGathererService
  */
 public class Autostart extends BroadcastReceiver
 {
@@ -28,9 +29,9 @@ public class Autostart extends BroadcastReceiver
 	{
 	  if ("android.intent.action.BOOT_COMPLETED".equals(intent.getAction()))
 	  {  	
-		    Intent pushIntent = new Intent(context, ProstheticsMonitoringActivity.class); 
-		    pushIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-		    context.startActivity(pushIntent);
+		    if (D) Log.i(TAG, "Boot completed, starting ingest");
+		    context.startService(new Intent(context, IngestService.class));
+		    context.startService(new Intent(context, LocationGathererService.class));
 	  }
 	}
 
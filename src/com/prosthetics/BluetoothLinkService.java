@@ -2,23 +2,24 @@ package com.prosthetics;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.BufferedReader;
 import java.util.UUID;
-import java.util.Arrays;
-import java.util.List;
-import java.lang.Float;
-import java.lang.Integer;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -26,6 +27,18 @@ import android.util.Log;
  * connections with other devices. It has a thread that listens for
  * incoming connections, a thread for connecting with a device, and a
  * thread for performing data transmissions when connected.
+ * <p>
+ * Once connected, the embedded system is sent {@code R<sequence>\n}, asking
+ * it to replay every frame from {@code sequence} on, where {@code sequence}
+ * follows the newest sample committed to the db, so what was sent while the
+ * link was down, or lost before reaching the db, is backfilled. Frames received already are dropped by the
+ * {@link LinkStats} of the connection and replayed ones are placed in time
+ * by a {@link ReplayClock}.
+ * <p>
+ * When a connection is lost or cannot be made, the service tries again by
+ * itself, when its {@link ReconnectPolicy} says so, until {@link #stop()}.
+ * Attempts are set off by {@code ELAPSED_REALTIME_WAKEUP} alarms, so they
+ * happen with the screen off too, and the CPU is kept awake while one runs.
  * @author aumar and jbanford, based on the BluetoothChatService class from the
  * BluetoothChat example.
  * @version 1.0
@@ -43,6 +56,18 @@ public class BluetoothLinkService
   /** RFCOMM/SPP UUID. */
   private static final UUID MY_UUID_SECURE = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
 
+  /** Command asking the embedded system to replay from a sequence number. */
+  private static final String REPLAY_COMMAND = "R";
+
+  /** Action of the broadcast sent by the reconnection alarm. */
+  private static final String ACTION_RECONNECT = "com.prosthetics.action.RECONNECT";
+
+  /** Longest time in ms the CPU is kept awake for one connection attempt. */
+  private static final long CONNECT_WAKE_LOCK_TIMEOUT = 30 * 1000;
+
+  /** Minimum time in ms between two samples being shown by the UI Activity. */
+  private static final long DISPLAY_INTERVAL = 250;
+
   /** Bluetooth MAC address of partner embedded system. */
  // public static final String BIG_MAC = "00:12:06:12:82:84";
 
@@ -52,6 +77,19 @@ public class BluetoothLinkService
  // private AcceptThread mSecureAcceptThread;
   private ConnectThread mConnectThread;
   private ConnectedThread mConnectedThread;
+  private SampleWriter mSampleWriter;
+  /** Statistics of the current or last connection, see {@link #getLinkStats()}. */
+  private volatile LinkStats mLinkStats;
+  /** Places frames in time, across connections. */
+  private final ReplayClock mReplayClock;
+  private final ReconnectPolicy mReconnectPolicy = new ReconnectPolicy();
+  /** Device to reconnect to, {@code null} once stopped. */
+  private BluetoothDevice mReconnectDevice;
+  private final AlarmManager mAlarmManager;
+  private final PendingIntent mReconnectIntent;
+  private boolean mReconnectReceiverRegistered = false;
+  /** Held from a reconnection alarm until the attempt is over. */
+  private final PowerManager.WakeLock mWakeLock;
   private int mState;
   private Context mContext;
 
@@ -63,8 +101,8 @@ public class BluetoothLinkService
 
   /**
    * Constructor. Prepares a new BluetoothLinkService session.
-   * @param context  The UI Activity Context
-   * @param handler  A Handler to send messages back to the UI Activity
+   * @param context  The Context of the IngestService owning the link
+   * @param handler  A Handler to send messages back to the IngestService
    */
   public BluetoothLinkService(Context context, Handler handler)
   {
@@ -72,6 +110,13 @@ public class BluetoothLinkService
     mAdapter = BluetoothAdapter.getDefaultAdapter();
     mState = STATE_NONE;
     mHandler = handler;
+    mReplayClock = new ReplayClock(context);
+    mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    Intent intent = new Intent(ACTION_RECONNECT).setPackage(context.getPackageName());
+    mReconnectIntent = PendingIntent.getBroadcast(context, 0, intent, 0);
+    PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+    mWakeLock.setReferenceCounted(false);
   }
 
   /**
@@ -93,6 +138,23 @@ public class BluetoothLinkService
     return mState;
   }
 
+  /**
+   * @return The counters of the connection attempts made so far.
+   */
+  public ReconnectPolicy getReconnectPolicy()
+  {
+    return mReconnectPolicy;
+  }
+
+  /**
+   * @return The reliability statistics of the current connection, or of the
+   * last one if there is none, {@code null} if there was none at all.
+   */
+  public LinkStats getLinkStats()
+  {
+    return mLinkStats;
+  }
+
   /**
    * Start the chat service. Specifically start AcceptThread to begin a
    * session in listening (server) mode. Called by the Activity onResume() */
@@ -125,8 +187,18 @@ public class BluetoothLinkService
    */
   // public synchronized void connect(BluetoothDevice device, boolean secure)
   public synchronized void connect(BluetoothDevice device)
+  {
+    mReconnectDevice = device;
+    mAlarmManager.cancel(mReconnectIntent);
+    mReconnectPolicy.reset();
+    startConnect(device);
+  }
+
+  /** Starts the ConnectThread, either on request or to reconnect. */
+  private synchronized void startConnect(BluetoothDevice device)
   {
     if (D) Log.d(TAG, "connect to: " + device);
+    mReconnectPolicy.onAttempt();
 
     // Cancel any thread attempting to make a connection
     if (mState == STATE_CONNECTING)
@@ -151,6 +223,9 @@ public class BluetoothLinkService
   public synchronized void connected(BluetoothSocket socket, BluetoothDevice device, final String socketType)
   {
     if (D) Log.d(TAG, "connected, Socket Type:" + socketType);
+    mReconnectPolicy.onConnected(SystemClock.elapsedRealtime());
+    if (D) Log.i(TAG, "Reconnects: " + mReconnectPolicy);
+    releaseWakeLock();
 
     // Cancel the thread that completed the connection
     if (mConnectThread != null)
@@ -166,8 +241,15 @@ public class BluetoothLinkService
       mConnectedThread = null;
     }
 
+    // Start the thread storing samples, which outlives single connections
+    if (mSampleWriter == null)
+    {
+      mSampleWriter = new SampleWriter(mContext);
+      mSampleWriter.start();
+    }
+
     // Start the thread to manage the connection and perform transmissions
-    mConnectedThread = new ConnectedThread(socket, socketType);
+    mConnectedThread = new ConnectedThread(socket, socketType, mSampleWriter);
     mConnectedThread.start();
 
     // Send the name of the connected device back to the UI Activity
@@ -178,6 +260,14 @@ public class BluetoothLinkService
     mHandler.sendMessage(msg);
 
     setState(STATE_CONNECTED);
+
+    // Ask for whatever was sent while the link was down
+    long resumeSequence = mConnectedThread.getResumeSequence();
+    if (resumeSequence >= 0)
+    {
+      if (D) Log.i(TAG, "Requesting replay after " + resumeSequence);
+      write((REPLAY_COMMAND + (resumeSequence + 1) + "\n").getBytes());
+    }
   }
 
   /** Stop all threads */
@@ -197,6 +287,23 @@ public class BluetoothLinkService
       mConnectedThread = null;
     }
 
+    // Do not come back by ourselves
+    mReconnectDevice = null;
+    mAlarmManager.cancel(mReconnectIntent);
+    if (mReconnectReceiverRegistered)
+    {
+      mContext.unregisterReceiver(mReconnectReceiver);
+      mReconnectReceiverRegistered = false;
+    }
+    mReconnectPolicy.reset();
+    releaseWakeLock();
+
+    if (mSampleWriter != null)
+    {
+      mSampleWriter.requestCancelAndWait();
+      mSampleWriter = null;
+    }
+
     setState(STATE_NONE);
   }
 
@@ -220,10 +327,22 @@ public class BluetoothLinkService
   }
 
   /**
-   * Indicate that the connection attempt failed and notify the UI Activity.
+   * Indicate that the connection attempt failed, notify the UI Activity and
+   * schedule the next attempt.
+   * @param thread The thread whose attempt failed; nothing is retried if it
+   * was cancelled in the meantime.
    */
-  private void connectionFailed()
+  private void connectionFailed(ConnectThread thread)
   {
+    synchronized (this)
+    {
+      if (thread != mConnectThread)
+        return;
+      mConnectThread = null;
+      setState(STATE_NONE);
+      scheduleReconnect(mReconnectPolicy.onConnectFailed(SystemClock.elapsedRealtime()));
+    }
+
     // Send a failure message back to the Activity
     Message msg = mHandler.obtainMessage(ProstheticsMonitoringActivity.MESSAGE_TOAST);
     Bundle bundle = new Bundle();
@@ -233,10 +352,22 @@ public class BluetoothLinkService
   }
 
   /**
-   * Indicate that the connection was lost and notify the UI Activity.
+   * Indicate that the connection was lost, notify the UI Activity and
+   * schedule a reconnection.
+   * @param thread The thread whose connection was lost; nothing is retried
+   * if it was cancelled in the meantime.
    */
-  private void connectionLost()
+  private void connectionLost(ConnectedThread thread)
   {
+    synchronized (this)
+    {
+      if (thread != mConnectedThread)
+        return;
+      mConnectedThread = null;
+      setState(STATE_NONE);
+      scheduleReconnect(mReconnectPolicy.onConnectionLost(SystemClock.elapsedRealtime()));
+    }
+
     // Send a failure message back to the Activity
     Message msg = mHandler.obtainMessage(ProstheticsMonitoringActivity.MESSAGE_TOAST);
     Bundle bundle = new Bundle();
@@ -245,6 +376,52 @@ public class BluetoothLinkService
     mHandler.sendMessage(msg);
   }
 
+  /**
+   * Sets the alarm of the next attempt in {@code delay} ms, unless stopped,
+   * and lets the CPU sleep until then.
+   */
+  private synchronized void scheduleReconnect(long delay)
+  {
+    if (mReconnectDevice != null)
+    {
+      if (D) Log.i(TAG, "Reconnecting in " + delay + " ms");
+      if (!mReconnectReceiverRegistered)
+      {
+        mContext.registerReceiver(mReconnectReceiver, new IntentFilter(ACTION_RECONNECT));
+        mReconnectReceiverRegistered = true;
+      }
+      mAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                        SystemClock.elapsedRealtime() + delay, mReconnectIntent);
+    }
+    releaseWakeLock();
+  }
+
+  private void releaseWakeLock()
+  {
+    if (mWakeLock.isHeld())
+      mWakeLock.release();
+  }
+
+  /**
+   * Connects again to the last device when the alarm goes off, unless
+   * stopped or connected since. The alarm only keeps the CPU awake during
+   * {@code onReceive}, so the attempt takes its own wake lock.
+   */
+  private final BroadcastReceiver mReconnectReceiver = new BroadcastReceiver()
+  {
+    @Override
+    public void onReceive(Context context, Intent intent)
+    {
+      synchronized (BluetoothLinkService.this)
+      {
+        if (mReconnectDevice != null && mState == STATE_NONE)
+        {
+          mWakeLock.acquire(CONNECT_WAKE_LOCK_TIMEOUT);
+          startConnect(mReconnectDevice);
+        }
+      }
+    }
+  };
 
   /**
    * This thread runs while attempting to make an outgoing connection
@@ -299,7 +476,7 @@ public class BluetoothLinkService
         {
           Log.e(TAG, "unable to close() " + mSocketType + " socket during connection failure", e2);
         }
-        connectionFailed();
+        connectionFailed(this);
         return;
       }
 
@@ -335,11 +512,19 @@ public class BluetoothLinkService
     private final BluetoothSocket mmSocket;
     private final InputStream mmInStream;
     private final OutputStream mmOutStream;
+    private final SampleWriter mmWriter;
+    private final SampleParser mmParser = new SampleParser();
+    private final long mmResumeSequence;
 
-    public ConnectedThread(BluetoothSocket socket, String socketType)
+    public ConnectedThread(BluetoothSocket socket, String socketType, SampleWriter writer)
     {
       if (D) Log.d(TAG, "create ConnectedThread: " + socketType);
       mmSocket = socket;
+      mmWriter = writer;
+      // Frames up to the newest one committed are not wanted again
+      mmResumeSequence = writer.getCommittedSequence();
+      mmParser.getStats().resumeAfter(mmResumeSequence);
+      mReplayClock.startReplay(mmResumeSequence, writer.getCommittedSequenceTime());
       InputStream tmpIn = null;
       OutputStream tmpOut = null;
 
@@ -361,53 +546,60 @@ public class BluetoothLinkService
     public void run()
     {
       if (D) Log.i(TAG, "BEGIN mConnectedThread");
-      byte[] buffer = new byte[13];
-      int bytes = 0;
-      int nextChar = 0;
+      SampleParser parser = mmParser;
+      mLinkStats = parser.getStats();
+      long lastDisplayed = 0;
 
       // Keep listening to the InputStream while connected
       while (true)
       {
         try
         {
-          BufferedReader r = new BufferedReader(new InputStreamReader(mmInStream));
-          String line; 
+          if (parser.fill(mmInStream) < 0)
+            throw new IOException("End of stream reached");
 
-          while ((line = r.readLine()) != null)
+          while (parser.next())
           {
-            List<String> data = Arrays.asList(line.split(","));
-            if (data.size() == 7)
+            // Only primitives cross over to the writer, nothing is allocated
+            // here unless the embedded system sends a non-numeric timestamp
+            long sequence = parser.getSequence();
+            long timestamp = mReplayClock.getTime(sequence, System.currentTimeMillis());
+            long deviceTimestamp = parser.getTimestampValue();
+            mmWriter.submit(timestamp, deviceTimestamp, deviceTimestamp < 0 ? parser.getTimestamp() : null,
+                            sequence, parser.getX(), parser.getY(), parser.getZ(),
+                            parser.getTemperature1(), parser.getTemperature2());
+
+            // Send the latest sample to the UI Activity, at a rate it can display
+            long now = SystemClock.elapsedRealtime();
+            if (now - lastDisplayed >= DISPLAY_INTERVAL)
             {
-              if (D) Log.i(TAG, "Received " + line);
-              String timestamp = data.get(0);
-
-              int xaxis = Integer.parseInt(data.get(2));
-              int yaxis = Integer.parseInt(data.get(3));
-              int zaxis = Integer.parseInt(data.get(4));
-              int temperature1 = Integer.parseInt(data.get(5)); 
-              int temperature2 = Integer.parseInt(data.get(6)); 
-               
-              AccelerometerWrapper acc = new AccelerometerWrapper(timestamp, xaxis, yaxis, zaxis);
-              TemperatureWrapper tem = new TemperatureWrapper(timestamp, temperature1, temperature2);
-              PatientDB patDB = new PatientDB(mContext);
-              patDB.addAccelerometerSample(acc);
-              patDB.addTemperatureSample(tem);
-
-              mHandler.obtainMessage(ProstheticsMonitoringActivity.MESSAGE_READ, bytes, -1, line).sendToTarget();
+              lastDisplayed = now;
+              mHandler.obtainMessage(ProstheticsMonitoringActivity.MESSAGE_READ, parser.getLineLength(), -1, parser.getLine()).sendToTarget();
             }
           }
-          // Send the obtained bytes to the UI Activity
-         
         }
         catch (IOException e)
         {
           Log.i(TAG, "disconnected", e);
-          connectionLost();
+          if (D) Log.i(TAG, "Link: " + parser.getStats() + ", loss rate " + parser.getStats().getLossRate());
+          // Make sure everything received so far is on disk
+          mmWriter.flush();
+          mReplayClock.save();
+          connectionLost(this);
           break;
         }
       }
     }
 
+    /**
+     * @return The sequence number after which a replay is requested, or -1
+     * if nothing was received before.
+     */
+    public long getResumeSequence()
+    {
+      return mmResumeSequence;
+    }
+
     /**
      * Write to the connected OutStream.
      * @param buffer  The bytes to write
@@ -0,0 +1,296 @@
+package com.prosthetics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import android.database.Cursor;
+
+/**
+ * HTTP request body holding the rows of a {@code Cursor} in the
+ * {@link ColumnarFormat} layout. Text columns whose values are all integers,
+ * such as device timestamps, are delta encoded like integer columns.
+ * <p>
+ * The rows are written into a buffer when the entity is constructed, so the
+ * body is sent with a {@code Content-Length} rather than chunked. Like
+ * {@link CursorJsonEntity}, no further rows are added once the body has
+ * reached its size cap, which bounds the buffer, so a batch may end before
+ * the cursor does.
+ * <p>
+ * The first column of the cursor must hold the row id.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see ColumnarFormat
+ * @see SyncService
+ */
+public class ColumnarEntity extends AbstractHttpEntity implements UploadBatch
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "ColumnarEntity";
+
+  /** Initial size of the buffer holding the body. */
+  private static final int BUFFER_SIZE = 8192;
+  /** Most bytes the row count can take in the header. */
+  private static final int ROW_COUNT_SIZE = 5;
+
+  private final Cursor mCursor;
+  private final int[] mTypes;
+  private final long mMaxSize;
+  private final byte[] mContent;
+  private long mLastId = -1;
+  private int mRowsWritten = 0;
+
+  /**
+   * Constructs an object of type {@code ColumnarEntity} and writes the rows
+   * of {@code cursor} into it. The cursor is not closed by the entity.
+   * @param cursor The rows to send, with the row id in the first column.
+   * @param types The type of each column of {@code cursor}, as in
+   * {@link CursorJsonEntity}.
+   * @param maxSize The number of bytes after which no further rows are
+   * written. The last row may overshoot it.
+   */
+  public ColumnarEntity(Cursor cursor, int[] types, long maxSize)
+  {
+    mCursor = cursor;
+    mTypes = types;
+    mMaxSize = maxSize;
+    setContentType(ColumnarFormat.CONTENT_TYPE);
+    ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+    try
+    {
+      write(body);
+    }
+    catch (IOException e)
+    {
+      // Only the cursor can fail in memory, and it throws unchecked exceptions
+      throw new RuntimeException(e);
+    }
+    mContent = body.toByteArray();
+  }
+
+  /**
+   * @return The id of the last row written, or -1 if nothing was written.
+   */
+  public long getLastId()
+  {
+    return mLastId;
+  }
+
+  /**
+   * @return The number of rows in the body.
+   */
+  public int getRowsWritten()
+  {
+    return mRowsWritten;
+  }
+
+  @Override
+  public boolean isRepeatable()
+  {
+    return true;
+  }
+
+  @Override
+  public long getContentLength()
+  {
+    return mContent.length;
+  }
+
+  @Override
+  public boolean isStreaming()
+  {
+    return false;
+  }
+
+  @Override
+  public InputStream getContent()
+  {
+    return new ByteArrayInputStream(mContent);
+  }
+
+  @Override
+  public void writeTo(OutputStream outstream) throws IOException
+  {
+    outstream.write(mContent);
+    outstream.flush();
+  }
+
+  /**
+   * Writes the rows of the cursor that fit in the size cap, one column at a
+   * time.
+   */
+  private void write(OutputStream out) throws IOException
+  {
+    String[] names = mCursor.getColumnNames();
+    int[] encodings = new int[names.length];
+    byte[][] nameBytes = new byte[names.length][];
+    long headerSize = ColumnarFormat.MAGIC.length + 1 + ROW_COUNT_SIZE
+                      + ColumnarFormat.varintSize(names.length);
+    for (int c = 0; c < names.length; c++)
+    {
+      encodings[c] = chooseEncoding(c);
+      nameBytes[c] = names[c].getBytes("UTF-8");
+      headerSize += ColumnarFormat.varintSize(nameBytes[c].length) + nameBytes[c].length + 1;
+    }
+    int rows = countRows(encodings, headerSize);
+
+    out.write(ColumnarFormat.MAGIC);
+    out.write(ColumnarFormat.VERSION);
+    ColumnarFormat.writeVarint(out, rows);
+    ColumnarFormat.writeVarint(out, names.length);
+    for (int c = 0; c < names.length; c++)
+    {
+      ColumnarFormat.writeVarint(out, nameBytes[c].length);
+      out.write(nameBytes[c]);
+      out.write(encodings[c]);
+    }
+    for (int c = 0; c < names.length; c++)
+      writeColumn(out, c, rows, encodings[c]);
+    out.flush();
+
+    mRowsWritten = rows;
+    mLastId = rows > 0 && mCursor.moveToPosition(rows - 1) ? mCursor.getLong(0) : -1;
+  }
+
+  /**
+   * Picks the encoding of column {@code c}, including the null flag, by
+   * looking at all of its values.
+   */
+  private int chooseEncoding(int c)
+  {
+    boolean nulls = false;
+    boolean integers = true;
+    mCursor.moveToPosition(-1);
+    while (mCursor.moveToNext())
+    {
+      if (mCursor.isNull(c))
+        nulls = true;
+      else if (mTypes[c] == CursorJsonEntity.TYPE_TEXT && integers)
+        integers = isInteger(mCursor.getString(c));
+    }
+
+    int encoding;
+    if (mTypes[c] == CursorJsonEntity.TYPE_REAL)
+      encoding = ColumnarFormat.ENCODING_DOUBLE;
+    else if (mTypes[c] == CursorJsonEntity.TYPE_TEXT && !integers)
+      encoding = ColumnarFormat.ENCODING_UTF8;
+    else
+      encoding = ColumnarFormat.ENCODING_DELTA_VARINT;
+    return nulls ? encoding | ColumnarFormat.FLAG_NULLS : encoding;
+  }
+
+  /**
+   * Counts the rows, from the first one, that are written before the body
+   * reaches the size cap, adding up the bytes each one takes in every
+   * column.
+   * @param encodings The encoding of each column.
+   * @param headerSize The size of the header, at most.
+   */
+  private int countRows(int[] encodings, long headerSize) throws IOException
+  {
+    long[] previous = new long[encodings.length];
+    long size = headerSize;
+    int rows = 0;
+    mCursor.moveToPosition(-1);
+    while (size < mMaxSize && mCursor.moveToNext())
+    {
+      for (int c = 0; c < encodings.length; c++)
+      {
+        // One more byte of null bitmap every eight rows
+        if ((encodings[c] & ColumnarFormat.FLAG_NULLS) != 0 && (rows & 7) == 0)
+          size++;
+        if (mCursor.isNull(c))
+          continue;
+        switch (encodings[c] & ~ColumnarFormat.FLAG_NULLS)
+        {
+          case ColumnarFormat.ENCODING_DELTA_VARINT:
+            long value = getInteger(c);
+            size += ColumnarFormat.varintSize(ColumnarFormat.zigzag(value - previous[c]));
+            previous[c] = value;
+            break;
+          case ColumnarFormat.ENCODING_DOUBLE:
+            size += 8;
+            break;
+          default:
+            int length = mCursor.getString(c).getBytes("UTF-8").length;
+            size += ColumnarFormat.varintSize(length) + length;
+        }
+      }
+      rows++;
+    }
+    return rows;
+  }
+
+  /**
+   * Writes the null bitmap, if any, and the values of column {@code c} of
+   * the first {@code rows} rows.
+   */
+  private void writeColumn(OutputStream out, int c, int rows, int encoding) throws IOException
+  {
+    if ((encoding & ColumnarFormat.FLAG_NULLS) != 0)
+    {
+      byte[] nulls = new byte[(rows + 7) / 8];
+      mCursor.moveToPosition(-1);
+      for (int r = 0; r < rows && mCursor.moveToNext(); r++)
+        if (mCursor.isNull(c))
+          nulls[r >> 3] |= 1 << (r & 7);
+      out.write(nulls);
+    }
+
+    encoding &= ~ColumnarFormat.FLAG_NULLS;
+    long previous = 0;
+    mCursor.moveToPosition(-1);
+    for (int r = 0; r < rows && mCursor.moveToNext(); r++)
+    {
+      if (mCursor.isNull(c))
+        continue;
+      switch (encoding)
+      {
+        case ColumnarFormat.ENCODING_DELTA_VARINT:
+          long value = getInteger(c);
+          ColumnarFormat.writeVarint(out, ColumnarFormat.zigzag(value - previous));
+          previous = value;
+          break;
+        case ColumnarFormat.ENCODING_DOUBLE:
+          long bits = Double.doubleToLongBits(mCursor.getDouble(c));
+          for (int shift = 56; shift >= 0; shift -= 8)
+            out.write((int) (bits >>> shift));
+          break;
+        default:
+          byte[] bytes = mCursor.getString(c).getBytes("UTF-8");
+          ColumnarFormat.writeVarint(out, bytes.length);
+          out.write(bytes);
+      }
+    }
+  }
+
+  /** Returns the value of the delta encoded column {@code c} of the current row. */
+  private long getInteger(int c)
+  {
+    return mTypes[c] == CursorJsonEntity.TYPE_TEXT
+           ? Long.parseLong(mCursor.getString(c))
+           : mCursor.getLong(c);
+  }
+
+  /**
+   * Tells whether {@code s} is a decimal integer that fits in a long and
+   * reads back unchanged, i.e. without leading zeros.
+   */
+  private static boolean isInteger(String s)
+  {
+    int start = s.startsWith("-") ? 1 : 0;
+    int length = s.length() - start;
+    if (length == 0 || length > 18)
+      return false;
+    if (s.charAt(start) == '0' && (length > 1 || start > 0))
+      return false;
+    for (int i = start; i < s.length(); i++)
+      if (s.charAt(i) < '0' || s.charAt(i) > '9')
+        return false;
+    return true;
+  }
+}
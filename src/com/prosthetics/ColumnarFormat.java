@@ -0,0 +1,215 @@
+package com.prosthetics;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compact binary layout for uploading sensor tables, used by
+ * {@link ColumnarEntity} as an alternative to one JSON object per row. A
+ * body is laid out as:
+ * <pre>
+ * magic      'P' 'M' 'C'
+ * version    1 byte, {@link #VERSION}
+ * rows       varint
+ * columns    varint
+ * per column: name (varint length + UTF-8 bytes), encoding (1 byte)
+ * per column: [null bitmap] values of every row
+ * </pre>
+ * Integer columns are stored as the zigzag varint of the difference to the
+ * previous row, so ids, timestamps and slowly moving sensor axes take one or
+ * two bytes per value. Text columns are stored as varint length + UTF-8
+ * bytes, real columns as 8 byte IEEE doubles. If
+ * {@link #FLAG_NULLS} is set in the encoding byte, the values are preceded by
+ * a bitmap of {@code (rows + 7) / 8} bytes, one bit per row, and null rows
+ * have no value.
+ * <p>
+ * The decoder is the reference for the server side implementation.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see ColumnarEntity
+ */
+public class ColumnarFormat
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "ColumnarFormat";
+
+  /** Content type of a columnar body. */
+  public static final String CONTENT_TYPE = "application/x-prosthetics-columnar";
+  /** First bytes of a columnar body. */
+  public static final byte[] MAGIC = new byte[] { 'P', 'M', 'C' };
+  /** Version of the layout written by this class. */
+  public static final int VERSION = 1;
+
+  /** Delta and zigzag varint encoded integers. */
+  public static final int ENCODING_DELTA_VARINT = 0;
+  /** Length prefixed UTF-8 strings. */
+  public static final int ENCODING_UTF8 = 1;
+  /** 8 byte IEEE 754 doubles, big endian. */
+  public static final int ENCODING_DOUBLE = 2;
+  /** Set in the encoding byte when the column has a null bitmap. */
+  public static final int FLAG_NULLS = 0x80;
+
+  private ColumnarFormat() {}
+
+  /**
+   * Writes {@code value} as an unsigned LEB128 varint.
+   * @throws IOException If writing to {@code out} fails.
+   */
+  public static void writeVarint(OutputStream out, long value) throws IOException
+  {
+    while ((value & ~0x7fL) != 0)
+    {
+      out.write((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  /**
+   * @return The number of bytes {@link #writeVarint(OutputStream, long)}
+   * takes for {@code value}.
+   */
+  public static int varintSize(long value)
+  {
+    int size = 1;
+    while ((value & ~0x7fL) != 0)
+    {
+      size++;
+      value >>>= 7;
+    }
+    return size;
+  }
+
+  /**
+   * Reads an unsigned LEB128 varint.
+   * @throws IOException If reading fails or the stream ends early.
+   */
+  public static long readVarint(InputStream in) throws IOException
+  {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7)
+    {
+      int b = readByte(in);
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  /** Maps signed values to unsigned ones so small magnitudes stay small. */
+  public static long zigzag(long value)
+  {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  /** Reverses {@link #zigzag(long)}. */
+  public static long unzigzag(long value)
+  {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /** Reads one byte, failing at the end of the stream. */
+  private static int readByte(InputStream in) throws IOException
+  {
+    int b = in.read();
+    if (b < 0)
+      throw new EOFException("Truncated columnar body");
+    return b;
+  }
+
+  /** Reads exactly {@code length} bytes. */
+  private static byte[] readBytes(InputStream in, int length) throws IOException
+  {
+    byte[] bytes = new byte[length];
+    int read = 0;
+    while (read < length)
+    {
+      int n = in.read(bytes, read, length - read);
+      if (n < 0)
+        throw new EOFException("Truncated columnar body");
+      read += n;
+    }
+    return bytes;
+  }
+
+  /**
+   * Decodes a columnar body.
+   * @param in The stream holding the body.
+   * @return The decoded table.
+   * @throws IOException If the body is malformed or of an unknown version.
+   */
+  public static Table decode(InputStream in) throws IOException
+  {
+    for (int i = 0; i < MAGIC.length; i++)
+      if (readByte(in) != MAGIC[i])
+        throw new IOException("Not a columnar body");
+    int version = readByte(in);
+    if (version != VERSION)
+      throw new IOException("Unsupported columnar version " + version);
+
+    int rows = (int) readVarint(in);
+    int columns = (int) readVarint(in);
+    Table table = new Table(rows, columns);
+    for (int c = 0; c < columns; c++)
+    {
+      table.names[c] = new String(readBytes(in, (int) readVarint(in)), "UTF-8");
+      table.encodings[c] = readByte(in);
+    }
+
+    for (int c = 0; c < columns; c++)
+    {
+      int encoding = table.encodings[c] & ~FLAG_NULLS;
+      byte[] nulls = (table.encodings[c] & FLAG_NULLS) != 0
+                   ? readBytes(in, (rows + 7) / 8) : null;
+      long previous = 0;
+      Object[] values = table.values[c];
+      for (int r = 0; r < rows; r++)
+      {
+        if (nulls != null && (nulls[r >> 3] & (1 << (r & 7))) != 0)
+          continue;
+        switch (encoding)
+        {
+          case ENCODING_DELTA_VARINT:
+            previous += unzigzag(readVarint(in));
+            values[r] = Long.valueOf(previous);
+            break;
+          case ENCODING_UTF8:
+            values[r] = new String(readBytes(in, (int) readVarint(in)), "UTF-8");
+            break;
+          case ENCODING_DOUBLE:
+            long bits = 0;
+            for (int i = 0; i < 8; i++)
+              bits = (bits << 8) | readByte(in);
+            values[r] = Double.valueOf(Double.longBitsToDouble(bits));
+            break;
+          default:
+            throw new IOException("Unknown encoding " + encoding + " of column " + table.names[c]);
+        }
+      }
+    }
+    return table;
+  }
+
+  /**
+   * A decoded table. Values are {@code Long}, {@code String}, {@code Double}
+   * or {@code null}, indexed by column and then by row.
+   */
+  public static class Table
+  {
+    public final int rows;
+    public final String[] names;
+    public final int[] encodings;
+    public final Object[][] values;
+
+    Table(int rows, int columns)
+    {
+      this.rows = rows;
+      names = new String[columns];
+      encodings = new int[columns];
+      values = new Object[columns][rows];
+    }
+  }
+}
@@ -0,0 +1,266 @@
+package com.prosthetics;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import android.database.Cursor;
+
+/**
+ * HTTP request body holding the rows of a {@code Cursor} as a JSON array.
+ * Every row is written as {@code {"key": {"column": value, ...}}}, matching
+ * what the server expects from {@link SyncService}.
+ * <p>
+ * The rows are written into a buffer when the entity is constructed, so the
+ * body is sent with a {@code Content-Length} rather than chunked. No further
+ * rows are written once the body has reached its size cap, which bounds the
+ * buffer, so a batch may end before the cursor does.
+ * <p>
+ * The first column of the cursor must hold the row id; the id of the last
+ * row written is available from {@link #getLastId()}.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see SyncService
+ */
+public class CursorJsonEntity extends AbstractHttpEntity implements UploadBatch
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "CursorJsonEntity";
+
+  /** Column holding an integer. */
+  public static final int TYPE_INTEGER = 1;
+  /** Column holding a floating point number. */
+  public static final int TYPE_REAL = 2;
+  /** Column holding text. */
+  public static final int TYPE_TEXT = 3;
+
+  /** Initial size of the buffer holding the body. */
+  private static final int BUFFER_SIZE = 8192;
+
+  private final Cursor mCursor;
+  private final String mKey;
+  private final int[] mTypes;
+  private final long mMaxSize;
+  private final byte[] mContent;
+  private long mLastId = -1;
+  private int mRowsWritten = 0;
+
+  /**
+   * Constructs an object of type {@code CursorJsonEntity} and writes the
+   * rows of {@code cursor} into it. The cursor is not closed by the entity.
+   * @param cursor The rows to send, with the row id in the first column.
+   * @param key The name of the object each row is wrapped in.
+   * @param types The type of each column of {@code cursor}, one of
+   * {@link #TYPE_INTEGER}, {@link #TYPE_REAL} or {@link #TYPE_TEXT}.
+   * @param maxSize The number of characters after which no further rows
+   * are written. The last row may overshoot it.
+   */
+  public CursorJsonEntity(Cursor cursor, String key, int[] types, long maxSize)
+  {
+    mCursor = cursor;
+    mKey = key;
+    mTypes = types;
+    mMaxSize = maxSize;
+    setContentType("application/json; charset=UTF-8");
+    ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+    try
+    {
+      write(body);
+    }
+    catch (IOException e)
+    {
+      // Only the cursor can fail in memory, and it throws unchecked exceptions
+      throw new RuntimeException(e);
+    }
+    mContent = body.toByteArray();
+  }
+
+  /**
+   * @return The id of the last row written, or -1 if nothing was written.
+   */
+  public long getLastId()
+  {
+    return mLastId;
+  }
+
+  /**
+   * @return The number of rows in the body.
+   */
+  public int getRowsWritten()
+  {
+    return mRowsWritten;
+  }
+
+  @Override
+  public boolean isRepeatable()
+  {
+    return true;
+  }
+
+  @Override
+  public long getContentLength()
+  {
+    return mContent.length;
+  }
+
+  @Override
+  public boolean isStreaming()
+  {
+    return false;
+  }
+
+  @Override
+  public InputStream getContent()
+  {
+    return new ByteArrayInputStream(mContent);
+  }
+
+  @Override
+  public void writeTo(OutputStream outstream) throws IOException
+  {
+    outstream.write(mContent);
+    outstream.flush();
+  }
+
+  /**
+   * Writes the rows of the cursor as JSON, starting from the first one and
+   * stopping at the end of the cursor or at the size cap.
+   */
+  private void write(OutputStream outstream) throws IOException
+  {
+    CountingWriter out = new CountingWriter(
+        new BufferedWriter(new OutputStreamWriter(outstream, "UTF-8"), BUFFER_SIZE));
+    String[] columns = mCursor.getColumnNames();
+    mLastId = -1;
+    mRowsWritten = 0;
+    out.write('[');
+    mCursor.moveToPosition(-1);
+    boolean first = true;
+    while (out.count < mMaxSize && mCursor.moveToNext())
+    {
+      if (!first)
+        out.write(',');
+      first = false;
+      out.write("{\"");
+      out.write(mKey);
+      out.write("\":{");
+      for (int i = 0; i < columns.length; i++)
+      {
+        if (i > 0)
+          out.write(',');
+        out.write('"');
+        out.write(columns[i]);
+        out.write("\":");
+        writeValue(out, i);
+      }
+      out.write("}}");
+      mLastId = mCursor.getLong(0);
+      mRowsWritten++;
+    }
+    out.write(']');
+    out.flush();
+  }
+
+  /** Writes the value of column {@code i} of the current row. */
+  private void writeValue(Writer out, int i) throws IOException
+  {
+    if (mCursor.isNull(i))
+    {
+      out.write("null");
+      return;
+    }
+    switch (mTypes[i])
+    {
+      case TYPE_INTEGER:
+        out.write(Long.toString(mCursor.getLong(i)));
+        break;
+      case TYPE_REAL:
+        double d = mCursor.getDouble(i);
+        if (Double.isNaN(d) || Double.isInfinite(d))
+          out.write("null");
+        else
+          out.write(Double.toString(d));
+        break;
+      default:
+        writeString(out, mCursor.getString(i));
+    }
+  }
+
+  /** Writes {@code s} as a quoted and escaped JSON string. */
+  private static void writeString(Writer out, String s) throws IOException
+  {
+    out.write('"');
+    for (int i = 0, n = s.length(); i < n; i++)
+    {
+      char c = s.charAt(i);
+      switch (c)
+      {
+        case '"':
+          out.write("\\\"");
+          break;
+        case '\\':
+          out.write("\\\\");
+          break;
+        case '\n':
+          out.write("\\n");
+          break;
+        case '\r':
+          out.write("\\r");
+          break;
+        case '\t':
+          out.write("\\t");
+          break;
+        default:
+          if (c < 0x20)
+          {
+            out.write("\\u00");
+            out.write(Character.forDigit(c >> 4, 16));
+            out.write(Character.forDigit(c & 0xf, 16));
+          }
+          else
+            out.write(c);
+      }
+    }
+    out.write('"');
+  }
+
+  /** Writer keeping track of the number of characters written through it. */
+  private static class CountingWriter extends FilterWriter
+  {
+    long count = 0;
+
+    CountingWriter(Writer out)
+    {
+      super(out);
+    }
+
+    @Override
+    public void write(int c) throws IOException
+    {
+      out.write(c);
+      count++;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException
+    {
+      out.write(cbuf, off, len);
+      count += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException
+    {
+      out.write(str, off, len);
+      count += len;
+    }
+  }
+}
@@ -0,0 +1,258 @@
+package com.prosthetics;
+
+import java.io.File;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Maintenance operations shared by {@link PatientDB} and {@link LocationsDB}:
+ * deleting old rows in small chunks, and giving the freed pages back to the
+ * file system with incremental vacuum. Callers hold the lock of the db
+ * object owning {@code db}, so each call should be short.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see RetentionManager
+ */
+public class DBMaintenance
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "DBMaintenance";
+  private static final boolean D = true;
+
+  /** Value of {@code PRAGMA auto_vacuum} for incremental vacuum. */
+  private static final long AUTO_VACUUM_INCREMENTAL = 2;
+  /**
+   * Turns on incremental vacuum for a db without tables yet; later only
+   * {@link #convertToIncremental(SQLiteDatabase)} can.
+   */
+  public static final String AUTO_VACUUM_SQL = "pragma auto_vacuum = incremental";
+  /** Number of pages freed per incremental vacuum step. */
+  private static final int VACUUM_STEP_PAGES = 64;
+
+  private DBMaintenance() {}
+
+  /**
+   * Deletes the rows of {@code table} with the lowest ids, up to and
+   * including {@code id}, but at most {@code limit} ids at a time.
+   * @param db The db holding {@code table}.
+   * @param table The name of a table with an integer {@code id} column.
+   * @param id The highest id that may be deleted.
+   * @param limit The maximum number of ids covered by one call.
+   * @return The number of rows deleted, 0 once nothing is left up to {@code id}.
+   */
+  public static int deleteUpTo(SQLiteDatabase db, String table, long id, int limit)
+  {
+    long minId = queryLong(db, "select min(id) from " + table);
+    if (minId == 0 || minId > id)
+      return 0;
+    long upper = Math.min(id, minId + limit - 1);
+    return db.delete(table, "id <= ?", new String[] { Long.toString(upper) });
+  }
+
+  /**
+   * @return The highest id of {@code table}, or 0 if it is empty.
+   */
+  public static long queryMaxId(SQLiteDatabase db, String table)
+  {
+    return queryLong(db, "select max(id) from " + table);
+  }
+
+  /**
+   * @return {@code true} if {@code db} uses incremental auto vacuum.
+   */
+  public static boolean isIncremental(SQLiteDatabase db)
+  {
+    return queryLong(db, "pragma auto_vacuum") == AUTO_VACUUM_INCREMENTAL;
+  }
+
+  /**
+   * Switches {@code db} to incremental auto vacuum, which rebuilds the
+   * whole file. Only cheap on a db holding next to nothing, so callers
+   * either do it right after the db was created or make sure nothing is
+   * waiting to write in the meantime. Must not be called inside a
+   * transaction.
+   * @param db The db to convert.
+   * @return The number of pages freed.
+   */
+  public static long convertToIncremental(SQLiteDatabase db)
+  {
+    if (D) Log.i(TAG, "Switching " + db.getPath() + " to incremental vacuum");
+    long before = queryLong(db, "pragma freelist_count");
+    db.execSQL(AUTO_VACUUM_SQL);
+    db.execSQL("vacuum");
+    return before;
+  }
+
+  /**
+   * Frees unused pages of {@code db} in small steps until there are none
+   * left or {@code deadline} has passed. A db without incremental auto
+   * vacuum is only converted first if {@code mayConvert}, and left alone
+   * otherwise.
+   * @param db The db to compact.
+   * @param deadline The {@code SystemClock.elapsedRealtime()} by which to stop.
+   * @param mayConvert {@code true} if the db may be rebuilt by
+   * {@link #convertToIncremental(SQLiteDatabase)}.
+   * @return The number of pages freed.
+   */
+  public static long compact(SQLiteDatabase db, long deadline, boolean mayConvert)
+  {
+    if (!isIncremental(db))
+    {
+      if (mayConvert)
+        return convertToIncremental(db);
+      if (D) Log.i(TAG, "Not compacting " + db.getPath() + " until it can be converted");
+      return 0;
+    }
+
+    long freed = 0;
+    long free = queryLong(db, "pragma freelist_count");
+    while (free > 0 && SystemClock.elapsedRealtime() < deadline)
+    {
+      Cursor c = db.rawQuery("pragma incremental_vacuum(" + VACUUM_STEP_PAGES + ")", null);
+      try
+      {
+        // Each row of the result is one freed page, stepping through runs the vacuum
+        c.getCount();
+      }
+      finally
+      {
+        c.close();
+      }
+      long left = queryLong(db, "pragma freelist_count");
+      freed += free - left;
+      if (left == free)
+        break;
+      free = left;
+    }
+    return freed;
+  }
+
+  /**
+   * Returns an SQL expression converting the legacy text timestamps in
+   * {@code column} to ms since the epoch. {@code yyyy-MM-dd HH:mm:ss} dates
+   * are read as local time. Plain integers are only kept if their unit can
+   * be told from their size: from {@code 10^12} on they are taken for ms
+   * since the epoch (2001 on), and from {@code 10^9} to {@code 10^10} for
+   * seconds (2001 to 2286), which are multiplied by 1000. Any other integer,
+   * e.g. a counter of the embedded system, and anything else becomes
+   * {@code null} rather than a value in another unit.
+   * @param column The name of the timestamp column.
+   * @return The SQL expression.
+   */
+  public static String epochMillisSql(String column)
+  {
+    String number = "cast(" + column + " as integer)";
+    return "case when " + column + " <> '' and " + column + " not glob '*[^0-9]*'"
+         + " then case when " + number + " >= 1000000000000 then " + number
+         + " when " + number + " >= 1000000000 and " + number + " < 10000000000 then " + number + " * 1000"
+         + " else null end"
+         + " else cast(strftime('%s', " + column + ", 'utc') as integer) * 1000 end";
+  }
+
+  /**
+   * Tells whether {@code db} holds a table named {@code table}.
+   */
+  public static boolean tableExists(SQLiteDatabase db, String table)
+  {
+    SQLiteStatement statement = db.compileStatement(
+        "select count(*) from sqlite_master where type = 'table' and name = ?");
+    try
+    {
+      statement.bindString(1, table);
+      return statement.simpleQueryForLong() > 0;
+    }
+    finally
+    {
+      statement.close();
+    }
+  }
+
+  /**
+   * Moves the entries of {@code source} with the lowest ids, at most
+   * {@code limit} of them, to {@code target} in one transaction, keeping
+   * their ids. Drops {@code source} once it is empty. Since every batch
+   * removes what it copied, the move can be interrupted and resumed at any
+   * point.
+   * @param db The db holding both tables.
+   * @param source The table to empty.
+   * @param target The table to fill.
+   * @param columns The comma separated columns of {@code target} to fill.
+   * @param select The comma separated expressions over {@code source}
+   * giving the values of {@code columns}.
+   * @param limit The maximum number of entries moved.
+   * @return The number of entries moved, 0 once {@code source} is gone.
+   */
+  public static int moveBatch(SQLiteDatabase db, String source, String target,
+                              String columns, String select, int limit)
+  {
+    long upper = queryLong(db, "select max(id) from (select id from " + source
+                             + " order by id limit " + limit + ")");
+    if (upper == 0)
+    {
+      if (D) Log.i(TAG, "Finished moving " + source + " to " + target);
+      db.execSQL("drop table " + source);
+      return 0;
+    }
+
+    int moved;
+    db.beginTransaction();
+    try
+    {
+      SQLiteStatement copy = db.compileStatement("insert into " + target + " (" + columns
+                                               + ") select " + select + " from " + source
+                                               + " where id <= ?");
+      try
+      {
+        copy.bindLong(1, upper);
+        copy.execute();
+      }
+      finally
+      {
+        copy.close();
+      }
+      moved = db.delete(source, "id <= ?", new String[] { Long.toString(upper) });
+      db.setTransactionSuccessful();
+    }
+    finally
+    {
+      db.endTransaction();
+    }
+    return moved;
+  }
+
+  /**
+   * Carries the autoincrement counter of {@code legacy} over to the freshly
+   * created {@code table}, so ids are never reused.
+   */
+  public static void copySequence(SQLiteDatabase db, String legacy, String table)
+  {
+    db.execSQL("insert into sqlite_sequence (name, seq) select '" + table
+               + "', seq from sqlite_sequence where name = '" + legacy + "'");
+  }
+
+  /**
+   * @return The size in bytes of the db file at {@code path} and its
+   * write-ahead log.
+   */
+  public static long getFileSize(String path)
+  {
+    return new File(path).length() + new File(path + "-wal").length();
+  }
+
+  private static long queryLong(SQLiteDatabase db, String sql)
+  {
+    SQLiteStatement statement = db.compileStatement(sql);
+    try
+    {
+      return statement.simpleQueryForLong();
+    }
+    finally
+    {
+      statement.close();
+    }
+  }
+}
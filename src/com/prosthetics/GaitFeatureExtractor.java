@@ -0,0 +1,212 @@
+package com.prosthetics;
+
+/**
+ * Extracts activity features from the accelerometer stream, one sample at
+ * a time and without allocating anything per sample. The features of each
+ * window are returned as an {@link ActivityFeatures}; windows are tumbling
+ * and aligned to the epoch like those of {@link SampleAggregator}.
+ * <p>
+ * Gravity is tracked by a low-pass filter of each axis. The dynamic
+ * acceleration is the magnitude of a sample minus that of gravity; once
+ * smoothed, a step is a peak of it above {@link #STEP_THRESHOLD} times
+ * gravity, at least {@link #MIN_STEP_INTERVAL} ms after the previous one.
+ * Thresholds are relative to gravity, so they do not depend on the units
+ * of the embedded system. Posture is the angle between gravity and the
+ * axis of the prosthesis that is vertical when the patient stands.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see ActivityFeatures
+ * @see SampleWriter
+ */
+public class GaitFeatureExtractor
+{
+  /** Time constant in ms of the gravity filter. */
+  public static final double GRAVITY_TIME_CONSTANT = 1000;
+  /** Time constant in ms of the filter smoothing the dynamic acceleration. */
+  public static final double SMOOTHING_TIME_CONSTANT = 40;
+  /** Peak of the smoothed dynamic acceleration, relative to gravity, making a step. */
+  public static final double STEP_THRESHOLD = 0.12;
+  /** Minimum time in ms between two steps. */
+  public static final long MIN_STEP_INTERVAL = 250;
+  /** Maximum time in ms between two steps to count towards the cadence. */
+  public static final long MAX_STEP_INTERVAL = 2000;
+  /** Minimum number of steps for a window to be classed as walking. */
+  public static final int MIN_WALKING_STEPS = 3;
+  /** Intensity above which a window without walking is classed as active. */
+  public static final double ACTIVE_INTENSITY = 0.05;
+  /** Cosine of the largest tilt, 45 degrees, still counted as upright. */
+  public static final double UPRIGHT_COSINE = 0.7071;
+  /** Gap in ms between samples after which the filters start over. */
+  public static final long MAX_GAP = 1000;
+
+  private final long mWindow;
+  private final int mUprightAxis;
+
+  // Filters, kept across windows
+  private long mLastTime = -1;
+  private double mGravityX;
+  private double mGravityY;
+  private double mGravityZ;
+  private double mDynamic;
+  private boolean mInPeak;
+  private double mPeak;
+  private long mPeakTime;
+  private long mLastStepTime = -1;
+
+  // Current window
+  private long mWindowStart;
+  private int mCount;
+  private int mSteps;
+  private int mIntervals;
+  private long mIntervalSum;
+  private double mEnergy;
+  private long mUprightTime;
+  private long mSeatedTime;
+
+  /**
+   * Constructs an object of type {@code GaitFeatureExtractor}.
+   * @param window The length of a window in ms.
+   * @param uprightAxis The axis, 0 for x, 1 for y or 2 for z, that is
+   * vertical when the patient stands.
+   */
+  public GaitFeatureExtractor(long window, int uprightAxis)
+  {
+    mWindow = window;
+    mUprightAxis = uprightAxis;
+  }
+
+  /**
+   * Adds a sample to its window.
+   * @param timestamp The time of the sample, in ms since the epoch.
+   * @param x The x axis of the sample.
+   * @param y The y axis of the sample.
+   * @param z The z axis of the sample.
+   * @return The features of the previous window if the sample closed it,
+   * otherwise {@code null}.
+   */
+  public ActivityFeatures add(long timestamp, double x, double y, double z)
+  {
+    long start = timestamp - timestamp % mWindow;
+    ActivityFeatures closed = start != mWindowStart ? close() : null;
+    mWindowStart = start;
+    mCount++;
+
+    long dt = timestamp - mLastTime;
+    if (mLastTime < 0 || dt < 0 || dt > MAX_GAP)
+    {
+      // First sample or a gap: start the filters over from this sample
+      mGravityX = x;
+      mGravityY = y;
+      mGravityZ = z;
+      mDynamic = 0;
+      mInPeak = false;
+      mLastTime = timestamp;
+      return closed;
+    }
+    mLastTime = timestamp;
+
+    double a = dt / (GRAVITY_TIME_CONSTANT + dt);
+    mGravityX += a * (x - mGravityX);
+    mGravityY += a * (y - mGravityY);
+    mGravityZ += a * (z - mGravityZ);
+    double gravity = Math.sqrt(mGravityX * mGravityX + mGravityY * mGravityY + mGravityZ * mGravityZ);
+    if (gravity == 0)
+      return closed;
+
+    double dynamic = (Math.sqrt(x * x + y * y + z * z) - gravity) / gravity;
+    mEnergy += dynamic * dynamic;
+    mDynamic += dt / (SMOOTHING_TIME_CONSTANT + dt) * (dynamic - mDynamic);
+    detectStep(timestamp);
+
+    double vertical = mUprightAxis == 0 ? mGravityX : mUprightAxis == 1 ? mGravityY : mGravityZ;
+    if (Math.abs(vertical) >= UPRIGHT_COSINE * gravity)
+      mUprightTime += dt;
+    else
+      mSeatedTime += dt;
+    return closed;
+  }
+
+  /**
+   * Closes the current window if it has ended, so a window is stored even
+   * when no later sample arrives.
+   * @param now The current time, in ms since the epoch.
+   * @return The features of the window if it was closed, otherwise {@code null}.
+   */
+  public ActivityFeatures expire(long now)
+  {
+    return now >= mWindowStart + mWindow ? close() : null;
+  }
+
+  /**
+   * Closes the current window, whether it has ended or not.
+   * @return The features of the window, or {@code null} if it is empty.
+   */
+  public ActivityFeatures close()
+  {
+    if (mCount == 0)
+      return null;
+    double cadence = mIntervals > 0 ? 60000.0 * mIntervals / mIntervalSum : 0;
+    double intensity = Math.sqrt(mEnergy / mCount);
+    ActivityFeatures features = new ActivityFeatures(mWindowStart, mWindow, mCount, mSteps, cadence,
+                                                     intensity, classify(intensity),
+                                                     mUprightTime, mSeatedTime);
+    mCount = 0;
+    mSteps = 0;
+    mIntervals = 0;
+    mIntervalSum = 0;
+    mEnergy = 0;
+    mUprightTime = 0;
+    mSeatedTime = 0;
+    return features;
+  }
+
+  /**
+   * Tracks peaks of the smoothed dynamic acceleration. A peak starts when
+   * it crosses the threshold and ends when it falls back below gravity,
+   * which is when the step is counted, at the time of the peak.
+   */
+  private void detectStep(long timestamp)
+  {
+    if (!mInPeak)
+    {
+      if (mDynamic > STEP_THRESHOLD)
+      {
+        mInPeak = true;
+        mPeak = mDynamic;
+        mPeakTime = timestamp;
+      }
+      return;
+    }
+    if (mDynamic > mPeak)
+    {
+      mPeak = mDynamic;
+      mPeakTime = timestamp;
+    }
+    if (mDynamic >= 0)
+      return;
+
+    mInPeak = false;
+    long interval = mPeakTime - mLastStepTime;
+    if (mLastStepTime >= 0 && interval < MIN_STEP_INTERVAL)
+      return;
+    if (mLastStepTime >= 0 && interval <= MAX_STEP_INTERVAL)
+    {
+      mIntervals++;
+      mIntervalSum += interval;
+    }
+    mSteps++;
+    mLastStepTime = mPeakTime;
+  }
+
+  /** Classes the current window from its steps, intensity and posture. */
+  private int classify(double intensity)
+  {
+    if (mSteps >= MIN_WALKING_STEPS)
+      return ActivityFeatures.CLASS_WALKING;
+    if (intensity >= ACTIVE_INTENSITY)
+      return ActivityFeatures.CLASS_ACTIVE;
+    if (mUprightTime + mSeatedTime == 0)
+      return ActivityFeatures.CLASS_UNKNOWN;
+    return mUprightTime >= mSeatedTime ? ActivityFeatures.CLASS_UPRIGHT : ActivityFeatures.CLASS_SEATED;
+  }
+}
@@ -0,0 +1,91 @@
+package com.prosthetics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Wraps a request body so that it is sent gzip compressed, with
+ * {@code Content-Encoding: gzip}. The body is compressed into a buffer when
+ * the entity is constructed, so it is sent with a {@code Content-Length}
+ * rather than chunked. Only use it for servers that accept compressed
+ * request bodies, see {@link SyncState#isGzipSupported()}.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see SyncService
+ */
+public class GzipEntity extends HttpEntityWrapper
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "GzipEntity";
+
+  /** Value of the {@code Content-Encoding} header. */
+  public static final String GZIP = "gzip";
+
+  /** Size of the compressor's output buffer. */
+  private static final int BUFFER_SIZE = 8192;
+
+  private final byte[] mContent;
+
+  /**
+   * Constructs an object of type {@code GzipEntity} and compresses
+   * {@code entity} into it.
+   * @param entity The uncompressed request body, which must be repeatable.
+   */
+  public GzipEntity(HttpEntity entity)
+  {
+    super(entity);
+    ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+    try
+    {
+      GZIPOutputStream gzip = new GZIPOutputStream(body, BUFFER_SIZE);
+      entity.writeTo(gzip);
+      gzip.close();
+    }
+    catch (IOException e)
+    {
+      // The entities sent by SyncService are buffered, so this is memory only
+      throw new RuntimeException(e);
+    }
+    mContent = body.toByteArray();
+  }
+
+  @Override
+  public Header getContentEncoding()
+  {
+    return new BasicHeader("Content-Encoding", GZIP);
+  }
+
+  @Override
+  public long getContentLength()
+  {
+    return mContent.length;
+  }
+
+  @Override
+  public boolean isChunked()
+  {
+    return false;
+  }
+
+  @Override
+  public InputStream getContent()
+  {
+    return new ByteArrayInputStream(mContent);
+  }
+
+  @Override
+  public void writeTo(OutputStream outstream) throws IOException
+  {
+    outstream.write(mContent);
+    outstream.flush();
+  }
+}
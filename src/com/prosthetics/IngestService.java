@@ -0,0 +1,201 @@
+package com.prosthetics;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.util.Log;
+
+/**
+ * Long-running foreground service owning the link to the embedded system:
+ * the {@link BluetoothLinkService}, and through it the parser and the
+ * {@link SampleWriter} storing samples in the patient db. It keeps
+ * collecting whether or not the UI is running; it is started at boot by
+ * {@link Autostart} or by {@link ProstheticsMonitoringActivity}, which
+ * binds to it only to observe the link. It also starts the scheduled
+ * uploads of {@link SyncScheduler}, which outlive both the UI and this
+ * service, so closing the Activity does not stop them.
+ * <p>
+ * Messages from the link are handled here first, to keep the notification
+ * up to date, then passed on to the observer, if one is bound.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see BluetoothLinkService
+ * @see ProstheticsMonitoringActivity
+ */
+public class IngestService extends Service
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "IngestService";
+  private static final boolean D = true;
+
+  /** Id of the ongoing notification. */
+  private static final int NOTIFICATION_ID = 1;
+
+  private final IBinder mBinder = new LocalBinder();
+  private BluetoothLinkService mLinkService;
+  private String mConnectedDeviceName;
+  /** Handler of the bound UI, or {@code null}. Only used on the main thread. */
+  private Handler mObserver;
+
+  /**
+   * Binder handed to the Activity, which lives in the same process.
+   */
+  public class LocalBinder extends Binder
+  {
+    /**
+     * @return The running {@code IngestService}.
+     */
+    public IngestService getService()
+    {
+      return IngestService.this;
+    }
+  }
+
+  /** Called when the service is first created. */
+  @Override
+  public void onCreate()
+  {
+    super.onCreate();
+    if (D) Log.i(TAG, "onCreate called.");
+    // Finish moving rows left behind by a schema upgrade
+    MigrationRunner.startIfNeeded(this);
+    SyncScheduler.start(getApplicationContext());
+    mLinkService = new BluetoothLinkService(this, mHandler);
+    startForeground(NOTIFICATION_ID, createNotification(getString(R.string.title_not_connected)));
+  }
+
+  /**
+   * Connects to the embedded system unless a connection is already being
+   * made or held.
+   */
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId)
+  {
+    if (D) Log.i(TAG, "onStartCommand called with startId " + startId + ": " + intent);
+    BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+    if (adapter == null)
+    {
+      Log.w(TAG, "Bluetooth is not available");
+      stopSelf();
+      return START_NOT_STICKY;
+    }
+    if (mLinkService.getState() == BluetoothLinkService.STATE_NONE)
+      mLinkService.connect(adapter.getRemoteDevice(ProstheticsMonitoringActivity.MAC_ADDRESS));
+    // Brought back with a null intent if the process is killed
+    return START_STICKY;
+  }
+
+  /**
+   * @param intent {@link android.content.Intent}
+   * @return A {@link LocalBinder}.
+   */
+  @Override
+  public IBinder onBind(Intent intent)
+  {
+    return mBinder;
+  }
+
+  /** Called when the service is destroyed. */
+  @Override
+  public void onDestroy()
+  {
+    super.onDestroy();
+    mObserver = null;
+    // Flushes the writer; the shared patient db stays open for the other
+    // services using it
+    mLinkService.stop();
+    stopForeground(true);
+    if (D) Log.i(TAG, "onDestroy called.");
+  }
+
+  /**
+   * Sets the handler receiving the messages of the link, the same ones
+   * {@link BluetoothLinkService} sends, e.g.
+   * {@link ProstheticsMonitoringActivity#MESSAGE_STATE_CHANGE}. Must be
+   * called on the main thread.
+   * @param observer The handler, or {@code null} to stop observing.
+   */
+  public void setObserver(Handler observer)
+  {
+    mObserver = observer;
+  }
+
+  /**
+   * @return The connection state, one of the {@code STATE_} constants of
+   * {@link BluetoothLinkService}.
+   */
+  public int getState()
+  {
+    return mLinkService.getState();
+  }
+
+  /**
+   * @return The name of the device connected last, or {@code null}.
+   */
+  public String getConnectedDeviceName()
+  {
+    return mConnectedDeviceName;
+  }
+
+  /**
+   * @return The reliability statistics of the current or last connection.
+   * @see BluetoothLinkService#getLinkStats()
+   */
+  public LinkStats getLinkStats()
+  {
+    return mLinkService.getLinkStats();
+  }
+
+  /**
+   * @return The counters of the connection attempts made so far.
+   * @see BluetoothLinkService#getReconnectPolicy()
+   */
+  public ReconnectPolicy getReconnectPolicy()
+  {
+    return mLinkService.getReconnectPolicy();
+  }
+
+  /** Builds the ongoing notification, which opens the Activity. */
+  private Notification createNotification(CharSequence text)
+  {
+    Intent intent = new Intent(this, ProstheticsMonitoringActivity.class);
+    PendingIntent content = PendingIntent.getActivity(this, 0, intent, 0);
+    Notification notification = new Notification(R.drawable.ic_launcher, null, System.currentTimeMillis());
+    notification.flags |= Notification.FLAG_ONGOING_EVENT;
+    notification.setLatestEventInfo(this, getString(R.string.app_name), text, content);
+    return notification;
+  }
+
+  // The Handler that gets information back from the BluetoothLinkService
+  private final Handler mHandler = new Handler()
+  {
+    @Override
+    public void handleMessage(Message msg)
+    {
+      switch (msg.what)
+      {
+        case ProstheticsMonitoringActivity.MESSAGE_STATE_CHANGE:
+          CharSequence status;
+          if (msg.arg1 == BluetoothLinkService.STATE_CONNECTED)
+            status = getString(R.string.title_connected_to, mConnectedDeviceName);
+          else if (msg.arg1 == BluetoothLinkService.STATE_CONNECTING)
+            status = getString(R.string.title_connecting);
+          else
+            status = getString(R.string.title_not_connected);
+          startForeground(NOTIFICATION_ID, createNotification(status));
+          break;
+        case ProstheticsMonitoringActivity.MESSAGE_DEVICE_NAME:
+          mConnectedDeviceName = msg.getData().getString(ProstheticsMonitoringActivity.DEVICE_NAME);
+          break;
+      }
+      if (mObserver != null)
+        mObserver.sendMessage(Message.obtain(msg));
+    }
+  };
+}
@@ -0,0 +1,261 @@
+package com.prosthetics;
+
+/**
+ * Reliability statistics of one connection to the embedded system, kept by
+ * the {@link SampleParser} of that connection. Frames carry a sequence
+ * number, so frames lost in between two received ones and frames received
+ * twice can be told apart from valid ones; frames carrying a checksum that
+ * does not match are counted as corrupted.
+ * <p>
+ * The sequence numbers seen among the last {@link #DUPLICATE_WINDOW} are
+ * kept in a bit set, so a missing frame that arrives late, e.g. when the
+ * embedded system replays what was lost during a drop, is accepted as a
+ * backfill while one seen already is dropped as a duplicate.
+ * <p>
+ * After {@link #resumeAfter(long)} the embedded system is asked to replay
+ * the frames following the one stored last, so a first frame at or below
+ * it means the embedded system restarted its count, and the window is
+ * reset rather than the frame being taken for a duplicate.
+ * <p>
+ * Counters are only written by the thread reading from the socket and may
+ * be read from any thread.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see SampleParser
+ */
+public class LinkStats
+{
+  /**
+   * How far in frames a sequence number may go back and still be taken for
+   * a duplicate or a backfill. Anything further back means the embedded
+   * system restarted its count. A multiple of 64.
+   */
+  public static final int DUPLICATE_WINDOW = 1024;
+
+  private volatile long mFrames = 0;
+  private volatile long mUnchecked = 0;
+  private volatile long mGaps = 0;
+  private volatile long mLost = 0;
+  private volatile long mDuplicates = 0;
+  private volatile long mCorrupted = 0;
+  private volatile long mMalformed = 0;
+  private volatile long mRestarts = 0;
+  private volatile long mBackfilled = 0;
+  private volatile long mLastSequence = -1;
+  /** One bit per sequence number up to {@link #mLastSequence}, set if seen. */
+  private final long[] mSeen = new long[DUPLICATE_WINDOW / 64];
+  /** Set from {@link #resumeAfter(long)} until the next sequenced frame. */
+  private boolean mResumed = false;
+
+  /**
+   * Takes the sequence numbers of the window up to {@code sequence} as
+   * seen, e.g. those already stored before a reconnection, so they are
+   * dropped if resent later in the connection. A first frame at or below
+   * {@code sequence} is taken for a restart of the count instead.
+   * @param sequence The last sequence number stored, or -1 if none.
+   */
+  public void resumeAfter(long sequence)
+  {
+    if (sequence < 0)
+      return;
+    mLastSequence = sequence;
+    for (int i = 0; i < mSeen.length; i++)
+      mSeen[i] = 0;
+    for (long s = Math.max(sequence - DUPLICATE_WINDOW + 1, 0); s <= sequence; s++)
+      setSeen(s);
+    mResumed = true;
+  }
+
+  /**
+   * Checks the sequence number of a well formed frame.
+   * @param sequence The sequence number, or -1 if the frame has none.
+   * @param checked {@code true} if the frame carried a valid checksum.
+   * @return {@code true} if the frame is new, {@code false} if it is a
+   * duplicate to be dropped.
+   */
+  public boolean onFrame(long sequence, boolean checked)
+  {
+    if (sequence >= 0)
+    {
+      long last = mLastSequence;
+      boolean resumed = mResumed;
+      mResumed = false;
+      if (resumed && sequence <= last)
+      {
+        // Asked to replay after last, so the embedded system restarted
+        mRestarts++;
+        advance(-1, sequence);
+      }
+      else if (last < 0 || sequence > last)
+      {
+        if (last >= 0 && sequence > last + 1)
+        {
+          mGaps++;
+          mLost += sequence - last - 1;
+        }
+        advance(last, sequence);
+      }
+      else if (last - sequence < DUPLICATE_WINDOW)
+      {
+        if (isSeen(sequence))
+        {
+          mDuplicates++;
+          return false;
+        }
+        setSeen(sequence);
+        mBackfilled++;
+        if (mLost > 0)
+          mLost--;
+      }
+      else
+      {
+        mRestarts++;
+        advance(-1, sequence);
+      }
+    }
+    mFrames++;
+    if (!checked)
+      mUnchecked++;
+    return true;
+  }
+
+  /** Moves the newest sequence number from {@code last} to {@code sequence}. */
+  private void advance(long last, long sequence)
+  {
+    if (last < 0 || sequence - last >= DUPLICATE_WINDOW)
+    {
+      for (int i = 0; i < mSeen.length; i++)
+        mSeen[i] = 0;
+    }
+    else
+    {
+      for (long s = last + 1; s < sequence; s++)
+        mSeen[(int) (s & (DUPLICATE_WINDOW - 1)) >> 6] &= ~(1L << (s & 63));
+    }
+    setSeen(sequence);
+    mLastSequence = sequence;
+  }
+
+  private boolean isSeen(long sequence)
+  {
+    return (mSeen[(int) (sequence & (DUPLICATE_WINDOW - 1)) >> 6] & (1L << (sequence & 63))) != 0;
+  }
+
+  private void setSeen(long sequence)
+  {
+    mSeen[(int) (sequence & (DUPLICATE_WINDOW - 1)) >> 6] |= 1L << (sequence & 63);
+  }
+
+  /** Counts a frame whose checksum does not match its contents. */
+  public void onCorrupted()
+  {
+    mCorrupted++;
+  }
+
+  /** Counts a line that could not be parsed. */
+  public void onMalformed()
+  {
+    mMalformed++;
+  }
+
+  /**
+   * @return The number of frames accepted.
+   */
+  public long getFrameCount()
+  {
+    return mFrames;
+  }
+
+  /**
+   * @return The number of accepted frames without a checksum.
+   */
+  public long getUncheckedCount()
+  {
+    return mUnchecked;
+  }
+
+  /**
+   * @return The number of times frames were missing in the sequence.
+   */
+  public long getGapCount()
+  {
+    return mGaps;
+  }
+
+  /**
+   * @return The number of frames missing in the sequence and not backfilled.
+   */
+  public long getLostCount()
+  {
+    return mLost;
+  }
+
+  /**
+   * @return The number of frames dropped because they had been received
+   * already.
+   */
+  public long getDuplicateCount()
+  {
+    return mDuplicates;
+  }
+
+  /**
+   * @return The number of frames dropped because of a checksum mismatch.
+   */
+  public long getCorruptedCount()
+  {
+    return mCorrupted;
+  }
+
+  /**
+   * @return The number of lines dropped because they could not be parsed.
+   */
+  public long getMalformedCount()
+  {
+    return mMalformed;
+  }
+
+  /**
+   * @return The number of missing frames that arrived late.
+   */
+  public long getBackfilledCount()
+  {
+    return mBackfilled;
+  }
+
+  /**
+   * @return The number of times the sequence started over.
+   */
+  public long getRestartCount()
+  {
+    return mRestarts;
+  }
+
+  /**
+   * @return The sequence number of the last accepted frame, or -1 if none
+   * had one.
+   */
+  public long getLastSequence()
+  {
+    return mLastSequence;
+  }
+
+  /**
+   * @return The share of the sequenced frames sent that are missing, between
+   * 0 and 1. Corrupted and malformed frames show up as missing too.
+   */
+  public double getLossRate()
+  {
+    long sent = mFrames + mLost;
+    return sent > 0 ? (double) mLost / sent : 0;
+  }
+
+  @Override
+  public String toString()
+  {
+    return mFrames + " frames, " + mGaps + " gaps (" + mLost + " lost), "
+         + mBackfilled + " backfilled, " + mDuplicates + " duplicates, " + mCorrupted + " corrupted, "
+         + mMalformed + " malformed, " + mRestarts + " restarts, "
+         + mUnchecked + " without checksum";
+  }
+}
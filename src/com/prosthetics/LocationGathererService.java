@@ -3,15 +3,12 @@ package com.prosthetics;
 import java.io.IOException;
 
 import android.app.Service;
-import android.app.AlarmManager;
 import android.util.Log;
 import android.content.Intent;
 import android.content.Context;
 import android.os.IBinder;
 import android.location.LocationListener;
 import android.location.LocationManager;
-import android.app.PendingIntent;
-import android.os.SystemClock;
 
 import com.prosthetics.LocationReceiver;
 
@@ -36,15 +33,6 @@ public class LocationGathererService extends Service
   private LocationManager mLocationManager;
   private LocationReceiver mLocationReceiver;
 
-  /** AlarmManager for sync services. */
-  private AlarmManager mAlarmManager;
-  private Intent mSyncIntent;
-  private PendingIntent mSyncPendingIntent;
-  private boolean mIsSynching;
-
-  /** Server synchronisation period (ATM, once every 5 minutes). */
-  private final static long SYNC_PERIOD = AlarmManager.INTERVAL_FIFTEEN_MINUTES / 7;
-
   /** Called when the service is first created. */
   @Override
   public void onCreate()
@@ -70,7 +58,6 @@ public class LocationGathererService extends Service
     super.onDestroy();
     if(D) Log.i(TAG, "onDestroy called.");
     stopGathering();
-    stopSync();
   }
   
   /** Called when the service is started. */
@@ -79,40 +66,11 @@ public class LocationGathererService extends Service
   {
     super.onStartCommand(i, flags, startId);
     if(D) Log.i(TAG, "onStartCommand called with startId " + startId + ": " + i);
-    mAlarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
     startGathering();
-    startSync();
 
     return 0;
   }
 
-  /**
-   * Starts synchronisation service. This method schedules for repeating the execution of
-   * the server synchronisation service.
-   */
-  private void startSync()
-  {
-    mSyncIntent = new Intent(getApplicationContext(), SyncAlarmReceiver.class);
-    mSyncPendingIntent = PendingIntent.getBroadcast(getApplicationContext(), 0, mSyncIntent, 0);
-    mAlarmManager.setInexactRepeating(
-                                        AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                                        SystemClock.elapsedRealtime(),
-                                        SYNC_PERIOD, mSyncPendingIntent
-                                     );
-    mIsSynching = true;
-    Log.i(TAG, "Setting synchronisation interval to " + SYNC_PERIOD + "ms");
-  }
-
-  /**
-   * Stops synchronisation service.
-   */
-  private void stopSync()
-  {
-    if (mSyncPendingIntent != null)
-      mAlarmManager.cancel(mSyncPendingIntent);
-    mIsSynching = false;
-  }
-
   /** Starts gathering location data. */
   private void startGathering()
   {
@@ -54,7 +54,8 @@ public class LocationReceiver implements LocationListener
    */
   public void onLocationChanged(Location location)
   {
-    String timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+    long time = System.currentTimeMillis();
+    String timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(time));
     Bundle extras = location.getExtras();
     String provider = (extras == null || extras.getString(EXTRAS_KEY) == null)
                     ? location.getProvider() : extras.getString(EXTRAS_KEY);
@@ -65,10 +66,10 @@ public class LocationReceiver implements LocationListener
                       + location.getLatitude() + ", " 
                       + location.getLongitude());
 
-    LocationsDB db = new LocationsDB(mContext);
+    LocationsDB db = LocationsDB.getInstance(mContext);
 
     db.addLocation(new LocationWrapper(
-                                        timestamp, 
+                                        time, 
                                         provider, 
                                         location.getLatitude(),
                                         location.getLongitude(),
@@ -15,9 +15,7 @@ public class LocationWrapper
   private static final boolean D = true;
 
   private int oid;
-  private String timestamp;
-  private String date;
-  private String time;
+  private long timestamp;
   private String provider;
   private double accuracy;
   private double latitude;
@@ -25,19 +23,17 @@ public class LocationWrapper
 
   /**
    * Constructs an object of type {@code LocationWrapper}.
-   * @param timestamp The timestamp of adding the interaction to the interactions db.
+   * @param timestamp The time of the location fix, in ms since the epoch.
    * @param provider The name of the location provider. Can be one of the three values:
    * cell, wifi, gps.
    * @param latitude The latitude of the location reading.
    * @param longitude The longitude of the location reading.
    * @param accuracy The accuracy of the location reading in metres.
    */
-  public LocationWrapper( String timestamp, String provider, double latitude, double longitude, double accuracy)
+  public LocationWrapper( long timestamp, String provider, double latitude, double longitude, double accuracy)
   {
     if(D) Log.i(TAG, "Create a LocationWrapper.");
     this.timestamp = timestamp;
-    this.date = timestamp.split(" ")[0];
-    this.time = timestamp.split(" ")[1];
     this.provider = provider;
     this.latitude = latitude;
     this.longitude = longitude;
@@ -45,9 +41,9 @@ public class LocationWrapper
   }
   
   /**
-   * @return The recorded-at timestamp of the location.
+   * @return The time of the location fix, in ms since the epoch.
    */
-  public String getTimestamp()
+  public long getTimestamp()
   {
     return timestamp;
   }
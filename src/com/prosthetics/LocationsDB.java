@@ -5,21 +5,21 @@ import java.io.File;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.io.PrintWriter;
+import java.util.List;
 
 import android.util.Log;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.database.SQLException;
+import android.os.Build;
 import android.os.Environment;
 
 import com.prosthetics.LocationsDBHelper;
 import com.prosthetics.LocationWrapper;
 
-import org.json.JSONObject;
-import org.json.JSONArray;
-
 /**
  * Helper class for accessing the locations db. It can be used to add a new 
  * record, check whether a specified record already exists, count number of 
@@ -44,20 +44,86 @@ public class LocationsDB
   /** The name of the interactions db file. */
   private final static String DB_NAME = "locations.sqlite3";
 
+  /** Insert statement for the locations table. */
+  private final static String INSERT_SQL = "insert into "
+                                         + LocationsDBHelper.TABLE + " ("
+                                         + LocationsDBHelper.UID + ", "
+                                         + LocationsDBHelper.TIMESTAMP + ", "
+                                         + LocationsDBHelper.PROVIDER + ", "
+                                         + LocationsDBHelper.LATITUDE + ", "
+                                         + LocationsDBHelper.LONGITUDE + ", "
+                                         + LocationsDBHelper.ACCURACY
+                                         + ") values (?, ?, ?, ?, ?, ?)";
+
+  /**
+   * Columns of the locations table sent to the server. The timestamp is
+   * stored in ms since the epoch but still sent as local
+   * {@code yyyy-MM-dd HH:mm:ss} text, which {@code /locations/input} expects.
+   */
+  public final static String[] EXPORT_COLUMNS = new String[] {
+    LocationsDBHelper.ID, LocationsDBHelper.UID,
+    "strftime('%Y-%m-%d %H:%M:%S', " + LocationsDBHelper.TIMESTAMP + " / 1000, 'unixepoch', 'localtime') as "
+      + LocationsDBHelper.TIMESTAMP,
+    LocationsDBHelper.PROVIDER, LocationsDBHelper.LATITUDE,
+    LocationsDBHelper.LONGITUDE, LocationsDBHelper.ACCURACY
+  };
+  /** Types of {@link #EXPORT_COLUMNS}, see {@link CursorJsonEntity}. */
+  public final static int[] EXPORT_TYPES = new int[] {
+    CursorJsonEntity.TYPE_INTEGER, CursorJsonEntity.TYPE_INTEGER,
+    CursorJsonEntity.TYPE_TEXT, CursorJsonEntity.TYPE_TEXT,
+    CursorJsonEntity.TYPE_REAL, CursorJsonEntity.TYPE_REAL,
+    CursorJsonEntity.TYPE_REAL
+  };
+
   private LocationsDBHelper dbHelper;
+  /** Absolute path to the db file. */
+  private String mPath;
+
+  /** The process-wide instance, see {@link #getInstance(Context)}. */
+  private static LocationsDB sInstance;
+  /** The connection kept open for the lifetime of the process. */
+  private SQLiteDatabase mDatabase;
+  private int mOpenCount = 0;
+  private int mCloseCount = 0;
 
   private int uid = 1; // Fix;Me: Hacky way of adding new users
 
+  /**
+   * Returns the process-wide {@code LocationsDB}, creating it on first use. All
+   * callers share a single connection to the locations db.
+   * @param context Any {@code Context} of the app; only its application
+   * context is kept.
+   * @return The shared {@code LocationsDB}.
+   */
+  public static synchronized LocationsDB getInstance(Context context)
+  {
+    if (sInstance == null)
+      sInstance = new LocationsDB(context.getApplicationContext());
+    return sInstance;
+  }
+
   /**
    * Constructs an object of type {@code LocationsDB}.
    * @param context The {@code Context} in which the {@code LocationsDB} object
    * was created.
    */
-  public LocationsDB(Context context) 
+  private LocationsDB(Context context) 
+  {
+    this(context, LocationsDB.getDBPath() + "/" + DB_NAME);
+  }
+
+  /**
+   * Constructs a {@code LocationsDB} on a db file of its own, which is not shared
+   * with {@link #getInstance(Context)}, e.g. for tests and benchmarks.
+   * @param context The {@code Context} in which the {@code LocationsDB} object
+   * was created.
+   * @param path The absolute path to the db file.
+   */
+  public LocationsDB(Context context, String path)
   {
     Log.i(TAG, "Creating a handler for locations db.");
-    String dbPath = LocationsDB.getDBPath() + "/" + DB_NAME;
-    dbHelper = new LocationsDBHelper(context, dbPath);
+    mPath = path;
+    dbHelper = new LocationsDBHelper(context, mPath);
   }
   
   /**
@@ -71,7 +137,7 @@ public class LocationsDB
     SQLiteDatabase db = null;
     try
     {
-      db = dbHelper.getWritableDatabase();
+      db = getDatabase();
       ContentValues values = new ContentValues();
       values.put(LocationsDBHelper.UID, uid);
       values.put(LocationsDBHelper.TIMESTAMP, location.getTimestamp());
@@ -85,14 +151,187 @@ public class LocationsDB
     {
       Log.i(TAG, "Could not insert data into locations table: " + e);
     } 
+  }
+
+  /**
+   * Adds a list of locations to the location db in a single transaction,
+   * using one compiled statement with bound values.
+   * @param locations {@code LocationWrapper} objects to be added
+   */
+  public synchronized void addLocations(List<LocationWrapper> locations)
+  {
+    if(D) Log.i(TAG, "Adding " + locations.size() + " records to locations table");
+    SQLiteDatabase db = null;
+    try
+    {
+      db = getDatabase();
+      db.beginTransaction();
+      SQLiteStatement insert = db.compileStatement(INSERT_SQL);
+      try
+      {
+        for (int i = 0, n = locations.size(); i < n; i++)
+        {
+          LocationWrapper location = locations.get(i);
+          insert.bindLong(1, uid);
+          insert.bindLong(2, location.getTimestamp());
+          if (location.getProvider() == null)
+            insert.bindNull(3);
+          else
+            insert.bindString(3, location.getProvider());
+          insert.bindDouble(4, location.getLatitude());
+          insert.bindDouble(5, location.getLongitude());
+          insert.bindDouble(6, location.getAccuracy());
+          insert.executeInsert();
+        }
+        db.setTransactionSuccessful();
+      }
+      finally
+      {
+        insert.close();
+        db.endTransaction();
+      }
+    }
+    catch (SQLException e)
+    {
+      Log.i(TAG, "Could not insert data into locations table: " + e);
+    }
+  }
+
+  /**
+   * Counts the entries in the location db with an ID greater than
+   * {@code latestId}, i.e. those not uploaded yet.
+   * @param latestId The highest ID already held by the server.
+   * @return The number of pending entries.
+   */
+  public long countPendingLocations(long latestId)
+  {
+    SQLiteStatement count = getDatabase().compileStatement(
+        "select count(*) from " + LocationsDBHelper.TABLE + " where " + LocationsDBHelper.ID + " > ?");
+    try
+    {
+      count.bindLong(1, latestId);
+      return count.simpleQueryForLong();
+    }
     finally
     {
-      Log.i(TAG, "Closing db...");
-      if (db != null)
-        db.close();
+      count.close();
+    }
+  }
+
+  /**
+   * Deletes the oldest entries, up to and including ID {@code id}, at most
+   * {@code limit} IDs per call so writers are not held up for long.
+   * @param id The highest ID that may be deleted.
+   * @param limit The maximum number of IDs covered by one call.
+   * @return The number of entries deleted, 0 once none are left up to {@code id}.
+   */
+  public synchronized int deleteUpTo(long id, int limit)
+  {
+    return DBMaintenance.deleteUpTo(getDatabase(), LocationsDBHelper.TABLE, id, limit);
+  }
+
+  /**
+   * @return The highest ID in use, or 0 if there are no entries.
+   */
+  public synchronized long queryMaxId()
+  {
+    return DBMaintenance.queryMaxId(getDatabase(), LocationsDBHelper.TABLE);
+  }
+
+  /**
+   * Gives pages freed by deletions back to the file system, until there
+   * are none left or {@code deadline} has passed.
+   * @param deadline The {@code SystemClock.elapsedRealtime()} by which to stop.
+   * @return The number of pages freed.
+   */
+  public synchronized long compact(long deadline)
+  {
+    // Locations come in rarely, so they can wait for a conversion
+    return DBMaintenance.compact(getDatabase(), deadline, true);
+  }
+
+  /**
+   * @return The size in bytes of the db file and its write-ahead log.
+   */
+  public long getFileSize()
+  {
+    return DBMaintenance.getFileSize(mPath);
+  }
+
+  /**
+   * Tells whether a schema migration of the locations table has pending
+   * work, see {@link LocationsDBHelper#MIGRATIONS}. Until it is done, IDs
+   * may not be in insertion order.
+   * @return {@code true} while the migration is unfinished.
+   */
+  public synchronized boolean isMigrating()
+  {
+    return SchemaMigration.isPending(getDatabase(), LocationsDBHelper.MIGRATIONS, LocationsDBHelper.TABLE);
+  }
+
+  /**
+   * Does one batch of the pending work of {@link LocationsDBHelper#MIGRATIONS}.
+   * The lock is only held for one batch, so new locations are still added
+   * in between.
+   * @param limit The maximum number of entries handled.
+   * @return The number of entries handled, 0 once the migrations are finished.
+   */
+  public synchronized int migrateBatch(int limit)
+  {
+    return SchemaMigration.migrateBatch(getDatabase(), LocationsDBHelper.MIGRATIONS, limit);
+  }
+
+  /**
+   * Returns the shared connection to the locations db, opening it if needed.
+   * Write-ahead logging is enabled where available, so readers on other
+   * threads do not block the writer.
+   * @return An open {@code SQLiteDatabase}.
+   */
+  private synchronized SQLiteDatabase getDatabase()
+  {
+    if (mDatabase == null || !mDatabase.isOpen())
+    {
+      mDatabase = dbHelper.getWritableDatabase();
+      if (dbHelper.takeCreated() && !DBMaintenance.isIncremental(mDatabase))
+        DBMaintenance.convertToIncremental(mDatabase);
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+        mDatabase.enableWriteAheadLogging();
+      mOpenCount++;
+      if (D) Log.i(TAG, "Opened db, " + mOpenCount + " opens and " + mCloseCount + " closes so far");
+    }
+    return mDatabase;
+  }
+
+  /**
+   * Closes the shared connection. It is reopened on the next access, so
+   * this is only needed when the app shuts down.
+   */
+  public synchronized void close()
+  {
+    if (mDatabase != null)
+    {
+      dbHelper.close();
+      mDatabase = null;
+      mCloseCount++;
     }
   }
 
+  /**
+   * @return The number of times the db has been opened by this process.
+   */
+  public synchronized int getOpenCount()
+  {
+    return mOpenCount;
+  }
+
+  /**
+   * @return The number of times the db has been closed by this process.
+   */
+  public synchronized int getCloseCount()
+  {
+    return mCloseCount;
+  }
+
   /**
    * Returns the absolute path to the location db.
    * @return Absolute path to the location db.
@@ -121,62 +360,26 @@ public class LocationsDB
     return path;
   }
 
-   /**
-   * Returns a JSON array constructed by the entries
-   * in the location db with an ID greated then {@code latestId}.
-   * @param latestId
-   * @return Absolute path to the location db.
+  /**
+   * Returns at most {@code limit} entries in the location db with an ID
+   * greater than {@code latestId}, in ascending ID order. The columns are
+   * {@link #EXPORT_COLUMNS}.
+   * @param latestId The highest ID already held by the server.
+   * @param limit The maximum number of entries to return.
+   * @return A {@code Cursor} over the entries, to be closed by the caller.
    */
-  public JSONArray getLatestLocations(int latestId)
+  public Cursor queryLatestLocations(long latestId, int limit)
   {
-    Log.i(TAG, "Getting all locations");
-    JSONArray locations = new JSONArray();
-    SQLiteDatabase db = null;
-    try
-    {
-      db = dbHelper.getReadableDatabase();
-      Cursor c = db.query(
-                           LocationsDBHelper.TABLE,
-                           null,
-                           LocationsDBHelper.ID + " > " + latestId,
-                           null,
-                           null,
-                           null,
-                           LocationsDBHelper.ID + " ASC"
-                         );
-      Log.i(TAG, "Fetched samples " + c.getCount() + " rows");
-      while (c.moveToNext())
-      {
-        int id = c.getInt(0);
-        int u = c.getInt(1);
-        String t = c.getString(2);
-        String prov = c.getString(3);
-        float lat = c.getFloat(4);
-        float lon = c.getFloat(5);
-        float acc = c.getFloat(6);
-        JSONObject data = new JSONObject();
-        try
-        {
-          data.put(LocationsDBHelper.ID, id);
-          data.put(LocationsDBHelper.UID, u);
-          data.put(LocationsDBHelper.TIMESTAMP, t);
-          data.put(LocationsDBHelper.PROVIDER, prov);
-          data.put(LocationsDBHelper.LATITUDE, lat);
-          data.put(LocationsDBHelper.LONGITUDE, lon);
-          data.put(LocationsDBHelper.ACCURACY, acc);
-          JSONObject location = new JSONObject();
-          location.put("location", data);
-          locations.put(location);
-        }
-        catch (org.json.JSONException e){} // Fix;Me: handle this exception
-      }
-     
-      return locations;
-      }
-      finally 
-      {
-        if (db != null)
-        db.close();
-      }
+    if(D) Log.i(TAG, "Getting locations after " + latestId);
+    return getDatabase().query(
+                                LocationsDBHelper.TABLE,
+                                EXPORT_COLUMNS,
+                                LocationsDBHelper.ID + " > " + latestId,
+                                null,
+                                null,
+                                null,
+                                LocationsDBHelper.ID + " ASC",
+                                Integer.toString(limit)
+                              );
   }
 }
\ No newline at end of file
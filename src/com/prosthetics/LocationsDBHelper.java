@@ -36,6 +36,36 @@ public class LocationsDBHelper extends SQLiteOpenHelper
   /** Accuracy column name */
   public final static String ACCURACY = "accuracy";
 
+  /** Statements creating the locations table, as of version 2. */
+  private final static String[] TABLE_V2 = new String[] {
+    "create table " + TABLE + " ("
+      + ID + " integer primary key autoincrement, "
+      + UID + " integer, "
+      + TIMESTAMP + " integer, "
+      + PROVIDER + " text, "
+      + LATITUDE + " real, "
+      + LONGITUDE + " real, "
+      + ACCURACY + " real);",
+    "create index " + TABLE + "_" + UID + "_" + TIMESTAMP
+      + " on " + TABLE + " (" + UID + ", " + TIMESTAMP + ");"
+  };
+
+  /**
+   * Schema history of the locations db, sorted by version. Version 2 stores
+   * timestamps as integer ms since the epoch instead of datetime text,
+   * indexed together with the user id.
+   */
+  public final static SchemaMigration[] MIGRATIONS = new SchemaMigration[] {
+    new TableRebuildMigration(2, TABLE, TABLE_V2,
+                              ID + ", " + UID + ", " + TIMESTAMP + ", " + PROVIDER + ", "
+                              + LATITUDE + ", " + LONGITUDE + ", " + ACCURACY,
+                              ID + ", " + UID + ", " + DBMaintenance.epochMillisSql(TIMESTAMP) + ", "
+                              + PROVIDER + ", " + LATITUDE + ", " + LONGITUDE + ", " + ACCURACY)
+  };
+
+  /** Current version of the db schema. */
+  public final static int VERSION = SchemaMigration.getLatestVersion(MIGRATIONS);
+
   /**
    * Constructs an object of type {@code LocationsDBHelper}.
    * @param context The {@code Context} in which the {@code LocationsDBHelper}
@@ -44,10 +74,13 @@ public class LocationsDBHelper extends SQLiteOpenHelper
    */
   public LocationsDBHelper(Context context, String path)
   {
-    super(context, path, null, 1);
+    super(context, path, null, VERSION);
     if(D) Log.i(TAG, "Create a LocationsDBHelper.");
   }
 
+  /** Set once {@link #onCreate(SQLiteDatabase)} has run. */
+  private boolean mCreated = false;
+
   /**
    * Creates new locations table inside the locations db if it doesn't exist
    * already.
@@ -57,22 +90,32 @@ public class LocationsDBHelper extends SQLiteOpenHelper
   public void onCreate(SQLiteDatabase db)
   {
     if(D) Log.i(TAG, "onCreate called.");
-    String interSQL = "create table " 
-                    + TABLE 
-                    + " (" 
-                    + ID + " integer primary key autoincrement, "
-                    + UID + " integer, "
-                    + TIMESTAMP + " datetime, "
-                    + PROVIDER + " text, "
-                    + LATITUDE + " real, "
-                    + LONGITUDE + " real, "
-                    + ACCURACY + " real);";
-    db.execSQL(interSQL);
+    db.execSQL(DBMaintenance.AUTO_VACUUM_SQL);
+    mCreated = true;
+    for (int i = 0; i < TABLE_V2.length; i++)
+      db.execSQL(TABLE_V2[i]);
   }
 
   /**
-   * Should upgrade the structure of the database. Stub method only.
+   * Tells whether the db was created by the last open, once.
+   * @return {@code true} the first time it is called after the db was created.
+   * @see PatientDBHelper#takeCreated()
+   */
+  public boolean takeCreated()
+  {
+    boolean created = mCreated;
+    mCreated = false;
+    return created;
+  }
+
+  /**
+   * Upgrades the structure of the db through {@link #MIGRATIONS}. Existing
+   * entries are moved afterwards, in batches, by {@link MigrationRunner}.
    */
   @Override
-  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
-}
\ No newline at end of file
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+  {
+    if(D) Log.i(TAG, "Upgrading from version " + oldVersion + " to " + newVersion);
+    SchemaMigration.upgrade(db, MIGRATIONS, oldVersion, newVersion);
+  }
+}
@@ -0,0 +1,91 @@
+package com.prosthetics;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Background thread doing the pending work of the schema migrations of both
+ * dbs, see {@link SchemaMigration}. It runs at background priority in small
+ * batches with a pause in between, so {@link SampleWriter} only ever waits
+ * for one batch to get hold of the patient db. The number of rows migrated
+ * and the time it took are logged once the work is done.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see SchemaMigration
+ * @see PatientDB#migrateBatch(int)
+ * @see LocationsDB#migrateBatch(int)
+ */
+public class MigrationRunner extends CancelableThread
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "MigrationRunner";
+  private static final boolean D = true;
+
+  /** Maximum number of rows handled per batch. */
+  private static final int BATCH_SIZE = 1000;
+  /** Pause in ms between two batches, leaving the db to the other threads. */
+  private static final long BATCH_PAUSE = 50;
+
+  /** The runner of this process, see {@link #startIfNeeded(Context)}. */
+  private static MigrationRunner sRunner;
+
+  private final Context mContext;
+
+  /**
+   * Starts the runner of this process unless it has been started already.
+   * It finishes right away if no migration has pending work.
+   * @param context Any {@code Context} of the app.
+   */
+  public static synchronized void startIfNeeded(Context context)
+  {
+    if (sRunner == null)
+    {
+      sRunner = new MigrationRunner(context.getApplicationContext());
+      sRunner.start();
+    }
+  }
+
+  private MigrationRunner(Context context)
+  {
+    super("MigrationRunner");
+    mContext = context;
+  }
+
+  public void run()
+  {
+    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    long start = SystemClock.elapsedRealtime();
+    long rows = 0;
+
+    LocationsDB locationsDB = LocationsDB.getInstance(mContext);
+    for (int n; !hasCanceled() && (n = locationsDB.migrateBatch(BATCH_SIZE)) > 0; pause())
+      rows += n;
+    PatientDB patientDB = PatientDB.getInstance(mContext);
+    for (int n; !hasCanceled() && (n = patientDB.migrateBatch(BATCH_SIZE)) > 0; pause())
+      rows += n;
+
+    if (rows > 0)
+    {
+      long time = SystemClock.elapsedRealtime() - start;
+      Log.i(TAG, "Migrated " + rows + " rows in " + time + "ms ("
+                 + (rows * 1000 / Math.max(time, 1)) + " rows/s)"
+                 + (hasCanceled() ? ", canceled" : ""));
+    }
+    else if (D) Log.i(TAG, "No pending migrations");
+  }
+
+  /** Sleeps between two batches. */
+  private void pause()
+  {
+    try
+    {
+      Thread.sleep(BATCH_PAUSE);
+    }
+    catch (InterruptedException e)
+    {
+      requestCancel();
+    }
+  }
+}
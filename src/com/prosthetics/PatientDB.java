@@ -5,22 +5,22 @@ import java.io.File;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.io.PrintWriter;
+import java.util.List;
 
 import android.util.Log;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.database.SQLException;
+import android.os.Build;
 import android.os.Environment;
 
 import com.prosthetics.PatientDBHelper;
 import com.prosthetics.AccelerometerWrapper;
 import com.prosthetics.TemperatureWrapper;
 
-import org.json.JSONObject;
-import org.json.JSONArray;
-
 /**
  * Helper class for accessing the accelerometer db. It can be used to add a new 
  * record, check whether a specified record already exists, count number of 
@@ -43,20 +43,143 @@ public class PatientDB
   private final static String BASE_DIR = "ProstheticsMonitoringAppProject";
   /** The name of the db. */
   private final static String DB_NAME = "patient.sqlite3";
+  /** Insert statement for the accelerometer table. */
+  private final static String INSERT_ACC_SQL = "insert into "
+                                             + PatientDBHelper.ACC_TABLE + " ("
+                                             + PatientDBHelper.UID + ", "
+                                             + PatientDBHelper.TIMESTAMP + ", "
+                                             + PatientDBHelper.DEVICE_TIMESTAMP + ", "
+                                             + PatientDBHelper.X_AXIS + ", "
+                                             + PatientDBHelper.Y_AXIS + ", "
+                                             + PatientDBHelper.Z_AXIS
+                                             + ") values (?, ?, ?, ?, ?, ?)";
+  /** Insert statement for the temperature table. */
+  private final static String INSERT_TEM_SQL = "insert into "
+                                             + PatientDBHelper.TEM_TABLE + " ("
+                                             + PatientDBHelper.UID + ", "
+                                             + PatientDBHelper.TIMESTAMP + ", "
+                                             + PatientDBHelper.DEVICE_TIMESTAMP + ", "
+                                             + PatientDBHelper.VALUE1 + ", "
+                                             + PatientDBHelper.VALUE2
+                                             + ") values (?, ?, ?, ?, ?)";
+  /** Insert statement for the activity table. */
+  private final static String INSERT_ACTIVITY_SQL = "insert into "
+                                                  + PatientDBHelper.ACTIVITY_TABLE + " ("
+                                                  + PatientDBHelper.UID + ", "
+                                                  + PatientDBHelper.TIMESTAMP + ", "
+                                                  + PatientDBHelper.DURATION + ", "
+                                                  + PatientDBHelper.COUNT + ", "
+                                                  + PatientDBHelper.STEPS + ", "
+                                                  + PatientDBHelper.CADENCE + ", "
+                                                  + PatientDBHelper.INTENSITY + ", "
+                                                  + PatientDBHelper.ACTIVITY_CLASS + ", "
+                                                  + PatientDBHelper.UPRIGHT_TIME + ", "
+                                                  + PatientDBHelper.SEATED_TIME
+                                                  + ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  /** Statement storing the newest sample in the link state table. */
+  private final static String UPDATE_LINK_SQL = "insert or replace into "
+                                              + PatientDBHelper.LINK_TABLE + " ("
+                                              + PatientDBHelper.ID + ", "
+                                              + PatientDBHelper.SEQUENCE + ", "
+                                              + PatientDBHelper.TIMESTAMP
+                                              + ") values (0, ?, ?)";
+  /** Columns of the accelerometer table sent to the server. */
+  public final static String[] ACC_EXPORT_COLUMNS = new String[] {
+    PatientDBHelper.ID, PatientDBHelper.UID, PatientDBHelper.TIMESTAMP, PatientDBHelper.DEVICE_TIMESTAMP,
+    PatientDBHelper.X_AXIS, PatientDBHelper.Y_AXIS, PatientDBHelper.Z_AXIS
+  };
+  /** Types of {@link #ACC_EXPORT_COLUMNS}, see {@link CursorJsonEntity}. */
+  public final static int[] ACC_EXPORT_TYPES = new int[] {
+    CursorJsonEntity.TYPE_INTEGER, CursorJsonEntity.TYPE_INTEGER, CursorJsonEntity.TYPE_INTEGER, CursorJsonEntity.TYPE_TEXT,
+    CursorJsonEntity.TYPE_INTEGER, CursorJsonEntity.TYPE_INTEGER, CursorJsonEntity.TYPE_INTEGER
+  };
+  /** Columns of the temperature table sent to the server. */
+  public final static String[] TEM_EXPORT_COLUMNS = new String[] {
+    PatientDBHelper.ID, PatientDBHelper.UID, PatientDBHelper.TIMESTAMP, PatientDBHelper.DEVICE_TIMESTAMP,
+    PatientDBHelper.VALUE1, PatientDBHelper.VALUE2
+  };
+  /** Types of {@link #TEM_EXPORT_COLUMNS}, see {@link CursorJsonEntity}. */
+  public final static int[] TEM_EXPORT_TYPES = new int[] {
+    CursorJsonEntity.TYPE_INTEGER, CursorJsonEntity.TYPE_INTEGER, CursorJsonEntity.TYPE_INTEGER, CursorJsonEntity.TYPE_TEXT,
+    CursorJsonEntity.TYPE_INTEGER, CursorJsonEntity.TYPE_INTEGER
+  };
+
+  /** Columns of the accelerometer summary table sent to the server. */
+  public final static String[] ACC_SUMMARY_EXPORT_COLUMNS = getSummaryExportColumns(PatientDBHelper.ACC_SUMMARY_CHANNELS);
+  /** Types of {@link #ACC_SUMMARY_EXPORT_COLUMNS}, see {@link CursorJsonEntity}. */
+  public final static int[] ACC_SUMMARY_EXPORT_TYPES = getSummaryExportTypes(ACC_SUMMARY_EXPORT_COLUMNS);
+  /** Columns of the temperature summary table sent to the server. */
+  public final static String[] TEM_SUMMARY_EXPORT_COLUMNS = getSummaryExportColumns(PatientDBHelper.TEM_SUMMARY_CHANNELS);
+  /** Types of {@link #TEM_SUMMARY_EXPORT_COLUMNS}, see {@link CursorJsonEntity}. */
+  public final static int[] TEM_SUMMARY_EXPORT_TYPES = getSummaryExportTypes(TEM_SUMMARY_EXPORT_COLUMNS);
+  /** Columns of the activity table sent to the server. */
+  public final static String[] ACTIVITY_EXPORT_COLUMNS = new String[] {
+    PatientDBHelper.ID, PatientDBHelper.UID, PatientDBHelper.TIMESTAMP,
+    PatientDBHelper.DURATION, PatientDBHelper.COUNT, PatientDBHelper.STEPS,
+    PatientDBHelper.CADENCE, PatientDBHelper.INTENSITY, PatientDBHelper.ACTIVITY_CLASS,
+    PatientDBHelper.UPRIGHT_TIME, PatientDBHelper.SEATED_TIME
+  };
+  /** Types of {@link #ACTIVITY_EXPORT_COLUMNS}, see {@link CursorJsonEntity}. */
+  public final static int[] ACTIVITY_EXPORT_TYPES = new int[] {
+    CursorJsonEntity.TYPE_INTEGER, CursorJsonEntity.TYPE_INTEGER, CursorJsonEntity.TYPE_INTEGER,
+    CursorJsonEntity.TYPE_INTEGER, CursorJsonEntity.TYPE_INTEGER, CursorJsonEntity.TYPE_INTEGER,
+    CursorJsonEntity.TYPE_REAL, CursorJsonEntity.TYPE_REAL, CursorJsonEntity.TYPE_INTEGER,
+    CursorJsonEntity.TYPE_INTEGER, CursorJsonEntity.TYPE_INTEGER
+  };
+  /** Number of columns of a summary before the statistics. */
+  private final static int SUMMARY_HEADER_COLUMNS = 5;
+
   private PatientDBHelper dbHelper;
+  /** Absolute path to the db file. */
+  private String mPath;
+
+  /** The process-wide instance, see {@link #getInstance(Context)}. */
+  private static PatientDB sInstance;
+  /** The connection kept open for the lifetime of the process. */
+  private SQLiteDatabase mDatabase;
+  private int mOpenCount = 0;
+  private int mCloseCount = 0;
+  /** Number of {@link SampleWriter} threads running. */
+  private int mWriters = 0;
 
   private int uid = 1; // Fix;Me: Hacky way of adding new users
 
+  /**
+   * Returns the process-wide {@code PatientDB}, creating it on first use. All
+   * callers share a single connection to the patient db.
+   * @param context Any {@code Context} of the app; only its application
+   * context is kept.
+   * @return The shared {@code PatientDB}.
+   */
+  public static synchronized PatientDB getInstance(Context context)
+  {
+    if (sInstance == null)
+      sInstance = new PatientDB(context.getApplicationContext());
+    return sInstance;
+  }
+
   /**
    * Constructs an object of type {@code PatientDB}.
    * @param context The {@code Context} in which the {@code PatientDB} object
    * was created.
    */
-  public PatientDB(Context context) 
+  private PatientDB(Context context) 
+  {
+    this(context, PatientDB.getDBPath() + "/" + DB_NAME);
+  }
+
+  /**
+   * Constructs a {@code PatientDB} on a db file of its own, which is not shared
+   * with {@link #getInstance(Context)}, e.g. for tests and benchmarks.
+   * @param context The {@code Context} in which the {@code PatientDB} object
+   * was created.
+   * @param path The absolute path to the db file.
+   */
+  public PatientDB(Context context, String path)
   {
     if (D) Log.i(TAG, "Creating a handler for accelerometer db.");
-    String dbPath = PatientDB.getDBPath() + "/" + DB_NAME;
-    dbHelper = new PatientDBHelper(context, dbPath);
+    mPath = path;
+    dbHelper = new PatientDBHelper(context, mPath);
   }
   
   /**
@@ -71,10 +194,11 @@ public class PatientDB
     SQLiteDatabase db = null;
     try
     {
-      db = dbHelper.getWritableDatabase();
+      db = getDatabase();
       ContentValues values = new ContentValues();
       values.put(PatientDBHelper.UID, uid);
       values.put(PatientDBHelper.TIMESTAMP, accelerometer.getTimestamp());
+      values.put(PatientDBHelper.DEVICE_TIMESTAMP, accelerometer.getDeviceTimestamp());
       values.put(PatientDBHelper.X_AXIS, accelerometer.getX());
       values.put(PatientDBHelper.Y_AXIS, accelerometer.getY());
       values.put(PatientDBHelper.Z_AXIS, accelerometer.getZ());
@@ -86,12 +210,6 @@ public class PatientDB
     {
       Log.i(TAG, "Could not insert data into accelerometer table: " + e);
     } 
-    finally
-    {
-      if (D) Log.i(TAG, "Closing db...");
-      if (db != null)
-        db.close();
-    }
   }
 
   /**
@@ -106,10 +224,11 @@ public class PatientDB
     SQLiteDatabase db = null;
     try
     {
-      db = dbHelper.getWritableDatabase();
+      db = getDatabase();
       ContentValues values = new ContentValues();
       values.put(PatientDBHelper.UID, uid);
       values.put(PatientDBHelper.TIMESTAMP, temperature.getTimestamp());
+      values.put(PatientDBHelper.DEVICE_TIMESTAMP, temperature.getDeviceTimestamp());
       values.put(PatientDBHelper.VALUE1, temperature.getValue1());
       values.put(PatientDBHelper.VALUE2, temperature.getValue2());
       db.insertOrThrow(PatientDBHelper.TEM_TABLE, PatientDBHelper.TIMESTAMP, values);
@@ -119,11 +238,558 @@ public class PatientDB
     {
       Log.i(TAG, "Could not insert data into temperature table: " + e);
     } 
+  }
+
+  /**
+   * Adds a list of accelerometer samples to the patient db in a single
+   * transaction.
+   * @param samples {@code AccelerometerWrapper} objects to be added
+   */
+  public synchronized void addAccelerometerSamples(List<AccelerometerWrapper> samples)
+  {
+    addSamples(samples, null);
+  }
+
+  /**
+   * Adds a list of temperature samples to the patient db in a single
+   * transaction.
+   * @param samples {@code TemperatureWrapper} objects to be added
+   */
+  public synchronized void addTemperatureSamples(List<TemperatureWrapper> samples)
+  {
+    addSamples(null, samples);
+  }
+
+  /**
+   * Adds a batch of samples to the patient db in a single transaction, so
+   * the journal is only synced once per batch. Rows are inserted through
+   * one compiled statement per table with bound values.
+   * @param accelerometer {@code AccelerometerWrapper} objects to be added,
+   * or {@code null}
+   * @param temperature {@code TemperatureWrapper} objects to be added,
+   * or {@code null}
+   */
+  public synchronized void addSamples(List<AccelerometerWrapper> accelerometer, List<TemperatureWrapper> temperature)
+  {
+    addBatch(accelerometer, temperature, null, null, null, -1, 0);
+  }
+
+  /**
+   * Adds a batch of samples, window summaries and activity features to the
+   * patient db in a single transaction. Any of the lists may be {@code null}.
+   * @param accelerometer {@code AccelerometerWrapper} objects to be added
+   * @param temperature {@code TemperatureWrapper} objects to be added
+   * @param accelerometerSummaries Summaries over
+   * {@link PatientDBHelper#ACC_SUMMARY_CHANNELS} to be added
+   * @param temperatureSummaries Summaries over
+   * {@link PatientDBHelper#TEM_SUMMARY_CHANNELS} to be added
+   * @param activity {@code ActivityFeatures} objects to be added
+   * @param sequence The sequence number of the newest sample of the batch,
+   * or -1 to leave the one stored unchanged
+   * @param sequenceTime The time of that sample, in ms since the epoch
+   * @return {@code true} if the batch was committed, {@code false} if the
+   * transaction failed and nothing was stored
+   */
+  public synchronized boolean addBatch(List<AccelerometerWrapper> accelerometer, List<TemperatureWrapper> temperature,
+                                    List<SampleSummary> accelerometerSummaries, List<SampleSummary> temperatureSummaries,
+                                    List<ActivityFeatures> activity, long sequence, long sequenceTime)
+  {
+    if (D) Log.i(TAG, "Adding " + (accelerometer == null ? 0 : accelerometer.size())
+                      + " accelerometer and "
+                      + (temperature == null ? 0 : temperature.size())
+                      + " temperature records");
+
+    SQLiteDatabase db = null;
+    try
+    {
+      db = getDatabase();
+      db.beginTransaction();
+      try
+      {
+        if (accelerometer != null && !accelerometer.isEmpty())
+          insertAccelerometerSamples(db, accelerometer);
+        if (temperature != null && !temperature.isEmpty())
+          insertTemperatureSamples(db, temperature);
+        if (accelerometerSummaries != null && !accelerometerSummaries.isEmpty())
+          insertSummaries(db, PatientDBHelper.ACC_SUMMARY_TABLE, ACC_SUMMARY_EXPORT_COLUMNS, accelerometerSummaries);
+        if (temperatureSummaries != null && !temperatureSummaries.isEmpty())
+          insertSummaries(db, PatientDBHelper.TEM_SUMMARY_TABLE, TEM_SUMMARY_EXPORT_COLUMNS, temperatureSummaries);
+        if (activity != null && !activity.isEmpty())
+          insertActivity(db, activity);
+        if (sequence >= 0)
+          updateLinkState(db, sequence, sequenceTime);
+        db.setTransactionSuccessful();
+      }
+      finally
+      {
+        db.endTransaction();
+      }
+      return true;
+    }
+    catch (SQLException e)
+    {
+      Log.e(TAG, "Could not insert batch into patient db: " + e);
+      return false;
+    }
+  }
+
+  /**
+   * Inserts accelerometer samples using a single compiled statement. Must
+   * be called inside a transaction.
+   */
+  private void insertAccelerometerSamples(SQLiteDatabase db, List<AccelerometerWrapper> samples)
+  {
+    SQLiteStatement insert = db.compileStatement(INSERT_ACC_SQL);
+    try
+    {
+      for (int i = 0, n = samples.size(); i < n; i++)
+      {
+        AccelerometerWrapper acc = samples.get(i);
+        insert.bindLong(1, uid);
+        insert.bindLong(2, acc.getTimestamp());
+        bindText(insert, 3, acc.getDeviceTimestamp());
+        insert.bindLong(4, (long) acc.getX());
+        insert.bindLong(5, (long) acc.getY());
+        insert.bindLong(6, (long) acc.getZ());
+        insert.executeInsert();
+      }
+    }
+    finally
+    {
+      insert.close();
+    }
+  }
+
+  /**
+   * Inserts temperature samples using a single compiled statement. Must
+   * be called inside a transaction.
+   */
+  private void insertTemperatureSamples(SQLiteDatabase db, List<TemperatureWrapper> samples)
+  {
+    SQLiteStatement insert = db.compileStatement(INSERT_TEM_SQL);
+    try
+    {
+      for (int i = 0, n = samples.size(); i < n; i++)
+      {
+        TemperatureWrapper tem = samples.get(i);
+        insert.bindLong(1, uid);
+        insert.bindLong(2, tem.getTimestamp());
+        bindText(insert, 3, tem.getDeviceTimestamp());
+        insert.bindLong(4, (long) tem.getValue1());
+        insert.bindLong(5, (long) tem.getValue2());
+        insert.executeInsert();
+      }
+    }
+    finally
+    {
+      insert.close();
+    }
+  }
+
+  /** Binds {@code value} to {@code index}, or null if there is none. */
+  private static void bindText(SQLiteStatement statement, int index, String value)
+  {
+    if (value == null)
+      statement.bindNull(index);
+    else
+      statement.bindString(index, value);
+  }
+
+  /**
+   * Stores the newest sample received from the embedded system. Must be
+   * called inside a transaction.
+   */
+  private void updateLinkState(SQLiteDatabase db, long sequence, long time)
+  {
+    SQLiteStatement update = db.compileStatement(UPDATE_LINK_SQL);
+    try
+    {
+      update.bindLong(1, sequence);
+      update.bindLong(2, time);
+      update.executeInsert();
+    }
+    finally
+    {
+      update.close();
+    }
+  }
+
+  /**
+   * @return The sequence number of the newest sample stored, -1 if none.
+   */
+  public long queryLastSequence()
+  {
+    return queryLinkState(PatientDBHelper.SEQUENCE, -1);
+  }
+
+  /**
+   * @return The time of the newest sample stored, in ms since the epoch,
+   * 0 if none.
+   */
+  public long queryLastSequenceTime()
+  {
+    return queryLinkState(PatientDBHelper.TIMESTAMP, 0);
+  }
+
+  /** Reads {@code column} of the link state, {@code empty} if there is none. */
+  private long queryLinkState(String column, long empty)
+  {
+    Cursor cursor = getDatabase().query(PatientDBHelper.LINK_TABLE, new String[] { column },
+                                        null, null, null, null, null);
+    try
+    {
+      return cursor.moveToFirst() ? cursor.getLong(0) : empty;
+    }
+    finally
+    {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Inserts activity features using a single compiled statement. Must be
+   * called inside a transaction.
+   */
+  private void insertActivity(SQLiteDatabase db, List<ActivityFeatures> activity)
+  {
+    SQLiteStatement insert = db.compileStatement(INSERT_ACTIVITY_SQL);
+    try
+    {
+      for (int i = 0, n = activity.size(); i < n; i++)
+      {
+        ActivityFeatures features = activity.get(i);
+        insert.bindLong(1, uid);
+        insert.bindLong(2, features.getTimestamp());
+        insert.bindLong(3, features.getDuration());
+        insert.bindLong(4, features.getCount());
+        insert.bindLong(5, features.getSteps());
+        insert.bindDouble(6, features.getCadence());
+        insert.bindDouble(7, features.getIntensity());
+        insert.bindLong(8, features.getActivityClass());
+        insert.bindLong(9, features.getUprightTime());
+        insert.bindLong(10, features.getSeatedTime());
+        insert.executeInsert();
+      }
+    }
+    finally
+    {
+      insert.close();
+    }
+  }
+
+  /**
+   * Inserts window summaries into {@code table} using a single compiled
+   * statement. Must be called inside a transaction.
+   * @param columns The export columns of {@code table}, whose statistics
+   * columns are in the order of the summary channels.
+   */
+  private void insertSummaries(SQLiteDatabase db, String table, String[] columns, List<SampleSummary> summaries)
+  {
+    StringBuilder sql = new StringBuilder("insert into ").append(table).append(" (");
+    StringBuilder values = new StringBuilder(") values (");
+    for (int i = 1; i < columns.length; i++)
+    {
+      sql.append(i > 1 ? ", " : "").append(columns[i]);
+      values.append(i > 1 ? ", ?" : "?");
+    }
+    SQLiteStatement insert = db.compileStatement(sql.append(values).append(")").toString());
+    try
+    {
+      for (int i = 0, n = summaries.size(); i < n; i++)
+      {
+        SampleSummary summary = summaries.get(i);
+        insert.bindLong(1, uid);
+        insert.bindLong(2, summary.getTimestamp());
+        insert.bindLong(3, summary.getDuration());
+        insert.bindLong(4, summary.getCount());
+        int index = SUMMARY_HEADER_COLUMNS;
+        for (int c = 0; c < summary.getChannelCount(); c++)
+        {
+          insert.bindDouble(index++, summary.getMin(c));
+          insert.bindDouble(index++, summary.getMax(c));
+          insert.bindDouble(index++, summary.getMean(c));
+          insert.bindDouble(index++, summary.getVariance(c));
+        }
+        insert.executeInsert();
+      }
+    }
+    finally
+    {
+      insert.close();
+    }
+  }
+
+  /**
+   * Returns at most {@code limit} entries of {@link PatientDBHelper#ACC_SUMMARY_TABLE}
+   * or {@link PatientDBHelper#TEM_SUMMARY_TABLE} with an ID greater than
+   * {@code latestId}, in ascending ID order. The columns are
+   * {@link #ACC_SUMMARY_EXPORT_COLUMNS} or {@link #TEM_SUMMARY_EXPORT_COLUMNS}.
+   * @param table The name of the summary table.
+   * @param latestId The highest ID already held by the server.
+   * @param limit The maximum number of entries to return.
+   * @return A {@code Cursor} over the entries, to be closed by the caller.
+   */
+  public Cursor queryLatestSummaries(String table, long latestId, int limit)
+  {
+    if (D) Log.i(TAG, "Getting " + table + " entries after " + latestId);
+    return getDatabase().query(
+                                table,
+                                PatientDBHelper.ACC_SUMMARY_TABLE.equals(table)
+                                ? ACC_SUMMARY_EXPORT_COLUMNS : TEM_SUMMARY_EXPORT_COLUMNS,
+                                PatientDBHelper.ID + " > " + latestId,
+                                null,
+                                null,
+                                null,
+                                PatientDBHelper.ID + " ASC",
+                                Integer.toString(limit)
+                              );
+  }
+
+  /**
+   * Returns at most {@code limit} entries of the activity table with an ID
+   * greater than {@code latestId}, in ascending ID order. The columns are
+   * {@link #ACTIVITY_EXPORT_COLUMNS}.
+   * @param latestId The highest ID already held by the server.
+   * @param limit The maximum number of entries to return.
+   * @return A {@code Cursor} over the entries, to be closed by the caller.
+   */
+  public Cursor queryLatestActivity(long latestId, int limit)
+  {
+    if (D) Log.i(TAG, "Getting activity entries after " + latestId);
+    return getDatabase().query(
+                                PatientDBHelper.ACTIVITY_TABLE,
+                                ACTIVITY_EXPORT_COLUMNS,
+                                PatientDBHelper.ID + " > " + latestId,
+                                null,
+                                null,
+                                null,
+                                PatientDBHelper.ID + " ASC",
+                                Integer.toString(limit)
+                              );
+  }
+
+  /**
+   * Returns at most {@code limit} entries of the accelerometer table with
+   * an ID greater than {@code latestId}, in ascending ID order. The columns
+   * are {@link #ACC_EXPORT_COLUMNS}.
+   * @param latestId The highest ID already held by the server.
+   * @param limit The maximum number of entries to return.
+   * @return A {@code Cursor} over the entries, to be closed by the caller.
+   */
+  public Cursor queryLatestAccelerometerSamples(long latestId, int limit)
+  {
+    if (D) Log.i(TAG, "Getting accelerometer samples after " + latestId);
+    return getDatabase().query(
+                                PatientDBHelper.ACC_TABLE,
+                                ACC_EXPORT_COLUMNS,
+                                PatientDBHelper.ID + " > " + latestId,
+                                null,
+                                null,
+                                null,
+                                PatientDBHelper.ID + " ASC",
+                                Integer.toString(limit)
+                              );
+  }
+
+  /**
+   * Returns at most {@code limit} entries of the temperature table with
+   * an ID greater than {@code latestId}, in ascending ID order. The columns
+   * are {@link #TEM_EXPORT_COLUMNS}.
+   * @param latestId The highest ID already held by the server.
+   * @param limit The maximum number of entries to return.
+   * @return A {@code Cursor} over the entries, to be closed by the caller.
+   */
+  public Cursor queryLatestTemperatureSamples(long latestId, int limit)
+  {
+    if (D) Log.i(TAG, "Getting temperature samples after " + latestId);
+    return getDatabase().query(
+                                PatientDBHelper.TEM_TABLE,
+                                TEM_EXPORT_COLUMNS,
+                                PatientDBHelper.ID + " > " + latestId,
+                                null,
+                                null,
+                                null,
+                                PatientDBHelper.ID + " ASC",
+                                Integer.toString(limit)
+                              );
+  }
+
+  /**
+   * Counts the entries of {@code table} with an ID greater than
+   * {@code latestId}, i.e. those not uploaded yet.
+   * @param table {@link PatientDBHelper#ACC_TABLE} or
+   * {@link PatientDBHelper#TEM_TABLE}.
+   * @param latestId The highest ID already held by the server.
+   * @return The number of pending entries.
+   */
+  public long countPendingSamples(String table, long latestId)
+  {
+    SQLiteStatement count = getDatabase().compileStatement(
+        "select count(*) from " + table + " where " + PatientDBHelper.ID + " > ?");
+    try
+    {
+      count.bindLong(1, latestId);
+      return count.simpleQueryForLong();
+    }
     finally
     {
-      if (db != null)
-        db.close();
+      count.close();
+    }
+  }
+
+  /**
+   * Deletes the oldest entries, up to and including ID {@code id}, at most
+   * {@code limit} IDs per call so writers are not held up for long.
+   * @param table {@link PatientDBHelper#ACC_TABLE} or
+   * {@link PatientDBHelper#TEM_TABLE}.
+   * @param id The highest ID that may be deleted.
+   * @param limit The maximum number of IDs covered by one call.
+   * @return The number of entries deleted, 0 once none are left up to {@code id}.
+   */
+  public synchronized int deleteUpTo(String table, long id, int limit)
+  {
+    return DBMaintenance.deleteUpTo(getDatabase(), table, id, limit);
+  }
+
+  /**
+   * @param table {@link PatientDBHelper#ACC_TABLE} or
+   * {@link PatientDBHelper#TEM_TABLE}.
+   * @return The highest ID in use, or 0 if there are no entries.
+   */
+  public synchronized long queryMaxId(String table)
+  {
+    return DBMaintenance.queryMaxId(getDatabase(), table);
+  }
+
+  /**
+   * Gives pages freed by deletions back to the file system, until there
+   * are none left or {@code deadline} has passed. A db created before
+   * incremental vacuum was used is only converted while no
+   * {@link SampleWriter} is running, since that rebuilds the whole file
+   * under the lock.
+   * @param deadline The {@code SystemClock.elapsedRealtime()} by which to stop.
+   * @return The number of pages freed.
+   */
+  public synchronized long compact(long deadline)
+  {
+    return DBMaintenance.compact(getDatabase(), deadline, mWriters == 0);
+  }
+
+  /**
+   * Counts a {@link SampleWriter} starting or ending, see
+   * {@link #compact(long)}.
+   * @param running {@code true} when a writer starts, {@code false} when it ends.
+   */
+  public synchronized void setWriterRunning(boolean running)
+  {
+    mWriters += running ? 1 : -1;
+  }
+
+  /**
+   * @return The size in bytes of the db file and its write-ahead log.
+   */
+  public long getFileSize()
+  {
+    return DBMaintenance.getFileSize(mPath);
+  }
+
+  /**
+   * Tells whether a schema migration of {@code table} has pending work,
+   * see {@link PatientDBHelper#MIGRATIONS}. Until it is done, IDs of
+   * {@code table} may not be in insertion order.
+   * @param table {@link PatientDBHelper#ACC_TABLE} or
+   * {@link PatientDBHelper#TEM_TABLE}.
+   * @return {@code true} while the migration of {@code table} is unfinished.
+   */
+  public synchronized boolean isMigrating(String table)
+  {
+    return SchemaMigration.isPending(getDatabase(), PatientDBHelper.MIGRATIONS, table);
+  }
+
+  /**
+   * Does one batch of the pending work of {@link PatientDBHelper#MIGRATIONS}.
+   * The lock is only held for one batch, so new samples are still added in
+   * between.
+   * @param limit The maximum number of entries handled.
+   * @return The number of entries handled, 0 once the migrations are finished.
+   */
+  public synchronized int migrateBatch(int limit)
+  {
+    return SchemaMigration.migrateBatch(getDatabase(), PatientDBHelper.MIGRATIONS, limit);
+  }
+
+  /**
+   * Returns the shared connection to the patient db, opening it if needed.
+   * Write-ahead logging is enabled where available, so readers on other
+   * threads do not block the writer.
+   * @return An open {@code SQLiteDatabase}.
+   */
+  private synchronized SQLiteDatabase getDatabase()
+  {
+    if (mDatabase == null || !mDatabase.isOpen())
+    {
+      mDatabase = dbHelper.getWritableDatabase();
+      if (dbHelper.takeCreated() && !DBMaintenance.isIncremental(mDatabase))
+        DBMaintenance.convertToIncremental(mDatabase);
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+        mDatabase.enableWriteAheadLogging();
+      mOpenCount++;
+      if (D) Log.i(TAG, "Opened db, " + mOpenCount + " opens and " + mCloseCount + " closes so far");
     }
+    return mDatabase;
+  }
+
+  /**
+   * Closes the shared connection. It is reopened on the next access, so
+   * this is only needed when the app shuts down.
+   */
+  public synchronized void close()
+  {
+    if (mDatabase != null)
+    {
+      dbHelper.close();
+      mDatabase = null;
+      mCloseCount++;
+    }
+  }
+
+  /**
+   * @return The number of times the db has been opened by this process.
+   */
+  public synchronized int getOpenCount()
+  {
+    return mOpenCount;
+  }
+
+  /**
+   * @return The number of times the db has been closed by this process.
+   */
+  public synchronized int getCloseCount()
+  {
+    return mCloseCount;
+  }
+
+  /** Builds the export columns of a summary table over {@code channels}. */
+  private static String[] getSummaryExportColumns(String[] channels)
+  {
+    String[] statistics = PatientDBHelper.getSummaryColumns(channels);
+    String[] columns = new String[SUMMARY_HEADER_COLUMNS + statistics.length];
+    columns[0] = PatientDBHelper.ID;
+    columns[1] = PatientDBHelper.UID;
+    columns[2] = PatientDBHelper.TIMESTAMP;
+    columns[3] = PatientDBHelper.DURATION;
+    columns[4] = PatientDBHelper.COUNT;
+    System.arraycopy(statistics, 0, columns, SUMMARY_HEADER_COLUMNS, statistics.length);
+    return columns;
+  }
+
+  /** Builds the types of the export columns of a summary table. */
+  private static int[] getSummaryExportTypes(String[] columns)
+  {
+    int[] types = new int[columns.length];
+    for (int i = 0; i < columns.length; i++)
+      types[i] = i < SUMMARY_HEADER_COLUMNS ? CursorJsonEntity.TYPE_INTEGER : CursorJsonEntity.TYPE_REAL;
+    return types;
   }
 
   /**
@@ -26,6 +26,8 @@ public class PatientDBHelper extends SQLiteOpenHelper
   public final static String UID = "user_id";
   /** Timestamp column name */
   public final static String TIMESTAMP = "timestamp";
+  /** Column name of the timestamp as sent by the embedded system */
+  public final static String DEVICE_TIMESTAMP = "device_timestamp";
   /** X axis column name */
   public final static String X_AXIS = "x";
   /** Y axis column name */
@@ -50,6 +52,131 @@ public class PatientDBHelper extends SQLiteOpenHelper
   /** Accuracy column name */
   public final static String ACCURACY = "accuracy";
 
+  /** Name of the table storing per-window accelerometer statistics. */
+  public final static String ACC_SUMMARY_TABLE = "accelerometer_summary";
+  /** Name of the table storing per-window temperature statistics. */
+  public final static String TEM_SUMMARY_TABLE = "temperature_summary";
+  /** Window length column name, in ms */
+  public final static String DURATION = "duration";
+  /** Sample count column name */
+  public final static String COUNT = "count";
+  /** Magnitude of the x, y and z axes, for the channel columns of a summary */
+  public final static String MAGNITUDE = "magnitude";
+  /** Channels of the accelerometer summary, in the order of {@link SampleSummary}. */
+  public final static String[] ACC_SUMMARY_CHANNELS = new String[] { X_AXIS, Y_AXIS, Z_AXIS, MAGNITUDE };
+  /** Channels of the temperature summary, in the order of {@link SampleSummary}. */
+  public final static String[] TEM_SUMMARY_CHANNELS = new String[] { VALUE1, VALUE2 };
+  /** Suffixes of the columns of each channel of a summary. */
+  public final static String[] SUMMARY_STATISTICS = new String[] { "_min", "_max", "_mean", "_variance" };
+
+  /** Name of the table storing per-window activity features. */
+  public final static String ACTIVITY_TABLE = "activity";
+  /** Step count column name */
+  public final static String STEPS = "steps";
+  /** Cadence column name, in steps per minute */
+  public final static String CADENCE = "cadence";
+  /** Intensity column name, relative to gravity */
+  public final static String INTENSITY = "intensity";
+  /** Activity class column name, see {@link ActivityFeatures} */
+  public final static String ACTIVITY_CLASS = "activity_class";
+  /** Upright time column name, in ms */
+  public final static String UPRIGHT_TIME = "upright_time";
+  /** Seated time column name, in ms */
+  public final static String SEATED_TIME = "seated_time";
+
+  /** Name of the table holding the state of the link to the embedded system. */
+  public final static String LINK_TABLE = "link_state";
+  /** Sequence number column name */
+  public final static String SEQUENCE = "sequence";
+
+  /** Statements creating the accelerometer table, as of version 2. */
+  private final static String[] ACC_TABLE_V2 = new String[] {
+    "create table " + ACC_TABLE + " ("
+      + ID + " integer primary key autoincrement, "
+      + UID + " integer, "
+      + TIMESTAMP + " integer, "
+      + DEVICE_TIMESTAMP + " text, "
+      + X_AXIS + " integer, "
+      + Y_AXIS + " integer, "
+      + Z_AXIS + " integer);",
+    "create index " + ACC_TABLE + "_" + UID + "_" + TIMESTAMP
+      + " on " + ACC_TABLE + " (" + UID + ", " + TIMESTAMP + ");"
+  };
+
+  /** Statements creating the temperature table, as of version 2. */
+  private final static String[] TEM_TABLE_V2 = new String[] {
+    "create table " + TEM_TABLE + " ("
+      + ID + " integer primary key autoincrement, "
+      + UID + " integer, "
+      + TIMESTAMP + " integer, "
+      + DEVICE_TIMESTAMP + " text, "
+      + VALUE1 + " integer, "
+      + VALUE2 + " integer);",
+    "create index " + TEM_TABLE + "_" + UID + "_" + TIMESTAMP
+      + " on " + TEM_TABLE + " (" + UID + ", " + TIMESTAMP + ");"
+  };
+
+  /** Statements creating the accelerometer summary table, as of version 3. */
+  private final static String[] ACC_SUMMARY_TABLE_V3 = createSummaryTableSql(ACC_SUMMARY_TABLE, ACC_SUMMARY_CHANNELS);
+
+  /** Statements creating the temperature summary table, as of version 3. */
+  private final static String[] TEM_SUMMARY_TABLE_V3 = createSummaryTableSql(TEM_SUMMARY_TABLE, TEM_SUMMARY_CHANNELS);
+
+  /** Statements creating the activity table, as of version 4. */
+  private final static String[] ACTIVITY_TABLE_V4 = new String[] {
+    "create table " + ACTIVITY_TABLE + " ("
+      + ID + " integer primary key autoincrement, "
+      + UID + " integer, "
+      + TIMESTAMP + " integer, "
+      + DURATION + " integer, "
+      + COUNT + " integer, "
+      + STEPS + " integer, "
+      + CADENCE + " real, "
+      + INTENSITY + " real, "
+      + ACTIVITY_CLASS + " integer, "
+      + UPRIGHT_TIME + " integer, "
+      + SEATED_TIME + " integer);",
+    "create index " + ACTIVITY_TABLE + "_" + UID + "_" + TIMESTAMP
+      + " on " + ACTIVITY_TABLE + " (" + UID + ", " + TIMESTAMP + ");"
+  };
+
+  /**
+   * Statements creating the link state table, as of version 5. It holds a
+   * single row, with ID 0, for the newest sample stored.
+   */
+  private final static String[] LINK_TABLE_V5 = new String[] {
+    "create table " + LINK_TABLE + " ("
+      + ID + " integer primary key, "
+      + SEQUENCE + " integer, "
+      + TIMESTAMP + " integer);"
+  };
+
+  /**
+   * Schema history of the patient db, sorted by version. Version 2 stores
+   * timestamps as integer ms since the epoch, indexed together with the user
+   * id, and keeps the text timestamp sent by the embedded system next to
+   * them, since legacy counters cannot be converted. Version 3 adds the summary tables, version 4
+   * the activity table and version 5 the link state table.
+   */
+  public final static SchemaMigration[] MIGRATIONS = new SchemaMigration[] {
+    new TableRebuildMigration(2, ACC_TABLE, ACC_TABLE_V2,
+                              ID + ", " + UID + ", " + TIMESTAMP + ", " + DEVICE_TIMESTAMP + ", "
+                              + X_AXIS + ", " + Y_AXIS + ", " + Z_AXIS,
+                              ID + ", " + UID + ", " + DBMaintenance.epochMillisSql(TIMESTAMP) + ", " + TIMESTAMP + ", "
+                              + X_AXIS + ", " + Y_AXIS + ", " + Z_AXIS),
+    new TableRebuildMigration(2, TEM_TABLE, TEM_TABLE_V2,
+                              ID + ", " + UID + ", " + TIMESTAMP + ", " + DEVICE_TIMESTAMP + ", "
+                              + VALUE1 + ", " + VALUE2,
+                              ID + ", " + UID + ", " + DBMaintenance.epochMillisSql(TIMESTAMP) + ", " + TIMESTAMP + ", "
+                              + VALUE1 + ", " + VALUE2),
+    new SqlMigration(3, ACC_SUMMARY_TABLE_V3),
+    new SqlMigration(3, TEM_SUMMARY_TABLE_V3),
+    new SqlMigration(4, ACTIVITY_TABLE_V4),
+    new SqlMigration(5, LINK_TABLE_V5)
+  };
+
+  /** Current version of the db schema. */
+  public final static int VERSION = SchemaMigration.getLatestVersion(MIGRATIONS);
 
   /**
    * Constructs an object of type {@code PatientDBHelper}.
@@ -59,10 +186,13 @@ public class PatientDBHelper extends SQLiteOpenHelper
    */
   public PatientDBHelper(Context context, String path)
   {
-    super(context, path, null, 1);
+    super(context, path, null, VERSION);
     if (D) Log.i(TAG, "Create a PatientDBHelper.");
   }
 
+  /** Set once {@link #onCreate(SQLiteDatabase)} has run. */
+  private boolean mCreated = false;
+
   /**
    * Creates new accelerometer table and temperature table inside the 
    * patient db if it doesn't exist already. 
@@ -72,33 +202,80 @@ public class PatientDBHelper extends SQLiteOpenHelper
   public void onCreate(SQLiteDatabase db)
   {
     if (D) Log.i(TAG, "onCreate called.");
-    String createAccSQL = "create table " 
-                        + ACC_TABLE 
-                        + " (" 
-                        + ID + " integer primary key autoincrement, "
-                        + UID + " integer, " 
-                        + TIMESTAMP + " text, "
-                        + X_AXIS + " integer, "
-                        + Y_AXIS + " integer, "
-                        + Z_AXIS + " integer);";
-    db.execSQL(createAccSQL);
-
-   String createTemSQL = "create table " 
-                       + TEM_TABLE 
-                       + " (" 
-                       + ID + " integer primary key autoincrement, " 
-                       + UID + " integer, "          
-                       + TIMESTAMP + " text, "
-                       + VALUE1 + " integer, "
-                       + VALUE2 + " integer);";
-    db.execSQL(createTemSQL);
-
-    
+    db.execSQL(DBMaintenance.AUTO_VACUUM_SQL);
+    mCreated = true;
+    execSQL(db, ACC_TABLE_V2);
+    execSQL(db, TEM_TABLE_V2);
+    execSQL(db, ACC_SUMMARY_TABLE_V3);
+    execSQL(db, TEM_SUMMARY_TABLE_V3);
+    execSQL(db, ACTIVITY_TABLE_V4);
+    execSQL(db, LINK_TABLE_V5);
   }
 
   /**
-   * Should upgrade the structure of the database. Stub method only.
+   * Upgrades the structure of the db through {@link #MIGRATIONS}. Existing
+   * entries are moved afterwards, in batches, by {@link MigrationRunner}.
    */
   @Override
-  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+  {
+    if (D) Log.i(TAG, "Upgrading from version " + oldVersion + " to " + newVersion);
+    SchemaMigration.upgrade(db, MIGRATIONS, oldVersion, newVersion);
+  }
+
+  /**
+   * Tells whether the db was created by the last open, once. Android adds
+   * its own metadata table before {@link #onCreate(SQLiteDatabase)}, so the
+   * new db still has to be switched to incremental vacuum, which is cheap
+   * while it is empty.
+   * @return {@code true} the first time it is called after the db was created.
+   */
+  public boolean takeCreated()
+  {
+    boolean created = mCreated;
+    mCreated = false;
+    return created;
+  }
+
+  /**
+   * Returns the names of the statistics columns of a summary table, e.g.
+   * {@code x_min, x_max, x_mean, x_variance, y_min, ...}.
+   * @param channels The channels of the summary.
+   * @return The column names, channel by channel.
+   */
+  public static String[] getSummaryColumns(String[] channels)
+  {
+    String[] columns = new String[channels.length * SUMMARY_STATISTICS.length];
+    for (int i = 0; i < channels.length; i++)
+      for (int j = 0; j < SUMMARY_STATISTICS.length; j++)
+        columns[i * SUMMARY_STATISTICS.length + j] = channels[i] + SUMMARY_STATISTICS[j];
+    return columns;
+  }
+
+  /** Builds the statements creating a summary table and its index. */
+  private static String[] createSummaryTableSql(String table, String[] channels)
+  {
+    StringBuilder sql = new StringBuilder("create table ").append(table).append(" (")
+      .append(ID).append(" integer primary key autoincrement, ")
+      .append(UID).append(" integer, ")
+      .append(TIMESTAMP).append(" integer, ")
+      .append(DURATION).append(" integer, ")
+      .append(COUNT).append(" integer");
+    String[] columns = getSummaryColumns(channels);
+    for (int i = 0; i < columns.length; i++)
+      sql.append(", ").append(columns[i]).append(" real");
+    sql.append(");");
+    return new String[] {
+      sql.toString(),
+      "create index " + table + "_" + UID + "_" + TIMESTAMP
+        + " on " + table + " (" + UID + ", " + TIMESTAMP + ");"
+    };
+  }
+
+  /** Runs each of {@code statements}. */
+  private static void execSQL(SQLiteDatabase db, String[] statements)
+  {
+    for (int i = 0; i < statements.length; i++)
+      db.execSQL(statements[i]);
+  }
 }
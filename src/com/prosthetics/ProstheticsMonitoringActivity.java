@@ -19,10 +19,13 @@ import android.content.IntentFilter;
 import android.content.Intent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.ComponentName;
+import android.content.ServiceConnection;
 import android.widget.Toast;
 import android.widget.ArrayAdapter;
 import android.os.Handler;
 import android.os.Message;
+import android.os.IBinder;
 import android.app.ActionBar;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -69,8 +72,9 @@ public class ProstheticsMonitoringActivity extends Activity
   // Local Bluetooth adapter
   private BluetoothAdapter mBluetoothAdapter = null;
 
-  // Member object for the link services
-  private BluetoothLinkService mLinkService = null;
+  // Service owning the link, set while bound
+  private IngestService mIngestService = null;
+  private boolean mBound = false;
 
   // Number of attempts to connect Bluetooth device
   private int count = 0;
@@ -102,18 +106,16 @@ public class ProstheticsMonitoringActivity extends Activity
     {
       startLocationGathering();
       // If BT is not on, request that it be enabled.
-      // setupLink() will then be called during onActivityResult
+      // startIngest() will then be called during onActivityResult
       if (!mBluetoothAdapter.isEnabled())
       {
         Intent enableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
         startActivityForResult(enableIntent, REQUEST_ENABLE_BT);
-      // Otherwise, setup the link session
+      // Otherwise, start the ingest service
       }
       else
       {
-        if (mLinkService == null)
-          setupLink();
-          connectDevice();
+        startIngest();
       }
    }
   }
@@ -126,17 +128,17 @@ public class ProstheticsMonitoringActivity extends Activity
   }
 
   /**
-  * Initialises a {@code BluetoothLinkService} object
-  * and calls {@code connectDevice()} to connect to the
-  * partner embedded system.
-  * @see #BluetoothLinkService(Activity, Handler)
+  * Starts the {@code IngestService}, which connects to the
+  * partner embedded system, and binds to it to follow the link.
+  * The service keeps running once the activity is destroyed.
+  * @see IngestService
   * @see #connectDevice()
   */
-  private void setupLink()
+  private void startIngest()
   {
-    if(D) Log.d(TAG, "setupLink()");
-    // Initialize the BluetoothLinkService to perform bluetooth connections
-    mLinkService = new BluetoothLinkService(this, mHandler);
+    if(D) Log.d(TAG, "startIngest()");
+    connectDevice();
+    mBound = bindService(new Intent(this, IngestService.class), mConnection, 0);
     // Initialize the buffer for outgoing messages
     mOutStringBuffer = new StringBuffer("");
   }
@@ -159,8 +161,13 @@ public class ProstheticsMonitoringActivity extends Activity
   public void onDestroy()
   {
     super.onDestroy();
-    // Stop the BluetoothLinkService
-    if (mLinkService != null) mLinkService.stop();
+    // Stop following the link, the IngestService keeps collecting
+    if (mBound)
+    {
+      if (mIngestService != null) mIngestService.setObserver(null);
+      unbindService(mConnection);
+      mBound = false;
+    }
     stopLocationGathering();
     if(D) Log.e(TAG, "--- ON DESTROY ---");
   }
@@ -207,7 +214,30 @@ public class ProstheticsMonitoringActivity extends Activity
     stopService(intent);
   }
 
-  // The Handler that gets information back from the BluetoothLinkService
+  // Gets hold of the IngestService once bound
+  private final ServiceConnection mConnection = new ServiceConnection()
+  {
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder service)
+    {
+      if(D) Log.d(TAG, "onServiceConnected()");
+      mIngestService = ((IngestService.LocalBinder) service).getService();
+      mConnectedDeviceName = mIngestService.getConnectedDeviceName();
+      mIngestService.setObserver(mHandler);
+      // Show the state the link was in before binding
+      mHandler.obtainMessage(MESSAGE_STATE_CHANGE, mIngestService.getState(), -1).sendToTarget();
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name)
+    {
+      if(D) Log.d(TAG, "onServiceDisconnected()");
+      mIngestService = null;
+      setStatus(R.string.title_not_connected);
+    }
+  };
+
+  // The Handler that gets information back from the IngestService
   private final Handler mHandler = new Handler()
   {
     @Override
@@ -250,20 +280,9 @@ public class ProstheticsMonitoringActivity extends Activity
         case MESSAGE_TOAST:
           String t = msg.getData().getString(TOAST);
           Toast.makeText(getApplicationContext(), t, Toast.LENGTH_SHORT).show();
-          // if the connection was lost try to reconnect
+          // BluetoothLinkService reconnects by itself, with backoff
           if(t.equals(CONN_LOST)|| t.equals(CONN_FAIL))
-          {
             Log.i(TAG, t);
-            if (mLinkService != null)
-            {
-              connectDevice();
-            }
-            else
-            {
-              setupLink();
-              connectDevice();
-            }
-          }
           break;
       }
     }
@@ -285,8 +304,8 @@ public class ProstheticsMonitoringActivity extends Activity
         // When the request to enable Bluetooth returns
         if (resultCode == Activity.RESULT_OK)
         {
-          // Bluetooth is now enabled, so set up a link session
-          setupLink();
+          // Bluetooth is now enabled, so start the ingest service
+          startIngest();
         }
         else
         {
@@ -299,18 +318,14 @@ public class ProstheticsMonitoringActivity extends Activity
   }
 
   /**
-  * Creates a {@code BluetoothDevice} object which relates to the
-  * embedded systems Bluetooth module. It then attempts to connect
-  * to the module.
-  * @see BluetoothDevice
-  * @see BluetoothLinkService#connect(BluetoothDevice)
+  * Asks the {@code IngestService} to connect to the embedded
+  * systems Bluetooth module, starting the service if need be.
+  * Nothing is done if the link is already up or being made.
+  * @see IngestService#onStartCommand(Intent, int, int)
   */
   private void connectDevice()
   {
-    // Get the BluetoothDevice object
-    BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(MAC_ADDRESS);
-    // Attempt to connect to the device
-    mLinkService.connect(device);
+    startService(new Intent(this, IngestService.class));
   }
 
   private final void setStatus(int resId)
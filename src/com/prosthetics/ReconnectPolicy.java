@@ -0,0 +1,185 @@
+package com.prosthetics;
+
+import java.util.Random;
+
+/**
+ * Decides when {@link BluetoothLinkService} tries to connect again to the
+ * embedded system after a connection was lost or could not be made, and
+ * counts how reconnecting goes.
+ * <p>
+ * Right after an established connection is lost, the drop is most likely
+ * short, e.g. the patient briefly out of range, so the first
+ * {@link #FAST_ATTEMPTS} attempts are made {@link #FAST_DELAY} ms apart.
+ * Past those, and for a connection that was never made, the delay doubles
+ * from {@link #BASE_DELAY} up to {@link #MAX_DELAY} with each failure, with
+ * jitter, sparing the battery while the prosthesis is out of reach.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see BluetoothLinkService
+ */
+public class ReconnectPolicy
+{
+  /** Delay in ms between the attempts of the fast path. */
+  public static final long FAST_DELAY = 1000;
+  /** Number of attempts on the fast path after a connection is lost. */
+  public static final int FAST_ATTEMPTS = 3;
+  /** Delay in ms after the first failure past the fast path. */
+  public static final long BASE_DELAY = 5 * 1000;
+  /** Longest delay in ms between two attempts. */
+  public static final long MAX_DELAY = 5 * 60 * 1000;
+
+  private final Random mRandom = new Random();
+
+  private int mFailures = 0;
+  private int mFastAttemptsLeft = 0;
+  /** {@code SystemClock.elapsedRealtime()} of the loss or first failure, -1 if none. */
+  private long mLostAt = -1;
+
+  // Counters
+  private long mAttempts = 0;
+  private long mConnections = 0;
+  private long mFailedAttempts = 0;
+  private long mReconnects = 0;
+  private long mLastReconnectTime = 0;
+  private long mMaxReconnectTime = 0;
+  private long mTotalReconnectTime = 0;
+
+  /** Counts an attempt to connect. */
+  public synchronized void onAttempt()
+  {
+    mAttempts++;
+  }
+
+  /**
+   * Records a successful connection, and the time it took to reconnect if
+   * a connection had been lost before.
+   * @param now The current {@code SystemClock.elapsedRealtime()}.
+   */
+  public synchronized void onConnected(long now)
+  {
+    mConnections++;
+    if (mLostAt >= 0)
+    {
+      mReconnects++;
+      mLastReconnectTime = now - mLostAt;
+      mTotalReconnectTime += mLastReconnectTime;
+      if (mLastReconnectTime > mMaxReconnectTime)
+        mMaxReconnectTime = mLastReconnectTime;
+    }
+    mLostAt = -1;
+    mFailures = 0;
+    mFastAttemptsLeft = 0;
+  }
+
+  /**
+   * Records the loss of an established connection.
+   * @param now The current {@code SystemClock.elapsedRealtime()}.
+   * @return The delay in ms before the next attempt.
+   */
+  public synchronized long onConnectionLost(long now)
+  {
+    mLostAt = now;
+    mFailures = 0;
+    mFastAttemptsLeft = FAST_ATTEMPTS;
+    return nextDelay();
+  }
+
+  /**
+   * Records a failed attempt to connect.
+   * @param now The current {@code SystemClock.elapsedRealtime()}.
+   * @return The delay in ms before the next attempt.
+   */
+  public synchronized long onConnectFailed(long now)
+  {
+    mFailedAttempts++;
+    if (mLostAt < 0)
+      mLostAt = now;
+    return nextDelay();
+  }
+
+  /** Forgets any ongoing reconnection, e.g. when the user disconnects. */
+  public synchronized void reset()
+  {
+    mLostAt = -1;
+    mFailures = 0;
+    mFastAttemptsLeft = 0;
+  }
+
+  /** Takes a fast attempt if any is left, otherwise backs off further. */
+  private long nextDelay()
+  {
+    if (mFastAttemptsLeft > 0)
+    {
+      mFastAttemptsLeft--;
+      return FAST_DELAY;
+    }
+    long delay = mFailures < 30 ? Math.min(MAX_DELAY, BASE_DELAY << mFailures) : MAX_DELAY;
+    mFailures++;
+    // Equal jitter: at least half of the delay, at most all of it
+    return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+  }
+
+  /**
+   * @return The number of attempts to connect.
+   */
+  public synchronized long getAttemptCount()
+  {
+    return mAttempts;
+  }
+
+  /**
+   * @return The number of connections made.
+   */
+  public synchronized long getConnectionCount()
+  {
+    return mConnections;
+  }
+
+  /**
+   * @return The number of attempts that failed.
+   */
+  public synchronized long getFailedAttemptCount()
+  {
+    return mFailedAttempts;
+  }
+
+  /**
+   * @return The number of connections made after one was lost or failed.
+   */
+  public synchronized long getReconnectCount()
+  {
+    return mReconnects;
+  }
+
+  /**
+   * @return The time in ms the last reconnection took.
+   */
+  public synchronized long getLastReconnectTime()
+  {
+    return mLastReconnectTime;
+  }
+
+  /**
+   * @return The longest time in ms a reconnection took.
+   */
+  public synchronized long getMaxReconnectTime()
+  {
+    return mMaxReconnectTime;
+  }
+
+  /**
+   * @return The mean time in ms a reconnection took.
+   */
+  public synchronized long getMeanReconnectTime()
+  {
+    return mReconnects > 0 ? mTotalReconnectTime / mReconnects : 0;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return mAttempts + " attempts, " + mConnections + " connections, "
+         + mFailedAttempts + " failed, " + mReconnects + " reconnects taking "
+         + getMeanReconnectTime() + " ms mean, " + mMaxReconnectTime + " ms max";
+  }
+}
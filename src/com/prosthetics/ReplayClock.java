@@ -0,0 +1,144 @@
+package com.prosthetics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Gives each frame received from the embedded system its time. Live frames
+ * are stamped with the time they arrive, but frames replayed after a
+ * reconnection arrive in a burst long after they were sampled. While
+ * replaying, and for any frame older than the newest one seen, the time is
+ * instead estimated from the sequence number and the sample period measured
+ * on the live stream, counting from the newest frame stamped so far.
+ * Replaying ends once the estimate catches up with the current time.
+ * <p>
+ * The sample period is kept in the app's {@code SharedPreferences} so
+ * frames replayed right after the app restarts can be placed too. Instances
+ * are used by one reading thread at a time.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see BluetoothLinkService
+ * @see LinkStats
+ */
+public class ReplayClock
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "ReplayClock";
+  private static final boolean D = true;
+
+  /** Weight of a new measurement in the average sample period. */
+  private static final double PERIOD_WEIGHT = 0.2;
+  /**
+   * Time in ms over which the sample period is measured, long enough to
+   * even out frames arriving in bunches.
+   */
+  private static final long PERIOD_SPAN = 5000;
+
+  /** Name of the preferences file. */
+  private static final String PREFS_NAME = "link";
+  private static final String KEY_PERIOD = "sample_period";
+
+  private final SharedPreferences mPrefs;
+  private double mPeriod;
+  private long mSequence = -1;
+  private long mTime;
+  private boolean mReplaying = false;
+  // Start of the run of consecutive live frames the period is measured on
+  private long mSpanSequence = -1;
+  private long mSpanTime;
+
+  /**
+   * Constructs an object of type {@code ReplayClock}.
+   * @param context The {@code Context} used to open the preferences.
+   */
+  public ReplayClock(Context context)
+  {
+    mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    mPeriod = mPrefs.getFloat(KEY_PERIOD, 0);
+  }
+
+  /**
+   * Starts placing frames replayed after {@code sequence}.
+   * @param sequence The sequence number of the last frame stored, or -1 if
+   * none.
+   * @param time The time of that frame, in ms since the epoch.
+   */
+  public void startReplay(long sequence, long time)
+  {
+    if (sequence < 0)
+      return;
+    if (mSequence < 0 || sequence > mSequence)
+    {
+      mSequence = sequence;
+      mTime = time;
+    }
+    mReplaying = mPeriod > 0;
+    if (D) Log.i(TAG, "Replaying after " + sequence + ", sample period " + mPeriod + " ms");
+  }
+
+  /**
+   * Returns the time of a frame and takes it into account for the next ones.
+   * @param sequence The sequence number of the frame, or -1 if it has none.
+   * @param now The current time, in ms since the epoch.
+   * @return The time of the frame, in ms since the epoch.
+   */
+  public long getTime(long sequence, long now)
+  {
+    if (sequence < 0 || mSequence < 0 || mSequence - sequence >= LinkStats.DUPLICATE_WINDOW)
+    {
+      // Unsequenced, first frame or the embedded system restarted its count
+      mReplaying = false;
+      mSequence = sequence;
+      mTime = now;
+      mSpanSequence = -1;
+      return now;
+    }
+
+    if (sequence <= mSequence)
+      // Backfill of a frame older than the newest one
+      return mPeriod > 0 ? mTime - Math.round((mSequence - sequence) * mPeriod) : now;
+
+    long time = now;
+    if (mReplaying)
+    {
+      long estimate = mTime + Math.round((sequence - mSequence) * mPeriod);
+      if (estimate < now)
+        time = estimate;
+      else
+        mReplaying = false;
+      mSpanSequence = -1;
+    }
+    else if (mSpanSequence < 0 || sequence != mSequence + 1)
+    {
+      mSpanSequence = sequence;
+      mSpanTime = now;
+    }
+    else if (now - mSpanTime >= PERIOD_SPAN)
+    {
+      double period = (double) (now - mSpanTime) / (sequence - mSpanSequence);
+      mPeriod = mPeriod > 0 ? mPeriod + PERIOD_WEIGHT * (period - mPeriod) : period;
+      mSpanSequence = sequence;
+      mSpanTime = now;
+    }
+    mSequence = sequence;
+    mTime = time;
+    return time;
+  }
+
+  /**
+   * @return {@code true} while frames are placed by their sequence number
+   * rather than by the time they arrive.
+   */
+  public boolean isReplaying()
+  {
+    return mReplaying;
+  }
+
+  /** Keeps the sample period for the next time the app starts. */
+  public void save()
+  {
+    if (mPeriod > 0)
+      mPrefs.edit().putFloat(KEY_PERIOD, (float) mPeriod).commit();
+  }
+}
@@ -0,0 +1,168 @@
+package com.prosthetics;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps the local dbs from growing without bound. Entries are deleted once
+ * the server has acknowledged them (see {@link SyncState#getHighWaterMark})
+ * and they are older than the maximum age, and the freed pages are then
+ * given back to the file system with incremental vacuum. Deletion and vacuum
+ * both work in small steps and within a time budget, so the Bluetooth writer
+ * is never held up for long.
+ * <p>
+ * The age of an entry is tracked by ID rather than by timestamp, since
+ * timestamps follow the phone clock, which may be set back and forth, and
+ * those of replayed samples are estimates: each pass remembers the
+ * highest ID of each table and when it saw it, and once that mark is older
+ * than the maximum age, every entry up to it may go. Entries are therefore
+ * kept for at least the maximum age and at most twice as long.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see DBMaintenance
+ * @see SyncService
+ */
+public class RetentionManager
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "RetentionManager";
+  private static final boolean D = true;
+
+  /** Age in ms after which uploaded entries are deleted, unless configured otherwise. */
+  public static final long DEFAULT_MAX_AGE = 7 * AlarmManager.INTERVAL_DAY;
+  /** Minimum time in ms between two passes. */
+  private static final long RUN_INTERVAL = 6 * AlarmManager.INTERVAL_HOUR;
+  /** Number of IDs deleted per step. */
+  private static final int DELETE_CHUNK = 2000;
+  /** Time in ms a pass may spend deleting from one table. */
+  private static final long DELETE_BUDGET = 10000;
+  /** Time in ms a pass may spend compacting one db. */
+  private static final long VACUUM_BUDGET = 5000;
+
+  /** Name of the preferences file. */
+  private static final String PREFS_NAME = "retention";
+  private static final String KEY_MAX_AGE = "max_age";
+  private static final String KEY_LAST_RUN = "last_run";
+  private static final String KEY_MARK_ID = "mark_id_";
+  private static final String KEY_MARK_TIME = "mark_time_";
+  private static final String KEY_CUTOFF = "cutoff_";
+
+  private final Context mContext;
+  private final SharedPreferences mPrefs;
+
+  /**
+   * Constructs an object of type {@code RetentionManager}.
+   * @param context The {@code Context} used to open the dbs and preferences.
+   */
+  public RetentionManager(Context context)
+  {
+    mContext = context.getApplicationContext();
+    mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+  }
+
+  /**
+   * @return The age in ms after which uploaded entries are deleted.
+   */
+  public long getMaxAge()
+  {
+    return mPrefs.getLong(KEY_MAX_AGE, DEFAULT_MAX_AGE);
+  }
+
+  /**
+   * Sets the age after which uploaded entries are deleted.
+   * @param maxAge The age in ms.
+   */
+  public void setMaxAge(long maxAge)
+  {
+    mPrefs.edit().putLong(KEY_MAX_AGE, maxAge).commit();
+  }
+
+  /**
+   * Runs a pass if none has run for {@link #RUN_INTERVAL}.
+   */
+  public void runIfDue()
+  {
+    if (System.currentTimeMillis() - mPrefs.getLong(KEY_LAST_RUN, 0) >= RUN_INTERVAL)
+      run();
+  }
+
+  /**
+   * Deletes the uploaded entries older than the maximum age from every
+   * synchronised table, then compacts both dbs, logging the file sizes.
+   */
+  public void run()
+  {
+    mPrefs.edit().putLong(KEY_LAST_RUN, System.currentTimeMillis()).commit();
+    SyncState syncState = new SyncState(mContext);
+    PatientDB patientDB = PatientDB.getInstance(mContext);
+    LocationsDB locationsDB = LocationsDB.getInstance(mContext);
+    long patientSize = patientDB.getFileSize();
+    long locationsSize = locationsDB.getFileSize();
+
+    // Locations
+    long cutoff = getCutoff(LocationsDBHelper.TABLE, locationsDB.queryMaxId(),
+                            syncState.getHighWaterMark(LocationsDBHelper.TABLE));
+    long deleted = 0;
+    long deadline = SystemClock.elapsedRealtime() + DELETE_BUDGET;
+    for (int n; SystemClock.elapsedRealtime() < deadline
+                && (n = locationsDB.deleteUpTo(cutoff, DELETE_CHUNK)) > 0; )
+      deleted += n;
+    if (D) Log.i(TAG, "Deleted " + deleted + " entries up to " + cutoff + " from " + LocationsDBHelper.TABLE);
+
+    // Sensor samples, their summaries and activity features
+    String[] tables = new String[] { PatientDBHelper.ACC_TABLE, PatientDBHelper.TEM_TABLE,
+                                     PatientDBHelper.ACC_SUMMARY_TABLE, PatientDBHelper.TEM_SUMMARY_TABLE,
+                                     PatientDBHelper.ACTIVITY_TABLE };
+    for (int i = 0; i < tables.length; i++)
+    {
+      cutoff = getCutoff(tables[i], patientDB.queryMaxId(tables[i]),
+                         syncState.getHighWaterMark(tables[i]));
+      deleted = 0;
+      deadline = SystemClock.elapsedRealtime() + DELETE_BUDGET;
+      for (int n; SystemClock.elapsedRealtime() < deadline
+                  && (n = patientDB.deleteUpTo(tables[i], cutoff, DELETE_CHUNK)) > 0; )
+        deleted += n;
+      if (D) Log.i(TAG, "Deleted " + deleted + " entries up to " + cutoff + " from " + tables[i]);
+    }
+
+    long freed = locationsDB.compact(SystemClock.elapsedRealtime() + VACUUM_BUDGET);
+    Log.i(TAG, "Locations db: " + locationsSize + " bytes before, "
+               + locationsDB.getFileSize() + " bytes after, " + freed + " pages freed");
+    freed = patientDB.compact(SystemClock.elapsedRealtime() + VACUUM_BUDGET);
+    Log.i(TAG, "Patient db: " + patientSize + " bytes before, "
+               + patientDB.getFileSize() + " bytes after, " + freed + " pages freed");
+  }
+
+  /**
+   * Returns the highest ID of {@code table} that may be deleted, and moves
+   * the age mark of the table forward once it has expired. The cutoff is
+   * kept until a later pass catches up with it, in case a pass runs out of
+   * time.
+   * @param table The name of the table.
+   * @param maxId The highest ID currently in {@code table}.
+   * @param highWaterMark The highest ID acknowledged by the server.
+   * @return The cutoff ID, 0 if nothing may be deleted.
+   */
+  private long getCutoff(String table, long maxId, long highWaterMark)
+  {
+    long now = System.currentTimeMillis();
+    long markId = mPrefs.getLong(KEY_MARK_ID + table, -1);
+    long markTime = mPrefs.getLong(KEY_MARK_TIME + table, 0);
+    long cutoff = mPrefs.getLong(KEY_CUTOFF + table, 0);
+    // A clock set backwards restarts the mark without deleting anything
+    if (markId < 0 || now - markTime >= getMaxAge() || now < markTime)
+    {
+      if (markId >= 0 && now >= markTime)
+        cutoff = Math.max(cutoff, markId);
+      mPrefs.edit()
+            .putLong(KEY_MARK_ID + table, maxId)
+            .putLong(KEY_MARK_TIME + table, now)
+            .putLong(KEY_CUTOFF + table, cutoff)
+            .commit();
+    }
+    return Math.min(cutoff, highWaterMark);
+  }
+}
@@ -0,0 +1,88 @@
+package com.prosthetics;
+
+/**
+ * Minimum, maximum, mean and variance of a stream of values, updated in
+ * constant time and space per value with Welford's algorithm, which stays
+ * accurate where summing squares would lose precision.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see SampleAggregator
+ */
+public class RunningStats
+{
+  private int mCount;
+  private double mMin;
+  private double mMax;
+  private double mMean;
+  private double mM2;
+
+  /**
+   * Adds a value to the statistics.
+   * @param value The value.
+   */
+  public void add(double value)
+  {
+    if (mCount == 0)
+    {
+      mMin = value;
+      mMax = value;
+    }
+    else if (value < mMin)
+      mMin = value;
+    else if (value > mMax)
+      mMax = value;
+    mCount++;
+    double delta = value - mMean;
+    mMean += delta / mCount;
+    mM2 += delta * (value - mMean);
+  }
+
+  /** Forgets every value added so far. */
+  public void reset()
+  {
+    mCount = 0;
+    mMean = 0;
+    mM2 = 0;
+  }
+
+  /**
+   * @return The number of values added.
+   */
+  public int getCount()
+  {
+    return mCount;
+  }
+
+  /**
+   * @return The smallest value added, undefined if there is none.
+   */
+  public double getMin()
+  {
+    return mMin;
+  }
+
+  /**
+   * @return The largest value added, undefined if there is none.
+   */
+  public double getMax()
+  {
+    return mMax;
+  }
+
+  /**
+   * @return The mean of the values added, 0 if there is none.
+   */
+  public double getMean()
+  {
+    return mMean;
+  }
+
+  /**
+   * @return The population variance of the values added, 0 if there are
+   * fewer than two.
+   */
+  public double getVariance()
+  {
+    return mCount > 1 ? mM2 / mCount : 0;
+  }
+}
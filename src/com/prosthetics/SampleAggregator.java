@@ -0,0 +1,83 @@
+package com.prosthetics;
+
+/**
+ * Summarises a stream of multi-channel samples over tumbling windows of a
+ * fixed length, aligned to the epoch so windows of different streams and
+ * devices line up (e.g. whole seconds or whole minutes). Each channel keeps
+ * its {@link RunningStats}, so a window costs the same memory whatever its
+ * number of samples. Samples must arrive in time order; a sample outside the
+ * current window closes it.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see SampleSummary
+ * @see SampleWriter
+ */
+public class SampleAggregator
+{
+  private final long mWindow;
+  private final RunningStats[] mStats;
+  private long mWindowStart;
+
+  /**
+   * Constructs an object of type {@code SampleAggregator}.
+   * @param channels The number of values per sample.
+   * @param window The length of a window in ms.
+   */
+  public SampleAggregator(int channels, long window)
+  {
+    mWindow = window;
+    mStats = new RunningStats[channels];
+    for (int i = 0; i < channels; i++)
+      mStats[i] = new RunningStats();
+  }
+
+  /**
+   * @return The length of a window in ms.
+   */
+  public long getWindow()
+  {
+    return mWindow;
+  }
+
+  /**
+   * Adds a sample to its window.
+   * @param timestamp The time of the sample, in ms since the epoch.
+   * @param values One value per channel; not kept.
+   * @return The summary of the previous window if the sample closed it,
+   * otherwise {@code null}.
+   */
+  public SampleSummary add(long timestamp, double[] values)
+  {
+    long start = timestamp - timestamp % mWindow;
+    SampleSummary closed = start != mWindowStart ? close() : null;
+    mWindowStart = start;
+    for (int i = 0; i < mStats.length; i++)
+      mStats[i].add(values[i]);
+    return closed;
+  }
+
+  /**
+   * Closes the current window if it has ended, so a window is stored even
+   * when no later sample arrives.
+   * @param now The current time, in ms since the epoch.
+   * @return The summary of the window if it was closed, otherwise {@code null}.
+   */
+  public SampleSummary expire(long now)
+  {
+    return now >= mWindowStart + mWindow ? close() : null;
+  }
+
+  /**
+   * Closes the current window, whether it has ended or not.
+   * @return The summary of the window, or {@code null} if it is empty.
+   */
+  public SampleSummary close()
+  {
+    if (mStats[0].getCount() == 0)
+      return null;
+    SampleSummary summary = new SampleSummary(mWindowStart, mWindow, mStats);
+    for (int i = 0; i < mStats.length; i++)
+      mStats[i].reset();
+    return summary;
+  }
+}
@@ -0,0 +1,358 @@
+package com.prosthetics;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parses the comma separated sample stream sent by the embedded system
+ * without allocating any objects per sample. Bytes read from the socket are
+ * kept in a fixed-size ring buffer, and each complete line is tokenized in
+ * place, with the digits of every field read straight into primitive fields.
+ * <p>
+ * A line has the form
+ * {@code timestamp,sequence,x,y,z,temperature1,temperature2[,checksum]}.
+ * The sequence number counts frames up from 0; if it is not numeric the
+ * frame is taken as unsequenced. The optional checksum is the CRC-8
+ * (polynomial 0x07, initial value 0) of every byte before the comma that
+ * precedes it, in hexadecimal.
+ * <p>
+ * Lines that do not have seven or eight fields, have a non-numeric sensor
+ * value or do not fit in {@link #LINE_CAPACITY} bytes are dropped and
+ * counted as malformed, lines whose checksum does not match as corrupted
+ * and frames received twice as duplicates, see {@link LinkStats}.
+ * <p>
+ * Instances are not thread safe and are meant to be owned by the thread
+ * reading from the socket.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see BluetoothLinkService
+ */
+public class SampleParser
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "SampleParser";
+
+  /** Size of the ring buffer in bytes. Must be a power of two. */
+  public static final int BUFFER_CAPACITY = 1024;
+  /**
+   * Longest line, in bytes and without the line terminator, that is
+   * accepted. This is the only bound on the timestamp field, which can take
+   * whatever the other fields leave.
+   */
+  public static final int LINE_CAPACITY = 256;
+  /** Number of comma separated fields in a valid line without a checksum. */
+  public static final int FIELD_COUNT = 7;
+  /** Number of comma separated fields in a valid line with a checksum. */
+  public static final int CHECKED_FIELD_COUNT = FIELD_COUNT + 1;
+
+  private static final int MASK = BUFFER_CAPACITY - 1;
+  /** Longest integer field, in digits, that cannot overflow an int. */
+  private static final int MAX_DIGITS = 9;
+  /** Longest numeric timestamp, in digits, that cannot overflow a long. */
+  private static final int MAX_TIMESTAMP_DIGITS = 18;
+  /** Longest checksum field, in hexadecimal digits. */
+  private static final int CHECKSUM_DIGITS = 2;
+  /** Index of the sequence number field. */
+  private static final int SEQUENCE_FIELD = 1;
+  /** CRC-8 of every byte value, with polynomial 0x07. */
+  private static final int[] CRC8_TABLE = createCrc8Table();
+
+  // Ring buffer; mHead and mTail only ever grow and are masked on access
+  private final byte[] mBuffer = new byte[BUFFER_CAPACITY];
+  private long mHead = 0;
+  private long mTail = 0;
+  private long mScan = 0;
+  private boolean mDiscarding = false;
+
+  // Fields of the last parsed sample
+  private final byte[] mTimestamp = new byte[LINE_CAPACITY];
+  private int mTimestampLength;
+  private long mTimestampValue;
+  private final byte[] mLine = new byte[LINE_CAPACITY];
+  private int mLineLength;
+  private final int[] mValues = new int[CHECKED_FIELD_COUNT];
+  private long mSequence;
+  private boolean mChecked;
+  private int mCrc;
+
+  // Counters
+  private final LinkStats mStats = new LinkStats();
+
+  /**
+   * Reads as many bytes as are available from {@code in}, without blocking
+   * more than a single {@link InputStream#read(byte[], int, int)} call, into
+   * the free part of the ring buffer.
+   * @param in The stream to read from.
+   * @return The number of bytes read, or -1 if the end of the stream has
+   * been reached.
+   * @throws IOException If reading from {@code in} fails.
+   */
+  public int fill(InputStream in) throws IOException
+  {
+    if (mTail - mHead == BUFFER_CAPACITY)
+    {
+      // A full buffer without a line terminator can only hold garbage, so
+      // drop it and resynchronise on the next line terminator.
+      mHead = mTail;
+      mScan = mTail;
+      mDiscarding = true;
+      mStats.onMalformed();
+    }
+    int start = (int) (mTail & MASK);
+    int free = BUFFER_CAPACITY - (int) (mTail - mHead);
+    int length = Math.min(free, BUFFER_CAPACITY - start);
+    int read = in.read(mBuffer, start, length);
+    if (read > 0)
+      mTail += read;
+    return read;
+  }
+
+  /**
+   * Parses the next complete line held in the ring buffer.
+   * @return {@code true} if a sample was parsed and is available through the
+   * getters, {@code false} if more bytes must be read with
+   * {@link #fill(InputStream)} first.
+   */
+  public boolean next()
+  {
+    while (mScan < mTail)
+    {
+      byte b = mBuffer[(int) (mScan & MASK)];
+      mScan++;
+      if (b != '\n')
+        continue;
+
+      long start = mHead;
+      long end = mScan - 1;
+      mHead = mScan;
+      if (mDiscarding)
+      {
+        mDiscarding = false;
+        continue;
+      }
+      if (!parseLine(start, end))
+        mStats.onMalformed();
+      else if (mChecked && mValues[FIELD_COUNT] != mCrc)
+        mStats.onCorrupted();
+      else if (mStats.onFrame(mSequence, mChecked))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Tokenizes the bytes between {@code start} (inclusive) and {@code end}
+   * (exclusive) into the sample fields.
+   * @return {@code true} if the line holds a valid sample.
+   */
+  private boolean parseLine(long start, long end)
+  {
+    if (end > start && mBuffer[(int) ((end - 1) & MASK)] == '\r')
+      end--;
+    int length = (int) (end - start);
+    if (length == 0 || length > LINE_CAPACITY)
+      return false;
+
+    int field = 0;
+    int value = 0;
+    int digits = 0;
+    boolean negative = false;
+    int crc = 0;
+    long sequence = 0;
+    long timestamp = 0;
+    mTimestampLength = 0;
+    for (int i = 0; i < length; i++)
+    {
+      byte b = mBuffer[(int) ((start + i) & MASK)];
+      mLine[i] = b;
+      if (b == ',')
+      {
+        if (field == SEQUENCE_FIELD && digits == 0)
+          sequence = -1;
+        if (!endField(field, value, digits, negative))
+          return false;
+        field++;
+        if (field == CHECKED_FIELD_COUNT)
+          return false;
+        // The checksum covers everything before its own comma
+        if (field == FIELD_COUNT)
+          mCrc = crc;
+        value = 0;
+        digits = 0;
+        negative = false;
+      }
+      else if (field == 0)
+      {
+        // Only plain decimals that read back unchanged are kept as numbers
+        if (timestamp >= 0 && b >= '0' && b <= '9' && mTimestampLength < MAX_TIMESTAMP_DIGITS
+            && (mTimestampLength == 0 || timestamp > 0))
+          timestamp = timestamp * 10 + (b - '0');
+        else
+          timestamp = -1;
+        mTimestamp[mTimestampLength++] = b;
+      }
+      else if (field == SEQUENCE_FIELD)
+      {
+        if (sequence >= 0 && b >= '0' && b <= '9' && digits < MAX_DIGITS)
+        {
+          digits++;
+          sequence = sequence * 10 + (b - '0');
+        }
+        else
+          sequence = -1;
+      }
+      else if (field == FIELD_COUNT)
+      {
+        int hex = Character.digit((char) b, 16);
+        if (hex < 0 || ++digits > CHECKSUM_DIGITS)
+          return false;
+        value = value * 16 + hex;
+      }
+      else if (b >= '0' && b <= '9')
+      {
+        if (++digits > MAX_DIGITS)
+          return false;
+        value = value * 10 + (b - '0');
+      }
+      else if (b == '-' && digits == 0 && !negative)
+      {
+        negative = true;
+      }
+      else
+      {
+        return false;
+      }
+      if (field < FIELD_COUNT)
+        crc = CRC8_TABLE[(crc ^ b) & 0xff];
+    }
+    if (field < FIELD_COUNT - 1 || !endField(field, value, digits, negative))
+      return false;
+    mSequence = sequence;
+    mTimestampValue = mTimestampLength > 0 ? timestamp : -1;
+    mChecked = field == FIELD_COUNT;
+    mLineLength = length;
+    return true;
+  }
+
+  /** Stores the value of a completed field, if it is a numeric one. */
+  private boolean endField(int field, int value, int digits, boolean negative)
+  {
+    if (field < 2)
+      return true;
+    if (digits == 0)
+      return false;
+    mValues[field] = negative ? -value : value;
+    return true;
+  }
+
+  /**
+   * Returns the timestamp field of the last sample. Allocates a new
+   * {@code String}, so it should only be called when the value is stored
+   * and {@link #getTimestampValue()} cannot hold it.
+   * @return The timestamp of the last sample as sent by the embedded system.
+   */
+  public String getTimestamp()
+  {
+    return new String(mTimestamp, 0, mTimestampLength);
+  }
+
+  /**
+   * Returns the timestamp field of the last sample as a number, if it is a
+   * plain decimal without leading zeros, so that {@link Long#toString(long)}
+   * gives back the text sent.
+   * @return The timestamp of the last sample, or -1 if it is not such a
+   * number.
+   */
+  public long getTimestampValue()
+  {
+    return mTimestampValue;
+  }
+
+  /**
+   * Returns the last sample as it was received. Allocates a new
+   * {@code String}, so it should only be called for display purposes.
+   * @return The raw line of the last sample, without the line terminator.
+   */
+  public String getLine()
+  {
+    return new String(mLine, 0, mLineLength);
+  }
+
+  /**
+   * @return The length in bytes of the last sample line.
+   */
+  public int getLineLength()
+  {
+    return mLineLength;
+  }
+
+  /**
+   * @return The x axis reading of the last sample.
+   */
+  public int getX()
+  {
+    return mValues[2];
+  }
+
+  /**
+   * @return The y axis reading of the last sample.
+   */
+  public int getY()
+  {
+    return mValues[3];
+  }
+
+  /**
+   * @return The z axis reading of the last sample.
+   */
+  public int getZ()
+  {
+    return mValues[4];
+  }
+
+  /**
+   * @return The first temperature reading of the last sample.
+   */
+  public int getTemperature1()
+  {
+    return mValues[5];
+  }
+
+  /**
+   * @return The second temperature reading of the last sample.
+   */
+  public int getTemperature2()
+  {
+    return mValues[6];
+  }
+
+  /**
+   * @return The sequence number of the last sample, or -1 if it had none.
+   */
+  public long getSequence()
+  {
+    return mSequence;
+  }
+
+  /**
+   * @return The reliability statistics of the stream parsed so far.
+   */
+  public LinkStats getStats()
+  {
+    return mStats;
+  }
+
+  /** Builds the CRC-8 lookup table, so a byte costs a single lookup. */
+  private static int[] createCrc8Table()
+  {
+    int[] table = new int[256];
+    for (int i = 0; i < 256; i++)
+    {
+      int crc = i;
+      for (int bit = 0; bit < 8; bit++)
+        crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xff : (crc << 1) & 0xff;
+      table[i] = crc;
+    }
+    return table;
+  }
+}
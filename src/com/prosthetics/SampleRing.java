@@ -0,0 +1,161 @@
+package com.prosthetics;
+
+/**
+ * Bounded ring of samples between exactly one producer thread, the
+ * Bluetooth read loop, and one consumer thread, the {@link SampleWriter}.
+ * Neither side ever takes a lock or allocates: each slot is a row of
+ * primitive arrays, plus a reference for the rare device timestamps that
+ * are not numbers, and a sample is published by the volatile write of the
+ * producer's index, which the consumer reads before the slot. Likewise the
+ * consumer frees slots by writing its own index only once it has read them.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see SampleWriter
+ */
+public class SampleRing
+{
+  /**
+   * Receives the samples taken from the ring by
+   * {@link SampleRing#drain(Consumer, int)}.
+   */
+  public interface Consumer
+  {
+    /**
+     * Called once per sample, on the consumer thread.
+     * @param timestamp The time of the sample, in ms since the epoch.
+     * @param deviceTimestamp The timestamp sent by the embedded system, or
+     * -1 if it was not a number.
+     * @param deviceText The timestamp sent by the embedded system if it was
+     * not a number, otherwise {@code null}.
+     * @param sequence The sequence number of the sample, or -1 if none.
+     * @param received The {@code SystemClock.elapsedRealtime()} at which it
+     * was put in the ring.
+     */
+    void onSample(long timestamp, long deviceTimestamp, String deviceText, long sequence, long received,
+                  int x, int y, int z, int temperature1, int temperature2);
+  }
+
+  private final int mMask;
+  private final long[] mTimestamps;
+  private final long[] mDeviceTimestamps;
+  private final String[] mDeviceTexts;
+  private final long[] mSequences;
+  private final long[] mReceived;
+  private final int[] mX;
+  private final int[] mY;
+  private final int[] mZ;
+  private final int[] mTemperature1;
+  private final int[] mTemperature2;
+
+  /** Index of the next slot to be written, only written by the producer. */
+  private volatile long mTail = 0;
+  /** Index of the next slot to be read, only written by the consumer. */
+  private volatile long mHead = 0;
+  /** The producer's last read of {@link #mHead}, to spare volatile reads. */
+  private long mCachedHead = 0;
+
+  /**
+   * Constructs an object of type {@code SampleRing}.
+   * @param capacity The number of slots, a power of two.
+   */
+  public SampleRing(int capacity)
+  {
+    if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+      throw new IllegalArgumentException("Capacity must be a power of two");
+    mMask = capacity - 1;
+    mTimestamps = new long[capacity];
+    mDeviceTimestamps = new long[capacity];
+    mDeviceTexts = new String[capacity];
+    mSequences = new long[capacity];
+    mReceived = new long[capacity];
+    mX = new int[capacity];
+    mY = new int[capacity];
+    mZ = new int[capacity];
+    mTemperature1 = new int[capacity];
+    mTemperature2 = new int[capacity];
+  }
+
+  /**
+   * @return The number of slots.
+   */
+  public int getCapacity()
+  {
+    return mMask + 1;
+  }
+
+  /**
+   * Puts a sample in the ring. Must only be called by the producer.
+   * @param timestamp The time of the sample, in ms since the epoch.
+   * @param deviceTimestamp The timestamp sent by the embedded system, or -1
+   * if it is not a number.
+   * @param deviceText The timestamp sent by the embedded system if it is
+   * not a number, otherwise {@code null}.
+   * @param sequence The sequence number of the sample, or -1 if none.
+   * @param received The current {@code SystemClock.elapsedRealtime()}.
+   * @return {@code true} if the sample was added, {@code false} if the ring
+   * is full.
+   */
+  public boolean offer(long timestamp, long deviceTimestamp, String deviceText, long sequence, long received,
+                       int x, int y, int z, int temperature1, int temperature2)
+  {
+    long tail = mTail;
+    if (tail - mCachedHead > mMask)
+    {
+      mCachedHead = mHead;
+      if (tail - mCachedHead > mMask)
+        return false;
+    }
+    int slot = (int) tail & mMask;
+    mTimestamps[slot] = timestamp;
+    mDeviceTimestamps[slot] = deviceTimestamp;
+    mDeviceTexts[slot] = deviceText;
+    mSequences[slot] = sequence;
+    mReceived[slot] = received;
+    mX[slot] = x;
+    mY[slot] = y;
+    mZ[slot] = z;
+    mTemperature1[slot] = temperature1;
+    mTemperature2[slot] = temperature2;
+    mTail = tail + 1;
+    return true;
+  }
+
+  /**
+   * Takes up to {@code max} samples out of the ring, oldest first. Must only
+   * be called by the consumer.
+   * @param consumer Receives each sample.
+   * @param max The maximum number of samples to take.
+   * @return The number of samples taken.
+   */
+  public int drain(Consumer consumer, int max)
+  {
+    long head = mHead;
+    long end = Math.min(mTail, head + max);
+    for (long i = head; i < end; i++)
+    {
+      int slot = (int) i & mMask;
+      consumer.onSample(mTimestamps[slot], mDeviceTimestamps[slot], mDeviceTexts[slot], mSequences[slot],
+                        mReceived[slot], mX[slot], mY[slot], mZ[slot], mTemperature1[slot], mTemperature2[slot]);
+    }
+    mHead = end;
+    return (int) (end - head);
+  }
+
+  /**
+   * @return The number of samples in the ring; only a snapshot when called
+   * while the other thread is running.
+   */
+  public int size()
+  {
+    long head = mHead;
+    return (int) (mTail - head);
+  }
+
+  /**
+   * @return {@code true} if the ring holds no sample.
+   */
+  public boolean isEmpty()
+  {
+    return size() == 0;
+  }
+}
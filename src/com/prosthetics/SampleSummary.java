@@ -0,0 +1,102 @@
+package com.prosthetics;
+
+/**
+ * Statistics of the samples of one window, as produced by
+ * {@link SampleAggregator} and stored in the summary tables of the patient
+ * db.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see SampleAggregator
+ * @see PatientDB
+ */
+public class SampleSummary
+{
+  private final long timestamp;
+  private final long duration;
+  private final int count;
+  private final double[] min;
+  private final double[] max;
+  private final double[] mean;
+  private final double[] variance;
+
+  /**
+   * Constructs an object of type {@code SampleSummary} from the statistics
+   * of each channel.
+   * @param timestamp The start of the window, in ms since the epoch.
+   * @param duration The length of the window in ms.
+   * @param stats The statistics of each channel, copied.
+   */
+  public SampleSummary(long timestamp, long duration, RunningStats[] stats)
+  {
+    this.timestamp = timestamp;
+    this.duration = duration;
+    this.count = stats[0].getCount();
+    min = new double[stats.length];
+    max = new double[stats.length];
+    mean = new double[stats.length];
+    variance = new double[stats.length];
+    for (int i = 0; i < stats.length; i++)
+    {
+      min[i] = stats[i].getMin();
+      max[i] = stats[i].getMax();
+      mean[i] = stats[i].getMean();
+      variance[i] = stats[i].getVariance();
+    }
+  }
+
+  /**
+   * @return The start of the window, in ms since the epoch.
+   */
+  public long getTimestamp()
+  {
+    return timestamp;
+  }
+
+  /**
+   * @return The length of the window in ms.
+   */
+  public long getDuration()
+  {
+    return duration;
+  }
+
+  /**
+   * @return The number of samples in the window.
+   */
+  public int getCount()
+  {
+    return count;
+  }
+
+  /**
+   * @return The number of channels.
+   */
+  public int getChannelCount()
+  {
+    return min.length;
+  }
+
+  /** @return The smallest value of {@code channel}. */
+  public double getMin(int channel)
+  {
+    return min[channel];
+  }
+
+  /** @return The largest value of {@code channel}. */
+  public double getMax(int channel)
+  {
+    return max[channel];
+  }
+
+  /** @return The mean value of {@code channel}. */
+  public double getMean(int channel)
+  {
+    return mean[channel];
+  }
+
+  /** @return The population variance of {@code channel}. */
+  public double getVariance(int channel)
+  {
+    return variance[channel];
+  }
+}
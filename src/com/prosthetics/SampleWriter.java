@@ -0,0 +1,556 @@
+package com.prosthetics;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.prosthetics.CancelableThread;
+import com.prosthetics.PatientDB;
+
+/**
+ * Long-lived writer thread that stores the samples received from the
+ * embedded system in the patient db. Samples are handed over through a
+ * lock-free {@link SampleRing} and written in batches, one transaction per
+ * {@link #BATCH_SIZE} samples or once the oldest sample has waited
+ * {@link #BATCH_INTERVAL} ms, whichever comes first, so the Bluetooth read
+ * loop never waits for the database.
+ * <p>
+ * {@link #submit(long, long, String, long, int, int, int, int, int)} never blocks: when the
+ * ring is full the sample is dropped and counted, which only happens if
+ * the db falls behind by more than {@link #RING_CAPACITY} samples. The
+ * occupancy of the ring and the time from reading a sample to committing
+ * it are counted as well.
+ * <p>
+ * Before being written, samples go through a {@link SampleAggregator} per
+ * sensor, which stores the statistics of each window in the summary tables.
+ * Raw samples are only stored as well if {@link AggregationSettings#isKeepRaw()}.
+ * The accelerometer samples also feed a {@link GaitFeatureExtractor}, whose
+ * features are stored in the activity table.
+ * <p>
+ * The sequence number of the newest sample is stored in the same
+ * transaction as the sample, so after a reconnection, even one after the
+ * app restarted, the embedded system can be asked to replay from the first
+ * sample that did not reach the db. When a transaction fails, the batch is
+ * kept and retried every {@link #BATCH_INTERVAL} ms, and nothing more is
+ * taken from the ring meanwhile, so no later sample is stored ahead of it
+ * and replayed again. If the writer is cancelled before the retry succeeds,
+ * the batch is dropped with the committed sequence number still in front
+ * of it, so its samples are asked for again after the next connection.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see PatientDB
+ * @see BluetoothLinkService
+ */
+public class SampleWriter extends CancelableThread
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "SampleWriter";
+  private static final boolean D = true;
+
+  /** Maximum number of samples waiting to be written, a power of two. */
+  public static final int RING_CAPACITY = 4096;
+  /** Maximum number of samples written in a single transaction. */
+  public static final int BATCH_SIZE = 256;
+  /** Maximum time in ms a sample waits before its batch is written. */
+  public static final long BATCH_INTERVAL = 1000;
+  /** Maximum time in ms {@link #flush()} waits for the ring to drain. */
+  public static final long FLUSH_TIMEOUT = 5000;
+  /** A dropped sample is logged once per this many. */
+  private static final long DROP_LOG_INTERVAL = 1000;
+
+  private final SampleRing mRing = new SampleRing(RING_CAPACITY);
+  private final PatientDB mPatientDB;
+  private final Object mFlushLock = new Object();
+  /** Set while the writer is parked waiting for the producer. */
+  private volatile boolean mWaiting = false;
+
+  private final boolean mKeepRaw;
+  private final SampleAggregator mAccelerometerAggregator;
+  private final SampleAggregator mTemperatureAggregator;
+  private final GaitFeatureExtractor mGaitExtractor;
+  // Reused for every sample, only touched by the writer thread
+  private final double[] mAccelerometerValues = new double[PatientDBHelper.ACC_SUMMARY_CHANNELS.length];
+  private final double[] mTemperatureValues = new double[PatientDBHelper.TEM_SUMMARY_CHANNELS.length];
+  private final ArrayList<AccelerometerWrapper> mAccelerometer = new ArrayList<AccelerometerWrapper>(BATCH_SIZE);
+  private final ArrayList<TemperatureWrapper> mTemperature = new ArrayList<TemperatureWrapper>(BATCH_SIZE);
+  private final ArrayList<SampleSummary> mAccelerometerSummaries = new ArrayList<SampleSummary>();
+  private final ArrayList<SampleSummary> mTemperatureSummaries = new ArrayList<SampleSummary>();
+  private final ArrayList<ActivityFeatures> mActivity = new ArrayList<ActivityFeatures>();
+  private final SampleRing.Consumer mConsumer = new SampleRing.Consumer()
+  {
+    public void onSample(long timestamp, long deviceTimestamp, String deviceText, long sequence, long received,
+                         int x, int y, int z, int temperature1, int temperature2)
+    {
+      addSample(timestamp, deviceTimestamp, deviceText, sequence, received, x, y, z, temperature1, temperature2);
+    }
+  };
+
+  // Current batch, only touched by the writer thread
+  private int mPending = 0;
+  private long mOldestReceived = 0;
+  private long mReceivedSum = 0;
+  private long mBatchSequence;
+  private long mBatchSequenceTime;
+  /** Set while the current batch could not be written and is to be retried. */
+  private boolean mCommitFailed = false;
+
+  // Newest sequence number stored, only written by the writer thread
+  private volatile long mCommittedSequence;
+  private volatile long mCommittedSequenceTime;
+
+  // Counters; mSubmitted, mDropped and mPeakOccupancy are only written by
+  // the producer, the others only by the writer thread
+  private volatile long mSubmitted = 0;
+  private volatile long mDropped = 0;
+  private volatile int mPeakOccupancy = 0;
+  private volatile long mProcessed = 0;
+  private volatile long mFailed = 0;
+  private volatile long mBatches = 0;
+  private volatile long mLastLatency = 0;
+  private volatile long mMaxLatency = 0;
+  private volatile long mLatencySum = 0;
+
+  /**
+   * Constructs an object of type {@code SampleWriter}. The thread still
+   * has to be started, and is counted by
+   * {@link PatientDB#setWriterRunning(boolean)} until it ends.
+   * @param context The {@code Context} used to open the patient db.
+   */
+  public SampleWriter(Context context)
+  {
+    this(context, PatientDB.getInstance(context));
+  }
+
+  /**
+   * Constructs an object of type {@code SampleWriter} storing samples in
+   * {@code patientDB}, e.g. one opened on a test file.
+   * @param context The {@code Context} used to read the settings.
+   * @param patientDB The db the samples are stored in.
+   */
+  public SampleWriter(Context context, PatientDB patientDB)
+  {
+    super("SampleWriter");
+    mPatientDB = patientDB;
+    AggregationSettings settings = new AggregationSettings(context);
+    mKeepRaw = settings.isKeepRaw();
+    mAccelerometerAggregator = new SampleAggregator(mAccelerometerValues.length, settings.getAccelerometerWindow());
+    mTemperatureAggregator = new SampleAggregator(mTemperatureValues.length, settings.getTemperatureWindow());
+    mGaitExtractor = new GaitFeatureExtractor(settings.getActivityWindow(), settings.getUprightAxis());
+    // Counted from here, since a running conversion holds the db lock anyway
+    mPatientDB.setWriterRunning(true);
+    mCommittedSequence = mPatientDB.queryLastSequence();
+    mCommittedSequenceTime = mPatientDB.queryLastSequenceTime();
+    mBatchSequence = mCommittedSequence;
+    mBatchSequenceTime = mCommittedSequenceTime;
+  }
+
+  /**
+   * Queues a sample to be written to the patient db. Must only be called
+   * from a single thread, and never blocks.
+   * @param timestamp The time of the sample, in ms since the epoch.
+   * @param deviceTimestamp The timestamp sent by the embedded system, see
+   * {@link SampleParser#getTimestampValue()}, or -1 if it is not a number.
+   * @param deviceText The timestamp sent by the embedded system if
+   * {@code deviceTimestamp} is -1, otherwise {@code null}.
+   * @param sequence The sequence number of the sample, or -1 if none.
+   * @param x The x axis accelerometer reading.
+   * @param y The y axis accelerometer reading.
+   * @param z The z axis accelerometer reading.
+   * @param temperature1 The first temperature reading.
+   * @param temperature2 The second temperature reading.
+   * @return {@code true} if the sample was queued, {@code false} if it was
+   * dropped because the ring was full.
+   */
+  public boolean submit(long timestamp, long deviceTimestamp, String deviceText, long sequence,
+                        int x, int y, int z, int temperature1, int temperature2)
+  {
+    if (!mRing.offer(timestamp, deviceTimestamp, deviceText, sequence, SystemClock.elapsedRealtime(),
+                     x, y, z, temperature1, temperature2))
+    {
+      mDropped++;
+      if (mDropped % DROP_LOG_INTERVAL == 1)
+        Log.w(TAG, "Ring full, dropped sample (" + mDropped + " so far)");
+      return false;
+    }
+    mSubmitted++;
+    int occupancy = mRing.size();
+    if (occupancy > mPeakOccupancy)
+      mPeakOccupancy = occupancy;
+    if (mWaiting)
+      LockSupport.unpark(this);
+    return true;
+  }
+
+  /**
+   * Blocks until every sample queued before the call has been written, or
+   * until {@link #FLUSH_TIMEOUT} ms have passed. Meant to be called when
+   * the connection to the embedded system is lost.
+   */
+  public void flush()
+  {
+    long target = mSubmitted;
+    long deadline = SystemClock.elapsedRealtime() + FLUSH_TIMEOUT;
+    LockSupport.unpark(this);
+    synchronized (mFlushLock)
+    {
+      long remaining;
+      while (mProcessed + mFailed < target && isAlive()
+             && (remaining = deadline - SystemClock.elapsedRealtime()) > 0)
+      {
+        try
+        {
+          mFlushLock.wait(remaining);
+        }
+        catch (InterruptedException e)
+        {
+          break;
+        }
+      }
+    }
+    if (D) Log.i(TAG, "Flushed, " + mProcessed + " of " + mSubmitted + " samples written, "
+                      + mFailed + " failed, " + mDropped + " dropped, peak occupancy " + mPeakOccupancy + "/" + RING_CAPACITY
+                      + ", latency " + getMeanLatency() + " ms mean, " + mMaxLatency + " ms max");
+  }
+
+  /**
+   * Writes queued samples until the thread is cancelled, then writes
+   * whatever is left in the ring.
+   */
+  public void run()
+  {
+    if (D) Log.i(TAG, "BEGIN SampleWriter");
+    try
+    {
+      writeUntilCanceled();
+    }
+    finally
+    {
+      mPatientDB.setWriterRunning(false);
+    }
+    if (D) Log.i(TAG, "END SampleWriter, " + mBatches + " batches written");
+  }
+
+  /** Body of {@link #run()}. */
+  private void writeUntilCanceled()
+  {
+
+    while (!hasCanceled())
+    {
+      if (mCommitFailed)
+      {
+        // Samples stay in the ring until the failed batch is stored
+        LockSupport.parkNanos(BATCH_INTERVAL * 1000000L);
+        if (!hasCanceled())
+          writeBatch();
+        continue;
+      }
+      int taken = mRing.drain(mConsumer, BATCH_SIZE - mPending);
+      long age = SystemClock.elapsedRealtime() - mOldestReceived;
+      if (mPending >= BATCH_SIZE || (mPending > 0 && age >= BATCH_INTERVAL))
+        writeBatch();
+      else if (taken == 0)
+      {
+        if (mPending == 0)
+          expireWindows();
+        waitForSamples(mPending == 0 ? BATCH_INTERVAL : BATCH_INTERVAL - age);
+      }
+    }
+
+    // Write what is left before the thread dies, unless the db fails, in
+    // which case the rest is replayed after the next connection
+    if (mCommitFailed && !writeBatch())
+    {
+      discardBatch();
+      return;
+    }
+    while (mRing.drain(mConsumer, BATCH_SIZE - mPending) > 0)
+    {
+      if (mPending >= BATCH_SIZE && !writeBatch())
+      {
+        discardBatch();
+        return;
+      }
+    }
+    addSummary(mAccelerometerSummaries, mAccelerometerAggregator.close());
+    addSummary(mTemperatureSummaries, mTemperatureAggregator.close());
+    addActivity(mGaitExtractor.close());
+    if (!writeBatch())
+      discardBatch();
+  }
+
+  /**
+   * Parks the writer until the producer queues a sample or {@code timeout}
+   * ms have passed. The flag is set before the ring is checked and read by
+   * the producer after it publishes, so a wake-up cannot be missed.
+   */
+  private void waitForSamples(long timeout)
+  {
+    if (timeout <= 0)
+      return;
+    mWaiting = true;
+    if (mRing.isEmpty())
+      LockSupport.parkNanos(timeout * 1000000L);
+    mWaiting = false;
+  }
+
+  /** Adds a sample taken from the ring to the current batch. */
+  private void addSample(long timestamp, long deviceTimestamp, String deviceText, long sequence, long received,
+                         int x, int y, int z, int temperature1, int temperature2)
+  {
+    if (mPending == 0)
+      mOldestReceived = received;
+    mPending++;
+    mReceivedSum += received;
+    if (isNewer(sequence, mBatchSequence))
+    {
+      mBatchSequence = sequence;
+      mBatchSequenceTime = timestamp;
+    }
+    aggregate(timestamp, x, y, z, temperature1, temperature2);
+    if (mKeepRaw)
+    {
+      String device = deviceText != null ? deviceText : Long.toString(deviceTimestamp);
+      mAccelerometer.add(new AccelerometerWrapper(timestamp, device, x, y, z));
+      mTemperature.add(new TemperatureWrapper(timestamp, device, temperature1, temperature2));
+    }
+  }
+
+  /**
+   * Writes the current batch and the windows it closed in one transaction
+   * and wakes up waiting flushes. The committed sequence number only moves
+   * once the transaction succeeded. A failed batch is kept, and
+   * {@link #mCommitFailed} set, so it is retried.
+   * @return {@code true} if the batch was stored or empty.
+   */
+  private boolean writeBatch()
+  {
+    int size = mPending;
+    boolean advance = mBatchSequence != mCommittedSequence;
+    if ((size > 0 || hasWindows())
+        && !mPatientDB.addBatch(mKeepRaw ? mAccelerometer : null, mKeepRaw ? mTemperature : null,
+                                mAccelerometerSummaries, mTemperatureSummaries, mActivity,
+                                advance ? mBatchSequence : -1, mBatchSequenceTime))
+    {
+      if (!mCommitFailed)
+        Log.w(TAG, "Batch of " + size + " samples not stored, retrying every " + BATCH_INTERVAL + " ms");
+      mCommitFailed = true;
+      return false;
+    }
+    mCommitFailed = false;
+    if (advance)
+    {
+      mCommittedSequence = mBatchSequence;
+      mCommittedSequenceTime = mBatchSequenceTime;
+    }
+    if (size > 0)
+    {
+      long now = SystemClock.elapsedRealtime();
+      mLastLatency = now - mOldestReceived;
+      if (mLastLatency > mMaxLatency)
+        mMaxLatency = mLastLatency;
+      mLatencySum += size * now - mReceivedSum;
+    }
+    clearBatch();
+    mBatches++;
+    synchronized (mFlushLock)
+    {
+      mProcessed += size;
+      mFlushLock.notifyAll();
+    }
+    return true;
+  }
+
+  /**
+   * Drops the current batch after its transaction failed for the last time.
+   * The committed sequence number is left in front of it, so its samples
+   * are replayed after the next connection.
+   */
+  private void discardBatch()
+  {
+    int size = mPending;
+    Log.w(TAG, "Batch of " + size + " samples lost, replay from " + (mCommittedSequence + 1));
+    mBatchSequence = mCommittedSequence;
+    mBatchSequenceTime = mCommittedSequenceTime;
+    mCommitFailed = false;
+    clearBatch();
+    synchronized (mFlushLock)
+    {
+      mFailed += size;
+      mFlushLock.notifyAll();
+    }
+  }
+
+  /** Forgets the samples and windows of the current batch. */
+  private void clearBatch()
+  {
+    mAccelerometer.clear();
+    mTemperature.clear();
+    clearWindows();
+    mPending = 0;
+    mReceivedSum = 0;
+  }
+
+  /** Adds a sample to the windows of both sensors. */
+  private void aggregate(long timestamp, int x, int y, int z, int temperature1, int temperature2)
+  {
+    mAccelerometerValues[0] = x;
+    mAccelerometerValues[1] = y;
+    mAccelerometerValues[2] = z;
+    mAccelerometerValues[3] = Math.sqrt((double) x * x + (double) y * y + (double) z * z);
+    addSummary(mAccelerometerSummaries, mAccelerometerAggregator.add(timestamp, mAccelerometerValues));
+    addActivity(mGaitExtractor.add(timestamp, x, y, z));
+
+    mTemperatureValues[0] = temperature1;
+    mTemperatureValues[1] = temperature2;
+    addSummary(mTemperatureSummaries, mTemperatureAggregator.add(timestamp, mTemperatureValues));
+  }
+
+  /**
+   * Stores the windows that have ended while no sample arrived, e.g. after
+   * the connection was lost. Like a batch of samples, they are kept and
+   * retried if the transaction fails.
+   */
+  private void expireWindows()
+  {
+    long now = System.currentTimeMillis();
+    addSummary(mAccelerometerSummaries, mAccelerometerAggregator.expire(now));
+    addSummary(mTemperatureSummaries, mTemperatureAggregator.expire(now));
+    addActivity(mGaitExtractor.expire(now));
+    if (hasWindows())
+      writeBatch();
+  }
+
+  /**
+   * @return {@code true} if {@code sequence} comes after {@code last}, or
+   * if it is so far behind that the embedded system must have restarted
+   * its count.
+   */
+  private static boolean isNewer(long sequence, long last)
+  {
+    return sequence >= 0 && (sequence > last || last - sequence >= LinkStats.DUPLICATE_WINDOW);
+  }
+
+  /** @return {@code true} if closed windows are waiting to be written. */
+  private boolean hasWindows()
+  {
+    return !mAccelerometerSummaries.isEmpty() || !mTemperatureSummaries.isEmpty() || !mActivity.isEmpty();
+  }
+
+  /** Forgets the closed windows once written. */
+  private void clearWindows()
+  {
+    mAccelerometerSummaries.clear();
+    mTemperatureSummaries.clear();
+    mActivity.clear();
+  }
+
+  /** Adds {@code features} to the closed activity windows unless it is {@code null}. */
+  private void addActivity(ActivityFeatures features)
+  {
+    if (features != null)
+      mActivity.add(features);
+  }
+
+  /** Adds {@code summary} to {@code summaries} unless it is {@code null}. */
+  private static void addSummary(ArrayList<SampleSummary> summaries, SampleSummary summary)
+  {
+    if (summary != null)
+      summaries.add(summary);
+  }
+
+  /**
+   * @return The number of samples queued so far.
+   */
+  public long getSubmittedCount()
+  {
+    return mSubmitted;
+  }
+
+  /**
+   * @return The number of samples dropped because the ring was full.
+   */
+  public long getDroppedCount()
+  {
+    return mDropped;
+  }
+
+  /**
+   * @return The number of samples stored in the patient db so far.
+   */
+  public long getProcessedCount()
+  {
+    return mProcessed;
+  }
+
+  /**
+   * @return The number of samples lost because their transaction still
+   * failed when the writer was cancelled.
+   */
+  public long getFailedCount()
+  {
+    return mFailed;
+  }
+
+  /**
+   * @return The sequence number after which no sample is known to be
+   * missing from the patient db, -1 if none was stored.
+   */
+  public long getCommittedSequence()
+  {
+    return mCommittedSequence;
+  }
+
+  /**
+   * @return The time of the sample returned by
+   * {@link #getCommittedSequence()}, in ms since the epoch.
+   */
+  public long getCommittedSequenceTime()
+  {
+    return mCommittedSequenceTime;
+  }
+
+  /**
+   * @return The number of samples waiting in the ring.
+   */
+  public int getOccupancy()
+  {
+    return mRing.size();
+  }
+
+  /**
+   * @return The largest number of samples seen waiting in the ring.
+   */
+  public int getPeakOccupancy()
+  {
+    return mPeakOccupancy;
+  }
+
+  /**
+   * @return The time in ms from reading to committing the oldest sample of
+   * the last batch.
+   */
+  public long getLastLatency()
+  {
+    return mLastLatency;
+  }
+
+  /**
+   * @return The longest time in ms from reading a sample to committing it.
+   */
+  public long getMaxLatency()
+  {
+    return mMaxLatency;
+  }
+
+  /**
+   * @return The mean time in ms from reading a sample to committing it.
+   */
+  public long getMeanLatency()
+  {
+    long processed = mProcessed;
+    return processed > 0 ? mLatencySum / processed : 0;
+  }
+}
@@ -0,0 +1,160 @@
+package com.prosthetics;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * One step of the schema history of a db, bringing it from the previous
+ * version to {@link #getVersion()}. A helper keeps its steps in an array
+ * sorted by version, where several steps may lead to the same version, and
+ * its {@code onUpgrade} applies the ones between the old and the new version
+ * with {@link #upgrade(SQLiteDatabase, SchemaMigration[], int, int)}.
+ * <p>
+ * {@code onUpgrade} runs in a single transaction while the db is being
+ * opened, so {@link #upgrade(SQLiteDatabase)} must only change the
+ * structure. Work proportional to the number of rows is left pending and
+ * done later in small batches through {@link #migrateBatch(SQLiteDatabase, int)},
+ * see {@link MigrationRunner}. Pending work is recorded in the db itself,
+ * e.g. as a legacy table, so it survives the process being killed.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see MigrationRunner
+ * @see TableRebuildMigration
+ */
+public abstract class SchemaMigration
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "SchemaMigration";
+  private static final boolean D = true;
+
+  private final int mVersion;
+
+  /**
+   * Constructs an object of type {@code SchemaMigration}.
+   * @param version The schema version the migration leads to.
+   */
+  protected SchemaMigration(int version)
+  {
+    mVersion = version;
+  }
+
+  /**
+   * @return The schema version the migration leads to.
+   */
+  public int getVersion()
+  {
+    return mVersion;
+  }
+
+  /**
+   * Changes the structure of {@code db}, inside the upgrade transaction.
+   * @param db The db being upgraded.
+   */
+  public abstract void upgrade(SQLiteDatabase db);
+
+  /**
+   * @param db The upgraded db.
+   * @return {@code true} if rows are still waiting for
+   * {@link #migrateBatch(SQLiteDatabase, int)}.
+   */
+  public boolean isPending(SQLiteDatabase db)
+  {
+    return false;
+  }
+
+  /**
+   * Does one batch of the pending work. Called repeatedly until it returns 0.
+   * @param db The upgraded db.
+   * @param limit The maximum number of rows handled.
+   * @return The number of rows handled, 0 once nothing is pending.
+   */
+  public int migrateBatch(SQLiteDatabase db, int limit)
+  {
+    return 0;
+  }
+
+  /**
+   * @param table The name of a table.
+   * @return {@code true} if the rows of {@code table} are incomplete or out of
+   * order while the migration is pending.
+   */
+  public boolean affects(String table)
+  {
+    return false;
+  }
+
+  /**
+   * Applies, in order, the migrations leading from {@code oldVersion} to
+   * {@code newVersion}.
+   * @param db The db being upgraded.
+   * @param migrations The schema history, sorted by version.
+   * @param oldVersion The version of {@code db}.
+   * @param newVersion The version to upgrade to.
+   * @throws IllegalStateException If {@code migrations} is not sorted or
+   * does not reach {@code newVersion}.
+   */
+  public static void upgrade(SQLiteDatabase db, SchemaMigration[] migrations,
+                             int oldVersion, int newVersion)
+  {
+    int version = oldVersion;
+    for (int i = 0; i < migrations.length; i++)
+    {
+      SchemaMigration migration = migrations[i];
+      if (i > 0 && migration.getVersion() < migrations[i - 1].getVersion())
+        throw new IllegalStateException("Migrations out of order at version " + migration.getVersion());
+      if (migration.getVersion() <= oldVersion || migration.getVersion() > newVersion)
+        continue;
+      if (D) Log.i(TAG, "Upgrading " + db.getPath() + " to version " + migration.getVersion());
+      migration.upgrade(db);
+      version = migration.getVersion();
+    }
+    if (version != newVersion)
+      throw new IllegalStateException("No migration to version " + newVersion);
+  }
+
+  /**
+   * Does one batch of the earliest migration with pending work. Later
+   * migrations wait, since they may rely on the earlier ones being complete.
+   * @param db The upgraded db.
+   * @param migrations The schema history, sorted by version.
+   * @param limit The maximum number of rows handled.
+   * @return The number of rows handled, 0 once nothing is pending.
+   */
+  public static int migrateBatch(SQLiteDatabase db, SchemaMigration[] migrations, int limit)
+  {
+    for (int i = 0; i < migrations.length; i++)
+    {
+      if (!migrations[i].isPending(db))
+        continue;
+      int handled = migrations[i].migrateBatch(db, limit);
+      // 0 means the migration just finished, go on with the next one
+      if (handled > 0)
+        return handled;
+    }
+    return 0;
+  }
+
+  /**
+   * @param db The upgraded db.
+   * @param migrations The schema history, sorted by version.
+   * @param table The name of a table.
+   * @return {@code true} if a migration affecting {@code table} has
+   * pending work.
+   */
+  public static boolean isPending(SQLiteDatabase db, SchemaMigration[] migrations, String table)
+  {
+    for (int i = 0; i < migrations.length; i++)
+      if (migrations[i].affects(table) && migrations[i].isPending(db))
+        return true;
+    return false;
+  }
+
+  /**
+   * @param migrations The schema history, sorted by version.
+   * @return The version the last migration leads to.
+   */
+  public static int getLatestVersion(SchemaMigration[] migrations)
+  {
+    return migrations[migrations.length - 1].getVersion();
+  }
+}
@@ -0,0 +1,33 @@
+package com.prosthetics;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Migration running a fixed list of statements, for changes that do not
+ * touch existing rows, such as adding a table or an index.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see SchemaMigration
+ */
+public class SqlMigration extends SchemaMigration
+{
+  private final String[] mStatements;
+
+  /**
+   * Constructs an object of type {@code SqlMigration}.
+   * @param version The schema version the migration leads to.
+   * @param statements The statements to run.
+   */
+  public SqlMigration(int version, String[] statements)
+  {
+    super(version);
+    mStatements = statements;
+  }
+
+  @Override
+  public void upgrade(SQLiteDatabase db)
+  {
+    for (int i = 0; i < mStatements.length; i++)
+      db.execSQL(mStatements[i]);
+  }
+}
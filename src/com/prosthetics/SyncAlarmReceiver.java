@@ -30,7 +30,8 @@ public class SyncAlarmReceiver extends BroadcastReceiver
 
   /**
    * Called when an {@code Intent} is received. This method triggers
-   * {@link SyncService}.
+   * {@link SyncService}, which checks on its worker thread whether there is
+   * anything to upload, since that takes a query per table.
    * @param context The {@code Context} in which the receiver is running.
    * @param intent The {@code Intent} being received.
    * @see android.content.Context
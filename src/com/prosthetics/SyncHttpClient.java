@@ -0,0 +1,118 @@
+package com.prosthetics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import android.util.Log;
+
+/**
+ * Holds the single HTTP client used to talk to the central server. The
+ * client keeps its connections alive and pools them for the lifetime of the
+ * process, so consecutive requests of a sync, and consecutive syncs close
+ * enough together, reuse the same TCP (or TLS) connection instead of paying
+ * for a new handshake each time.
+ * <p>
+ * Every new connection is counted, see {@link #getConnectCount()}.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see SyncService
+ */
+public class SyncHttpClient
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "SyncHttpClient";
+
+  /** Connection and socket timeout in ms. */
+  private static final int TIMEOUT = 10000;
+  /** Maximum number of pooled connections. */
+  private static final int MAX_CONNECTIONS = 2;
+  /** Time in seconds after which an idle pooled connection is closed. */
+  private static final long IDLE_TIMEOUT = 60;
+
+  private static DefaultHttpClient sClient;
+  private static volatile int sConnectCount = 0;
+
+  private SyncHttpClient() {}
+
+  /**
+   * Returns the shared client, creating it on first use. Response entities
+   * must always be consumed, or the connection is not returned to the pool.
+   * @return The shared {@code DefaultHttpClient}.
+   */
+  public static synchronized DefaultHttpClient getInstance()
+  {
+    if (sClient == null)
+    {
+      HttpParams params = new BasicHttpParams();
+      HttpConnectionParams.setConnectionTimeout(params, TIMEOUT);
+      HttpConnectionParams.setSoTimeout(params, TIMEOUT);
+      HttpConnectionParams.setStaleCheckingEnabled(params, true);
+      ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+
+      SchemeRegistry registry = new SchemeRegistry();
+      registry.register(new Scheme("http", new CountingSocketFactory(PlainSocketFactory.getSocketFactory()), 80));
+      registry.register(new Scheme("https", new CountingSocketFactory(SSLSocketFactory.getSocketFactory()), 443));
+      sClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+    }
+    // Drop connections the server has most likely closed in the meantime
+    sClient.getConnectionManager().closeExpiredConnections();
+    sClient.getConnectionManager().closeIdleConnections(IDLE_TIMEOUT, TimeUnit.SECONDS);
+    return sClient;
+  }
+
+  /**
+   * @return The number of connections opened since the process started.
+   * Each one costs a TCP handshake, plus a TLS one for https.
+   */
+  public static int getConnectCount()
+  {
+    return sConnectCount;
+  }
+
+  /** Socket factory counting the connections it makes. */
+  private static class CountingSocketFactory implements SocketFactory
+  {
+    private final SocketFactory mFactory;
+
+    CountingSocketFactory(SocketFactory factory)
+    {
+      mFactory = factory;
+    }
+
+    public Socket createSocket() throws IOException
+    {
+      return mFactory.createSocket();
+    }
+
+    public Socket connectSocket(Socket sock, String host, int port,
+                                InetAddress localAddress, int localPort,
+                                HttpParams params)
+      throws IOException, UnknownHostException, ConnectTimeoutException
+    {
+      sConnectCount++;
+      Log.i(TAG, "Opening connection " + sConnectCount + " to " + host + ":" + port);
+      return mFactory.connectSocket(sock, host, port, localAddress, localPort, params);
+    }
+
+    public boolean isSecure(Socket sock)
+    {
+      return mFactory.isSecure(sock);
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package com.prosthetics;
+
+import java.util.Random;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Decides when the next synchronisation with the server happens and sets a
+ * one-shot alarm for it. The delay shrinks as the backlog of rows not
+ * uploaded yet grows and as time passes since the last successful sync, is
+ * shortened on unmetered networks and while charging. Every alarm starts
+ * {@link SyncService}, whose worker thread counts the backlog and only
+ * reschedules when nothing is pending or there is no connectivity, so the
+ * dbs are never queried on the main thread.
+ * <p>
+ * Each alarm is set by the sync it started, so the chain would end if the
+ * process died in between. An inexact repeating alarm every
+ * {@link #FALLBACK_INTERVAL} restarts it in that case.
+ * <p>
+ * A failed sync is retried with exponential backoff: the first retry after
+ * {@link #RETRY_BASE_DELAY}, doubling with every failure in a row up to
+ * {@link #MAX_INTERVAL}. Each delay is randomised between half and all of its value, so devices that lost the
+ * server at the same time do not all come back at the same moment. The
+ * attempt count, the time of the next attempt and the error class are kept
+ * in {@link SyncState}, so the backoff carries on after the process dies.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see SyncAlarmReceiver
+ * @see SyncService
+ * @see SyncState
+ */
+public class SyncScheduler
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "SyncScheduler";
+  private static final boolean D = true;
+
+  /** Shortest delay between two syncs, in ms. */
+  private static final long MIN_INTERVAL = 60 * 1000;
+  /** Delay between two syncs with a small backlog and no special conditions. */
+  private static final long DEFAULT_INTERVAL = 128 * 1000;
+  /** Longest delay between two syncs, in ms. */
+  private static final long MAX_INTERVAL = AlarmManager.INTERVAL_HALF_HOUR;
+  /** Number of pending rows from which the default delay is halved. */
+  private static final long LARGE_BACKLOG = 5000;
+  /** Time since the last success after which the default delay is halved. */
+  private static final long STALE_AGE = AlarmManager.INTERVAL_HOUR;
+  /** Delay before the first retry of a failed sync, in ms. */
+  private static final long RETRY_BASE_DELAY = 5000;
+  /** Interval of the repeating alarm restarting the chain of one-shot alarms. */
+  private static final long FALLBACK_INTERVAL = AlarmManager.INTERVAL_HOUR;
+  /** Request code of the one-shot alarm. */
+  private static final int REQUEST_NEXT = 0;
+  /** Request code of the repeating fallback alarm. */
+  private static final int REQUEST_FALLBACK = 1;
+  /** Largest number of doublings of {@link #RETRY_BASE_DELAY}, so the shift cannot overflow. */
+  private static final int MAX_RETRY_SHIFT = 32;
+
+  private static final Random sRandom = new Random();
+
+  private SyncScheduler() {}
+
+  /**
+   * Turns scheduled syncs on, sets the repeating fallback alarm and a first
+   * alarm after {@link #MIN_INTERVAL}. Does not query the dbs, so it may be
+   * called on the main thread.
+   * @param context The {@code Context} used to reach the alarm service.
+   */
+  public static void start(Context context)
+  {
+    new SyncState(context).setEnabled(true);
+    long now = SystemClock.elapsedRealtime();
+    getAlarmManager(context).setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                                                 now + FALLBACK_INTERVAL, FALLBACK_INTERVAL,
+                                                 getPendingIntent(context, REQUEST_FALLBACK));
+    getAlarmManager(context).set(AlarmManager.ELAPSED_REALTIME_WAKEUP, now + MIN_INTERVAL,
+                                 getPendingIntent(context, REQUEST_NEXT));
+    if (D) Log.i(TAG, "Scheduled syncs started");
+  }
+
+  /**
+   * Turns scheduled syncs off and cancels the pending alarms.
+   * @param context The {@code Context} used to reach the alarm service.
+   */
+  public static void stop(Context context)
+  {
+    new SyncState(context).setEnabled(false);
+    getAlarmManager(context).cancel(getPendingIntent(context, REQUEST_NEXT));
+    getAlarmManager(context).cancel(getPendingIntent(context, REQUEST_FALLBACK));
+    if (D) Log.i(TAG, "Scheduled syncs stopped");
+  }
+
+  /**
+   * Sets the alarm of the next sync, replacing any pending one. Does nothing
+   * if scheduled syncs are turned off. Counts the rows of every synchronised
+   * table, so it must not be called on the main thread.
+   * @param context The {@code Context} used to reach the alarm service.
+   */
+  public static void scheduleNext(Context context)
+  {
+    SyncState state = new SyncState(context);
+    if (!state.isEnabled())
+      return;
+    long delay = getNextDelay(context, state);
+    getAlarmManager(context).set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                                 SystemClock.elapsedRealtime() + delay,
+                                 getPendingIntent(context, REQUEST_NEXT));
+    if (D) Log.i(TAG, "Next sync in " + delay + "ms");
+  }
+
+  /**
+   * Records that a sync failed and sets the alarm of the retry, after a
+   * jittered exponential backoff. Does nothing but record the failure if
+   * scheduled syncs are turned off. Must not be called on the main thread.
+   * @param context The {@code Context} used to reach the alarm service.
+   * @param error The class of the error, see {@link SyncState#getLastError()}.
+   */
+  public static void scheduleRetry(Context context, String error)
+  {
+    SyncState state = new SyncState(context);
+    long delay = getRetryDelay(state.getRetryAttempts());
+    state.recordFailure(error, System.currentTimeMillis() + delay);
+    scheduleNext(context);
+  }
+
+  /**
+   * Tells whether a sync is worth running now, i.e. no retry is due later,
+   * there is connectivity and at least one row has not been uploaded yet.
+   * Counts the rows of every synchronised table, so it must not be called
+   * on the main thread.
+   * @param context The {@code Context} used to reach the dbs.
+   * @return {@code true} if {@link SyncService} should upload.
+   */
+  public static boolean shouldSync(Context context)
+  {
+    SyncState state = new SyncState(context);
+    if (state.getNextAttempt() > System.currentTimeMillis())
+    {
+      if (D) Log.i(TAG, "Backing off after " + state.getLastError() + ", skipping sync");
+      return false;
+    }
+    if (getActiveNetwork(context) == null)
+    {
+      if (D) Log.i(TAG, "No connectivity, skipping sync");
+      return false;
+    }
+    if (countPending(context, state) == 0)
+    {
+      if (D) Log.i(TAG, "Nothing pending, skipping sync");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Works out the delay until the next sync from the backlog, the time since
+   * the last success, the network, the power source and any pending retry.
+   */
+  private static long getNextDelay(Context context, SyncState state)
+  {
+    long retryDelay = state.getNextAttempt() - System.currentTimeMillis();
+    if (retryDelay > 0)
+    {
+      // A retry is pending, regardless of the conditions
+      return Math.min(retryDelay, MAX_INTERVAL);
+    }
+
+    NetworkInfo network = getActiveNetwork(context);
+    if (network == null)
+      return MAX_INTERVAL;
+
+    long pending = countPending(context, state);
+    if (pending == 0)
+      return MAX_INTERVAL;
+
+    long delay = DEFAULT_INTERVAL;
+    if (pending >= LARGE_BACKLOG)
+      delay /= 2;
+    if (System.currentTimeMillis() - state.getLastSuccess() >= STALE_AGE)
+      delay /= 2;
+    if (isMetered(context, network))
+      delay *= 4;
+    if (!isCharging(context))
+      delay *= 2;
+    return Math.max(MIN_INTERVAL, Math.min(delay, MAX_INTERVAL));
+  }
+
+  /**
+   * Returns the delay before retrying after {@code attempts} failed syncs
+   * in a row, randomised between half and all of the backoff.
+   */
+  private static long getRetryDelay(int attempts)
+  {
+    long delay = Math.min(RETRY_BASE_DELAY << Math.min(Math.max(attempts, 0), MAX_RETRY_SHIFT), MAX_INTERVAL);
+    return delay / 2 + (long) (sRandom.nextDouble() * (delay / 2));
+  }
+
+  /** Counts the rows of every synchronised table above its high-water mark. */
+  private static long countPending(Context context, SyncState state)
+  {
+    PatientDB patientDB = PatientDB.getInstance(context);
+    return LocationsDB.getInstance(context).countPendingLocations(
+               state.getHighWaterMark(LocationsDBHelper.TABLE))
+         + patientDB.countPendingSamples(PatientDBHelper.ACC_TABLE,
+               state.getHighWaterMark(PatientDBHelper.ACC_TABLE))
+         + patientDB.countPendingSamples(PatientDBHelper.TEM_TABLE,
+               state.getHighWaterMark(PatientDBHelper.TEM_TABLE))
+         + patientDB.countPendingSamples(PatientDBHelper.ACC_SUMMARY_TABLE,
+               state.getHighWaterMark(PatientDBHelper.ACC_SUMMARY_TABLE))
+         + patientDB.countPendingSamples(PatientDBHelper.TEM_SUMMARY_TABLE,
+               state.getHighWaterMark(PatientDBHelper.TEM_SUMMARY_TABLE))
+         + patientDB.countPendingSamples(PatientDBHelper.ACTIVITY_TABLE,
+               state.getHighWaterMark(PatientDBHelper.ACTIVITY_TABLE));
+  }
+
+  /** @return The connected active network, or {@code null} if there is none. */
+  private static NetworkInfo getActiveNetwork(Context context)
+  {
+    ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    NetworkInfo network = cm.getActiveNetworkInfo();
+    return network != null && network.isConnected() ? network : null;
+  }
+
+  /** Tells whether traffic on {@code network} may cost the patient money. */
+  private static boolean isMetered(Context context, NetworkInfo network)
+  {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+    {
+      ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+      return cm.isActiveNetworkMetered();
+    }
+    return network.getType() != ConnectivityManager.TYPE_WIFI;
+  }
+
+  /** Reads the sticky battery broadcast to tell whether the phone is plugged in. */
+  private static boolean isCharging(Context context)
+  {
+    Intent battery = context.getApplicationContext().registerReceiver(
+        null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+  }
+
+  private static AlarmManager getAlarmManager(Context context)
+  {
+    return (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+  }
+
+  /** Returns the intent of the alarm with {@code requestCode}, so both alarms can be set at once. */
+  private static PendingIntent getPendingIntent(Context context, int requestCode)
+  {
+    Intent intent = new Intent(context.getApplicationContext(), SyncAlarmReceiver.class);
+    return PendingIntent.getBroadcast(context.getApplicationContext(), requestCode, intent, 0);
+  }
+}
@@ -3,41 +3,23 @@ package com.prosthetics;
 import com.prosthetics.LocationsDB;
 import com.prosthetics.CancelableThread;
 
-import java.io.IOException;
-
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.message.BasicHeader;
-import org.apache.http.protocol.HTTP;
-import org.apache.http.util.EntityUtils;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.StatusLine;
-
-import org.json.JSONObject;
-import org.json.JSONArray;
-
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
 import android.os.IBinder;
 import android.os.PowerManager;
-import android.util.Base64;
+import android.os.SystemClock;
 import android.util.Log;
 
 
 /**
  * This class performs the synchronisation with a central server. It contacts
- * the server using HTTP, and pushes new data as an array of JSON objects.
+ * the server using HTTP, and pushes new location, accelerometer and temperature
+ * data as arrays of JSON objects read from the local dbs in size-capped
+ * batches, each sent with a {@code Content-Length} and gzip compressed when
+ * the server advertises support for it. The requests of each table are
+ * made by a {@link TableUploader}.
  * @author aumar11 and jbanford, based on prior work by
  * @author Stephen Bell
  * @author Jakub Konka
@@ -50,46 +32,39 @@ public class SyncService extends Service
 	 */
 	public final static String TAG = "SyncService";
 
-	/**
-	 * Encoding type.
-	 */
-	private final static String CHARSET = "UTF-8";
-
-    /** 
-     * Full path to the MySQL database on the server storing location data.
-     */
-    private final static String PATH = "http://sederunt.org/locations/input";
-
 	/**
 	 * Server host name.
 	 */
 	private String HOST = "sederunt.org";
 
 	/**
-	 * Full path to the Sinatra script returning the latest data id on the server.
-	 */
-	private final static String LATEST_PATH = "http://sederunt.org/locations/latest";
-
-	/**
-	 * Connection timeout param.
+	 * Tables synchronised with the server, in the order they are pushed.
 	 */
-	private final static int CONNECTION_TIMEOUT = 10000;
+	private final static String[] TABLES = new String[] {
+		LocationsDBHelper.TABLE,
+		PatientDBHelper.ACTIVITY_TABLE,
+		PatientDBHelper.ACC_SUMMARY_TABLE,
+		PatientDBHelper.TEM_SUMMARY_TABLE,
+		PatientDBHelper.ACC_TABLE,
+		PatientDBHelper.TEM_TABLE
+	};
 
 	/**
-	 * Maximum number of network retries param.
+	 * Time in ms after which the wake lock of a sync is released even if the
+	 * sync is still running.
 	 */
-	private final static int MAXIMUM_NETWORK_RETRIES = 3;
+	private final static long WAKE_LOCK_TIMEOUT = 2 * 60 * 1000;
 
-	/**
-	 * Consecutive pushing retry delay values.
-	 */
-	private final static int[] NETWORK_RETRY_DELAY = new int[] {5000, 10000, 20000};
-
-	private boolean mHasError = false;
+	private SyncState mSyncState;
 	private PowerManager mPowerManager;
 	private PowerManager.WakeLock mWakeLock;
 
-	SyncThread mSyncThread; 
+	/** The thread of the sync in flight, or {@code null}. Guarded by {@code this}. */
+	private SyncThread mSyncThread;
+	/** Set when a start arrives while a sync is in flight. Guarded by {@code this}. */
+	private boolean mSyncRequested = false;
+	/** Id of the latest start, passed to {@link #stopSelfResult(int)}. */
+	private int mLastStartId;
 
 	/** Called when the service is first created. */
 	@Override
@@ -99,7 +74,10 @@ public class SyncService extends Service
 		Log.i(TAG, "Creating service");
 		mPowerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
 		mWakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-		mWakeLock.acquire();
+		mWakeLock.setReferenceCounted(false);
+		mSyncState = new SyncState(this);
+		// Tables with pending migrations are skipped until the runner is done
+		MigrationRunner.startIfNeeded(this);
 	}
 
 	/** Called when the service is started. */                      
@@ -107,8 +85,19 @@ public class SyncService extends Service
 	public int onStartCommand(Intent intent, int flags, int startId)
 	{
 		Log.i(TAG, "onStartCommand called");
-		mSyncThread = new SyncThread();
-		mSyncThread.start();
+		synchronized (this)
+		{
+			mLastStartId = startId;
+			if (mSyncThread != null)
+			{
+				// Merge into the sync in flight rather than uploading the same rows twice
+				Log.i(TAG, "Sync already in flight, coalescing request");
+				mSyncRequested = true;
+				return 0;
+			}
+			mSyncThread = new SyncThread();
+			mSyncThread.start();
+		}
 		return 0;
 	}
 
@@ -117,8 +106,11 @@ public class SyncService extends Service
 	public void onDestroy()
 	{
 		super.onDestroy();
-		Log.i(TAG, "Releasing WakeLock");
-		mWakeLock.release();
+		if (mWakeLock.isHeld())
+		{
+			Log.i(TAG, "Releasing WakeLock");
+			mWakeLock.release();
+		}
 	}
 
 	/**
@@ -131,60 +123,6 @@ public class SyncService extends Service
 		return null;
 	}
 
-	/**
-	 * Updates the server with new data.
-	 * @param url,
-	 * @param json.
-	 */
-	private int updateServer(String url, String json)
-	{
-		Log.i(TAG, "Synchronising new location data with server");
-		HttpParams myParams = new BasicHttpParams();
-	    HttpConnectionParams.setConnectionTimeout(myParams, 10000);
-	    HttpConnectionParams.setSoTimeout(myParams, 10000);
-	    HttpClient httpclient = new DefaultHttpClient(myParams);
-
-
-
-
-    try
-    {
-      HttpPost httppost = new HttpPost(url);
-      httppost.setHeader("Content-type", "application/json");
-      httppost.setHeader("Authorization",
-      					 "Basic " + Base64.encodeToString("admin:admin".getBytes(),
-      					  Base64.NO_WRAP));
-
-      StringEntity se = new StringEntity(json); 
-      se.setContentEncoding(new BasicHeader(HTTP.CONTENT_TYPE, "application/json"));
-      httppost.setEntity(se); 
-
-      HttpResponse response = httpclient.execute(httppost);
-     	HttpEntity entity = response.getEntity();
-			Log.i(TAG, EntityUtils.toString(entity, SyncService.CHARSET));
-			StatusLine status = response.getStatusLine();
-			int statusCode = status.getStatusCode();
-
-			if (statusCode == HttpStatus.SC_OK)
-			{
-				Log.i(TAG, "Updated successfully" + PATH);
-				return 0;
-			} 
-			else
-			{
-				Log.i(TAG, "Statuscode: " + statusCode);
-				mHasError = true;
-				return -1;
-			}
-    }
-		catch (Exception e)
-		{
-			Log.i(TAG, "Exception occurred: " + e.getMessage());
-			mHasError = true;
-			return -1;
-		}
-	}
-
 	/**
 	 * Private nested class implementing cancelable thread. This class performs
 	 * the synchronisation with the server using a separate worker thread (to offload
@@ -200,83 +138,179 @@ public class SyncService extends Service
 		}
 
 		/**
-		 * Starts the thread.
-		 * The thread is cancelled after the method hits the end of its code.
+		 * Starts the thread. Unless {@link SyncScheduler} finds nothing to
+		 * upload, in which case it only schedules the next check, runs one
+		 * sync, and another one for as long as starts were merged into the
+		 * previous one and it succeeded, then stops the service. After an
+		 * error the retry alarm takes over. The thread is cancelled after the
+		 * method hits the end of its code.
 		 */
 		public void run()
 		{
-			Log.i(SyncService.TAG, "Synchronising device with external server");
-			int tryCount = 0;
-			String latestID = "";
-			while (tryCount < MAXIMUM_NETWORK_RETRIES + 1)
+			// Counts the backlog of every table, kept off the alarm's main thread
+			if (!SyncScheduler.shouldSync(SyncService.this))
 			{
-				Log.i(SyncService.TAG, "Attempt: " + (tryCount + 1));
-				String latestData = new String();
-				DefaultHttpClient httpClient = new DefaultHttpClient(new BasicHttpParams());
-				HttpConnectionParams.setConnectionTimeout(httpClient.getParams(), CONNECTION_TIMEOUT);        
-				try
-				{
-					HttpGet httpGet = new HttpGet(LATEST_PATH);                        
-					HttpResponse httpResponse = httpClient.execute(httpGet);
-					int statusCode = httpResponse.getStatusLine().getStatusCode();
-					if (statusCode == HttpStatus.SC_OK)
-					{
-						HttpEntity httpEntity = httpResponse.getEntity();
-						if (httpEntity != null)
-						{
-							latestID = EntityUtils.toString(httpEntity, SyncService.CHARSET);
-							latestID = latestID.replace("\n", "").replace("\r", "");
-							Log.i(SyncService.TAG, "Latest ID in locations: " + latestID);
-						}
-						else
-						{
-							Log.d(SyncService.TAG, "Server did not respond");
-							mHasError = true;
-						}
-					} else {
-						Log.d(SyncService.TAG, "Server responded with status code: " + statusCode);
-						mHasError = true;
-					}
-				} catch (Exception e)
-				{
-					Log.d(SyncService.TAG, "Exception occurred: " + e.getMessage());
-					mHasError = true;
-				}               
-				if (!mHasError)
+				SyncScheduler.scheduleNext(SyncService.this);
+				takeSyncRequest(false);
+				return;
+			}
+			boolean succeeded;
+			do
+				succeeded = sync();
+			while (takeSyncRequest(succeeded));
+		}
+
+		/**
+		 * Clears a start merged into the sync that just finished. If there is
+		 * none, or another sync may not run, the thread is done and the service
+		 * stops itself, unless a newer start than the one handled arrives in
+		 * the meantime.
+		 * @param mayRepeat {@code false} if the sync that just finished failed.
+		 * @return {@code true} if another sync should run right away.
+		 */
+		private boolean takeSyncRequest(boolean mayRepeat)
+		{
+			synchronized (SyncService.this)
+			{
+				if (mayRepeat && mSyncRequested && !hasCanceled())
 				{
-					Log.i(SyncService.TAG, "NO ERROR LOL");
-					LocationsDB db = new LocationsDB(SyncService.this); // Error :(
-					String locations = db.getLatestLocations(Integer.parseInt(latestID)).toString();
-                    Log.i(SyncService.TAG, "JSONObject looks like: " + locations);
-					updateServer(PATH, locations);
+					mSyncRequested = false;
+					return true;
 				}
-				if (mHasError)
+				mSyncRequested = false;
+				mSyncThread = null;
+				stopSelfResult(mLastStartId);
+				return false;
+			}
+		}
+
+		/**
+		 * Pushes every table, then records the outcome and schedules the next
+		 * sync or the retry.
+		 * @return {@code true} if the sync succeeded.
+		 */
+		private boolean sync()
+		{
+			Log.i(SyncService.TAG, "Synchronising device with external server");
+			int connectCount = SyncHttpClient.getConnectCount();
+			TableUploader uploader = new TableUploader(mSyncState, SyncHttpClient.getInstance());
+			// Keep the CPU awake only while uploading, and never for longer than the timeout
+			long wakeStart = SystemClock.elapsedRealtime();
+			mWakeLock.acquire(WAKE_LOCK_TIMEOUT);
+			try
+			{
+				for (int i = 0; i < TABLES.length && !uploader.hasError(); i++)
 				{
-					tryCount++;
-					if (tryCount >= MAXIMUM_NETWORK_RETRIES)
-						break;
-					Log.i(SyncService.TAG, "Incrementing try count to " 
-						                   + tryCount
-						                   + " and sleeping for "
-						                   + NETWORK_RETRY_DELAY[tryCount-1]);
-					mHasError = false;
-					try
+					if (isMigrating(TABLES[i]))
 					{
-						Thread.sleep(NETWORK_RETRY_DELAY[tryCount - 1]);
+						// Old rows have lower ids than new ones, uploading now would skip them
+						Log.i(SyncService.TAG, "Not pushing " + TABLES[i] + " until its migration is finished");
+						continue;
 					}
-					catch (InterruptedException e) {}
-				} 
-				else
-				{
-					break;
+					uploader.upload(TABLES[i], new TableSource(TABLES[i]));
 				}
 			}
+			catch (RuntimeException e)
+			{
+				Log.e(SyncService.TAG, "Sync failed", e);
+				uploader.fail(e.getClass().getSimpleName());
+			}
+			finally
+			{
+				if (mWakeLock.isHeld())
+					mWakeLock.release();
+			}
+			long wakeTime = Math.min(SystemClock.elapsedRealtime() - wakeStart, WAKE_LOCK_TIMEOUT);
+			mSyncState.recordWakeLockTime(wakeTime);
+			Log.i(SyncService.TAG, "WakeLock held for " + wakeTime + "ms"
+			                       + (wakeTime >= WAKE_LOCK_TIMEOUT ? " (timed out)" : "")
+			                       + ", " + mSyncState.getWakeLockTime() + "ms over "
+			                       + mSyncState.getSyncCount() + " syncs");
 
-			if (!mHasError) 
-				Log.i(SyncService.TAG, "Server updated successfully");
+			if (!uploader.hasError()) 
+			{
+				Log.i(SyncService.TAG, "Server updated successfully, " + uploader.getRowsAcked() + " rows acknowledged");
+				mSyncState.recordSuccess();
+				SyncScheduler.scheduleNext(SyncService.this);
+				// Acknowledged rows may now have aged out of the local dbs
+				new RetentionManager(SyncService.this).runIfDue();
+			}
 			else 
-				Log.i(SyncService.TAG, "Failed to update the server");
-			stopSelf();
+			{
+				// Retry from an alarm rather than sleeping under the wake lock
+				Log.i(SyncService.TAG, "Failed to update the server: " + uploader.getError());
+				SyncScheduler.scheduleRetry(SyncService.this, uploader.getError());
+			}
+			Log.i(SyncService.TAG, "Connections opened during sync: "
+			                       + (SyncHttpClient.getConnectCount() - connectCount));
+			return !uploader.hasError();
 		}
-	}   
-}
\ No newline at end of file
+
+		/**
+		 * Tells whether a schema migration of {@code table} is unfinished.
+		 */
+		private boolean isMigrating(String table)
+		{
+			if (LocationsDBHelper.TABLE.equals(table))
+				return LocationsDB.getInstance(SyncService.this).isMigrating();
+			return PatientDB.getInstance(SyncService.this).isMigrating(table);
+		}
+	}
+
+	/**
+	 * The rows of one of the {@link #TABLES} in the local dbs, as pushed by
+	 * {@link TableUploader}.
+	 */
+	private class TableSource implements TableUploader.RowSource
+	{
+		private final String mTable;
+
+		TableSource(String table)
+		{
+			mTable = table;
+		}
+
+		public Cursor queryRows(long latestId, int limit)
+		{
+			if (PatientDBHelper.ACC_TABLE.equals(mTable))
+				return PatientDB.getInstance(SyncService.this).queryLatestAccelerometerSamples(latestId, limit);
+			if (PatientDBHelper.TEM_TABLE.equals(mTable))
+				return PatientDB.getInstance(SyncService.this).queryLatestTemperatureSamples(latestId, limit);
+			if (PatientDBHelper.ACTIVITY_TABLE.equals(mTable))
+				return PatientDB.getInstance(SyncService.this).queryLatestActivity(latestId, limit);
+			if (PatientDBHelper.ACC_SUMMARY_TABLE.equals(mTable)
+			    || PatientDBHelper.TEM_SUMMARY_TABLE.equals(mTable))
+				return PatientDB.getInstance(SyncService.this).queryLatestSummaries(mTable, latestId, limit);
+			return LocationsDB.getInstance(SyncService.this).queryLatestLocations(latestId, limit);
+		}
+
+		/**
+		 * Sensor tables are sent in the {@link ColumnarFormat} layout if the
+		 * server supports it, everything else as size-capped JSON.
+		 */
+		public UploadBatch createEntity(Cursor rows, boolean columnar, long maxSize)
+		{
+			if (PatientDBHelper.ACC_TABLE.equals(mTable))
+				return columnar
+				     ? new ColumnarEntity(rows, PatientDB.ACC_EXPORT_TYPES, maxSize)
+				     : new CursorJsonEntity(rows, mTable, PatientDB.ACC_EXPORT_TYPES, maxSize);
+			if (PatientDBHelper.TEM_TABLE.equals(mTable))
+				return columnar
+				     ? new ColumnarEntity(rows, PatientDB.TEM_EXPORT_TYPES, maxSize)
+				     : new CursorJsonEntity(rows, mTable, PatientDB.TEM_EXPORT_TYPES, maxSize);
+			if (PatientDBHelper.ACTIVITY_TABLE.equals(mTable))
+				return columnar
+				     ? new ColumnarEntity(rows, PatientDB.ACTIVITY_EXPORT_TYPES, maxSize)
+				     : new CursorJsonEntity(rows, mTable, PatientDB.ACTIVITY_EXPORT_TYPES, maxSize);
+			if (PatientDBHelper.ACC_SUMMARY_TABLE.equals(mTable))
+				return columnar
+				     ? new ColumnarEntity(rows, PatientDB.ACC_SUMMARY_EXPORT_TYPES, maxSize)
+				     : new CursorJsonEntity(rows, mTable, PatientDB.ACC_SUMMARY_EXPORT_TYPES, maxSize);
+			if (PatientDBHelper.TEM_SUMMARY_TABLE.equals(mTable))
+				return columnar
+				     ? new ColumnarEntity(rows, PatientDB.TEM_SUMMARY_EXPORT_TYPES, maxSize)
+				     : new CursorJsonEntity(rows, mTable, PatientDB.TEM_SUMMARY_EXPORT_TYPES, maxSize);
+			return new CursorJsonEntity(rows, "location", LocationsDB.EXPORT_TYPES, maxSize);
+		}
+	}
+}
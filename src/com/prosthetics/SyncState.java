@@ -0,0 +1,266 @@
+package com.prosthetics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Persistent state of the synchronisation with the central server, kept in
+ * the app's {@code SharedPreferences} so it survives {@link SyncService}
+ * being stopped and the process being killed.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see SyncService
+ */
+public class SyncState
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "SyncState";
+  private static final boolean D = true;
+
+  /** Name of the preferences file. */
+  private static final String PREFS_NAME = "sync";
+  /** Key of the server base URL. */
+  private static final String KEY_SERVER = "server";
+  /** Key of the flag telling whether the server accepts gzip bodies. */
+  private static final String KEY_GZIP = "gzip";
+  /** Key of the flag telling whether the server accepts columnar bodies. */
+  private static final String KEY_COLUMNAR = "columnar";
+  /** Key of the flag telling whether syncs are scheduled at all. */
+  private static final String KEY_ENABLED = "enabled";
+  /** Key of the wall clock time of the last successful sync. */
+  private static final String KEY_LAST_SUCCESS = "last_success";
+  /** Key of the number of syncs that failed since the last successful one. */
+  private static final String KEY_RETRY_ATTEMPTS = "retry_attempts";
+  /** Key of the wall clock time before which no retry should start. */
+  private static final String KEY_NEXT_ATTEMPT = "next_attempt";
+  /** Key of the class of the error that made the last sync fail. */
+  private static final String KEY_LAST_ERROR = "last_error";
+  /** Key of the total time in ms syncs have held the wake lock. */
+  private static final String KEY_WAKE_LOCK_TIME = "wake_lock_time";
+  /** Key of the number of syncs counted in {@link #KEY_WAKE_LOCK_TIME}. */
+  private static final String KEY_SYNC_COUNT = "sync_count";
+  /** Prefix of the keys of the per-table high-water marks. */
+  private static final String KEY_HIGH_WATER_MARK = "hwm_";
+
+  /** Base URL of the server, unless overridden with {@link #setServer(String)}. */
+  public static final String DEFAULT_SERVER = "http://sederunt.org/";
+
+  private final SharedPreferences mPrefs;
+
+  /**
+   * Constructs an object of type {@code SyncState}.
+   * @param context The {@code Context} used to open the preferences.
+   */
+  public SyncState(Context context)
+  {
+    mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+  }
+
+  /**
+   * @return The base URL of the server, ending with a slash.
+   */
+  public String getServer()
+  {
+    return mPrefs.getString(KEY_SERVER, DEFAULT_SERVER);
+  }
+
+  /**
+   * Points the synchronisation at another server, e.g. a local stand-in.
+   * @param server The base URL of the server, ending with a slash, or
+   * {@code null} to go back to {@link #DEFAULT_SERVER}.
+   */
+  public void setServer(String server)
+  {
+    if (server == null)
+      mPrefs.edit().remove(KEY_SERVER).commit();
+    else
+      mPrefs.edit().putString(KEY_SERVER, server).commit();
+  }
+
+  /**
+   * Returns the highest row id of {@code table} the server has acknowledged.
+   * @param table The name of the synchronised table.
+   * @return The high-water mark, or 0 if nothing was acknowledged yet.
+   */
+  public long getHighWaterMark(String table)
+  {
+    return mPrefs.getLong(KEY_HIGH_WATER_MARK + table, 0);
+  }
+
+  /**
+   * @param table The name of the synchronised table.
+   * @return {@code true} if a high-water mark has been stored for {@code table}.
+   */
+  public boolean hasHighWaterMark(String table)
+  {
+    return mPrefs.contains(KEY_HIGH_WATER_MARK + table);
+  }
+
+  /**
+   * Records that the server holds every row of {@code table} up to {@code id}.
+   * @param table The name of the synchronised table.
+   * @param id The highest row id acknowledged by the server.
+   */
+  public void setHighWaterMark(String table, long id)
+  {
+    if (D) Log.i(TAG, "High-water mark of " + table + " is now " + id);
+    mPrefs.edit().putLong(KEY_HIGH_WATER_MARK + table, id).commit();
+  }
+
+  /**
+   * @return {@code true} if the server has advertised that it accepts gzip
+   * compressed request bodies.
+   */
+  public boolean isGzipSupported()
+  {
+    return mPrefs.getBoolean(KEY_GZIP, false);
+  }
+
+  /**
+   * Records whether the server accepts gzip compressed request bodies.
+   * @param supported {@code true} if it does.
+   */
+  public void setGzipSupported(boolean supported)
+  {
+    if (supported != isGzipSupported())
+    {
+      if (D) Log.i(TAG, "Server " + (supported ? "accepts" : "does not accept") + " gzip bodies");
+      mPrefs.edit().putBoolean(KEY_GZIP, supported).commit();
+    }
+  }
+
+  /**
+   * @return {@code true} if the server has advertised that it accepts
+   * {@link ColumnarFormat} request bodies.
+   */
+  public boolean isColumnarSupported()
+  {
+    return mPrefs.getBoolean(KEY_COLUMNAR, false);
+  }
+
+  /**
+   * Records whether the server accepts {@link ColumnarFormat} request bodies.
+   * @param supported {@code true} if it does.
+   */
+  public void setColumnarSupported(boolean supported)
+  {
+    if (supported != isColumnarSupported())
+    {
+      if (D) Log.i(TAG, "Server " + (supported ? "accepts" : "does not accept") + " columnar bodies");
+      mPrefs.edit().putBoolean(KEY_COLUMNAR, supported).commit();
+    }
+  }
+
+  /**
+   * @return {@code true} if syncs should be scheduled.
+   */
+  public boolean isEnabled()
+  {
+    return mPrefs.getBoolean(KEY_ENABLED, false);
+  }
+
+  /**
+   * Turns the scheduling of syncs on or off.
+   * @param enabled {@code true} to schedule syncs.
+   */
+  public void setEnabled(boolean enabled)
+  {
+    mPrefs.edit().putBoolean(KEY_ENABLED, enabled).commit();
+  }
+
+  /**
+   * @return The wall clock time in ms of the last successful sync, or 0 if
+   * there has not been one.
+   */
+  public long getLastSuccess()
+  {
+    return mPrefs.getLong(KEY_LAST_SUCCESS, 0);
+  }
+
+  /**
+   * @return The number of syncs that failed since the last successful one.
+   */
+  public int getRetryAttempts()
+  {
+    return mPrefs.getInt(KEY_RETRY_ATTEMPTS, 0);
+  }
+
+  /**
+   * @return The wall clock time in ms before which the next retry should not
+   * start, or 0 if no retry is pending.
+   */
+  public long getNextAttempt()
+  {
+    return mPrefs.getLong(KEY_NEXT_ATTEMPT, 0);
+  }
+
+  /**
+   * @return The class of the error that made the last sync fail, e.g. the
+   * simple name of an exception or {@code "HTTP 503"}, or {@code null} if the
+   * last sync succeeded.
+   */
+  public String getLastError()
+  {
+    return mPrefs.getString(KEY_LAST_ERROR, null);
+  }
+
+  /**
+   * Records that a sync pushed everything that was pending, and clears the
+   * retry state.
+   */
+  public void recordSuccess()
+  {
+    mPrefs.edit()
+          .putLong(KEY_LAST_SUCCESS, System.currentTimeMillis())
+          .remove(KEY_RETRY_ATTEMPTS)
+          .remove(KEY_NEXT_ATTEMPT)
+          .remove(KEY_LAST_ERROR)
+          .commit();
+  }
+
+  /**
+   * Records that a sync gave up before pushing everything that was pending.
+   * @param error The class of the error, see {@link #getLastError()}.
+   * @param nextAttempt The wall clock time in ms before which no retry should
+   * start.
+   */
+  public void recordFailure(String error, long nextAttempt)
+  {
+    int attempts = getRetryAttempts() + 1;
+    if (D) Log.i(TAG, attempts + " failed syncs in a row, last one with " + error);
+    mPrefs.edit()
+          .putInt(KEY_RETRY_ATTEMPTS, attempts)
+          .putLong(KEY_NEXT_ATTEMPT, nextAttempt)
+          .putString(KEY_LAST_ERROR, error)
+          .commit();
+  }
+
+  /**
+   * @return The total time in ms syncs have held the wake lock.
+   */
+  public long getWakeLockTime()
+  {
+    return mPrefs.getLong(KEY_WAKE_LOCK_TIME, 0);
+  }
+
+  /**
+   * @return The number of syncs that have run.
+   */
+  public long getSyncCount()
+  {
+    return mPrefs.getLong(KEY_SYNC_COUNT, 0);
+  }
+
+  /**
+   * Adds the time a sync held the wake lock to the totals.
+   * @param time The time in ms.
+   */
+  public void recordWakeLockTime(long time)
+  {
+    mPrefs.edit()
+          .putLong(KEY_WAKE_LOCK_TIME, getWakeLockTime() + time)
+          .putLong(KEY_SYNC_COUNT, getSyncCount() + 1)
+          .commit();
+  }
+}
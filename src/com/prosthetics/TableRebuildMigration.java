@@ -0,0 +1,76 @@
+package com.prosthetics;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Migration recreating a table with a new definition, e.g. to change column
+ * types. The upgrade renames the table to {@code <table>_v<previous version>},
+ * creates the new one and carries the autoincrement counter over, so new
+ * rows get higher ids than any existing one. The existing rows are then
+ * moved over in batches, converted by a {@code select} expression, and the
+ * legacy table is dropped once empty.
+ * <p>
+ * While rows are being moved, the ids of the new table are not in insertion
+ * order, so it must not be read incrementally by id. A later rebuild of the
+ * same table must not be released before this one has had time to finish.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see SchemaMigration
+ * @see DBMaintenance#moveBatch
+ */
+public class TableRebuildMigration extends SchemaMigration
+{
+  private final String mTable;
+  private final String mLegacyTable;
+  private final String[] mCreateSql;
+  private final String mColumns;
+  private final String mSelect;
+
+  /**
+   * Constructs an object of type {@code TableRebuildMigration}.
+   * @param version The schema version the migration leads to.
+   * @param table The name of the rebuilt table.
+   * @param createSql The statements creating the new table and its indexes.
+   * @param columns The comma separated columns of the new table filled from
+   * the legacy one.
+   * @param select The comma separated expressions over the legacy table
+   * giving the values of {@code columns}.
+   */
+  public TableRebuildMigration(int version, String table, String[] createSql,
+                               String columns, String select)
+  {
+    super(version);
+    mTable = table;
+    mLegacyTable = table + "_v" + (version - 1);
+    mCreateSql = createSql;
+    mColumns = columns;
+    mSelect = select;
+  }
+
+  @Override
+  public void upgrade(SQLiteDatabase db)
+  {
+    db.execSQL("alter table " + mTable + " rename to " + mLegacyTable);
+    for (int i = 0; i < mCreateSql.length; i++)
+      db.execSQL(mCreateSql[i]);
+    DBMaintenance.copySequence(db, mLegacyTable, mTable);
+  }
+
+  @Override
+  public boolean isPending(SQLiteDatabase db)
+  {
+    return DBMaintenance.tableExists(db, mLegacyTable);
+  }
+
+  @Override
+  public int migrateBatch(SQLiteDatabase db, int limit)
+  {
+    return DBMaintenance.moveBatch(db, mLegacyTable, mTable, mColumns, mSelect, limit);
+  }
+
+  @Override
+  public boolean affects(String table)
+  {
+    return mTable.equals(table);
+  }
+}
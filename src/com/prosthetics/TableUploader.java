@@ -0,0 +1,352 @@
+package com.prosthetics;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.util.EntityUtils;
+
+import android.database.Cursor;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * Pushes the rows of one table after another to the server, for the
+ * duration of a single sync. Rows are sent in batches of at most
+ * {@link #CHUNK_SIZE} rows and {@link #MAX_BATCH_SIZE} characters or bytes
+ * to {@code <server>/<table>/input}, starting right away from the locally
+ * stored high-water mark. The server's answer to each batch confirms the
+ * accepted range, which is stored as the new high-water mark, so a drop
+ * halfway only resends the unacknowledged tail. The server's latest id is
+ * only fetched from {@code <server>/<table>/latest} when the local
+ * high-water mark is unknown or the server reports a mismatch.
+ * <p>
+ * The first failure ends the sync: {@link #upload(String, RowSource)} does
+ * nothing once {@link #hasError()}.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see SyncService
+ * @see SyncState
+ */
+public class TableUploader
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "TableUploader";
+
+  /** Maximum number of rows pushed in a single request. */
+  public static final int CHUNK_SIZE = 500;
+
+  /**
+   * Size in characters, or bytes in the columnar format, after which no
+   * further rows are added to a request.
+   */
+  public static final long MAX_BATCH_SIZE = 64 * 1024;
+
+  /**
+   * Header of an upload telling the server the id the batch continues from.
+   * If it does not match the server's latest id, the server answers with
+   * {@code 409 Conflict} and its latest id instead of storing the batch.
+   */
+  public static final String SINCE_HEADER = "X-Since";
+
+  /** Encoding type. */
+  private static final String CHARSET = "UTF-8";
+
+  /**
+   * Value returned by {@link #updateServer} when the server rejected a batch
+   * because it does not continue from the server's latest id.
+   */
+  private static final long CONFLICT = -2;
+
+  /** Maximum number of mismatches accepted per table and attempt. */
+  private static final int MAXIMUM_CONFLICTS = 2;
+
+  /**
+   * The rows of one table, as read by {@link TableUploader}.
+   */
+  public interface RowSource
+  {
+    /**
+     * @param latestId The highest id already held by the server.
+     * @param limit The maximum number of rows.
+     * @return The rows with an id above {@code latestId}, in id order, with
+     * the id in the first column.
+     */
+    Cursor queryRows(long latestId, int limit);
+
+    /**
+     * Wraps rows returned by {@link #queryRows(long, int)} in a request
+     * body the server accepts for the table.
+     * @param rows The rows, positioned before the first one.
+     * @param columnar {@code true} if the server accepts the
+     * {@link ColumnarFormat} layout.
+     * @param maxSize The size after which no further rows are added.
+     */
+    UploadBatch createEntity(Cursor rows, boolean columnar, long maxSize);
+  }
+
+  private final SyncState mSyncState;
+  private final HttpClient mClient;
+  private String mError;
+  private long mRowsAcked = 0;
+
+  /**
+   * Constructs an object of type {@code TableUploader}.
+   * @param syncState The high-water marks and server capabilities, updated
+   * as batches are acknowledged.
+   * @param client The client sending the requests, e.g.
+   * {@link SyncHttpClient#getInstance()}.
+   */
+  public TableUploader(SyncState syncState, HttpClient client)
+  {
+    mSyncState = syncState;
+    mClient = client;
+  }
+
+  /**
+   * Pushes the rows of {@code table} the server does not hold yet.
+   * @param table The name of the table, as known to the server.
+   * @param source The rows of the table.
+   * @return {@code false} if this or an earlier upload failed.
+   */
+  public boolean upload(String table, RowSource source)
+  {
+    if (hasError())
+      return false;
+    long latestId = mSyncState.hasHighWaterMark(table)
+                  ? mSyncState.getHighWaterMark(table)
+                  : reconcile(table);
+    int conflicts = 0;
+    while (!hasError())
+    {
+      Cursor rows = source.queryRows(latestId, CHUNK_SIZE);
+      try
+      {
+        int count = rows.getCount();
+        if (count == 0)
+          break;
+        Log.i(TAG, "Pushing up to " + count + " rows of " + table + " after " + latestId);
+        UploadBatch entity = source.createEntity(rows, mSyncState.isColumnarSupported(), MAX_BATCH_SIZE);
+        long acked = updateServer(table, entity, latestId);
+        if (acked == CONFLICT && ++conflicts <= MAXIMUM_CONFLICTS)
+        {
+          latestId = mSyncState.getHighWaterMark(table);
+          continue;
+        }
+        if (hasError())
+          break;
+        if (acked <= latestId)
+        {
+          Log.i(TAG, "Server did not accept any row of " + table);
+          fail("No progress");
+          break;
+        }
+        mRowsAcked += acked - latestId;
+        latestId = acked;
+        mSyncState.setHighWaterMark(table, latestId);
+      }
+      finally
+      {
+        rows.close();
+      }
+    }
+    return !hasError();
+  }
+
+  /**
+   * Marks the sync as failed, e.g. when reading a table threw.
+   * @param error The class of the error.
+   */
+  public void fail(String error)
+  {
+    if (mError == null)
+      mError = error;
+  }
+
+  /**
+   * @return {@code true} once an upload failed.
+   */
+  public boolean hasError()
+  {
+    return mError != null;
+  }
+
+  /**
+   * @return The class of the error the sync failed with, or {@code null}.
+   */
+  public String getError()
+  {
+    return mError;
+  }
+
+  /**
+   * @return The number of ids the server acknowledged so far.
+   */
+  public long getRowsAcked()
+  {
+    return mRowsAcked;
+  }
+
+  /**
+   * Updates the server with new data. The server answers with the highest
+   * row id it has accepted, which may be lower than the last one sent. If
+   * the batch does not continue from the server's latest id, the server
+   * answers {@code 409 Conflict} with its latest id, which is then stored as
+   * the new high-water mark of {@code table}.
+   * @param table The name of the table being pushed.
+   * @param entity The request body holding the new rows.
+   * @param since The id the batch continues from.
+   * @return The highest id acknowledged by the server, {@link #CONFLICT} if
+   * the high-water mark was out of date, or -1 on failure.
+   */
+  private long updateServer(String table, UploadBatch entity, long since)
+  {
+    String url = mSyncState.getServer() + table + "/input";
+    Log.i(TAG, "Synchronising new data with " + url);
+    try
+    {
+      HttpPost httppost = new HttpPost(url);
+      httppost.setHeader("Authorization",
+                         "Basic " + Base64.encodeToString("admin:admin".getBytes(), Base64.NO_WRAP));
+      httppost.setHeader(SINCE_HEADER, Long.toString(since));
+      boolean gzip = mSyncState.isGzipSupported();
+      httppost.setEntity(gzip ? new GzipEntity(entity) : entity);
+
+      HttpResponse response = mClient.execute(httppost);
+      String body = EntityUtils.toString(response.getEntity(), CHARSET).trim();
+      Log.i(TAG, body);
+      int statusCode = response.getStatusLine().getStatusCode();
+
+      if (statusCode == HttpStatus.SC_OK)
+      {
+        updateCapabilities(response);
+        long acked;
+        try
+        {
+          acked = Math.min(Long.parseLong(body), entity.getLastId());
+        }
+        catch (NumberFormatException e)
+        {
+          // Server does not acknowledge batches, trust the status code
+          acked = entity.getLastId();
+        }
+        Log.i(TAG, "Updated successfully " + url + " up to " + acked);
+        return acked;
+      }
+      else if (statusCode == HttpStatus.SC_CONFLICT)
+      {
+        Log.i(TAG, "Server does not continue from " + since + ": " + body);
+        try
+        {
+          mSyncState.setHighWaterMark(table, Long.parseLong(body));
+          return CONFLICT;
+        }
+        catch (NumberFormatException e)
+        {
+          // Ask for the latest id separately
+          return reconcile(table) < 0 ? -1 : CONFLICT;
+        }
+      }
+      else
+      {
+        Log.i(TAG, "Statuscode: " + statusCode);
+        if (statusCode == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE)
+        {
+          // Fall back to plain JSON until the server advertises more again
+          if (gzip)
+            mSyncState.setGzipSupported(false);
+          if (entity instanceof ColumnarEntity)
+            mSyncState.setColumnarSupported(false);
+        }
+        fail("HTTP " + statusCode);
+        return -1;
+      }
+    }
+    catch (Exception e)
+    {
+      Log.i(TAG, "Exception occurred: " + e.getMessage());
+      fail(e.getClass().getSimpleName());
+      return -1;
+    }
+  }
+
+  /**
+   * Asks the server for the highest id it holds for {@code table}, and
+   * stores it as the high-water mark. Only needed when the local
+   * high-water mark is unknown or out of date.
+   * @param table The name of the table.
+   * @return The latest id on the server, or -1 if the request failed.
+   */
+  private long reconcile(String table)
+  {
+    try
+    {
+      HttpGet httpGet = new HttpGet(mSyncState.getServer() + table + "/latest");
+      HttpResponse httpResponse = mClient.execute(httpGet);
+      int statusCode = httpResponse.getStatusLine().getStatusCode();
+      if (statusCode == HttpStatus.SC_OK)
+      {
+        updateCapabilities(httpResponse);
+        HttpEntity httpEntity = httpResponse.getEntity();
+        if (httpEntity != null)
+        {
+          String latestID = EntityUtils.toString(httpEntity, CHARSET);
+          latestID = latestID.replace("\n", "").replace("\r", "");
+          Log.i(TAG, "Latest ID in " + table + ": " + latestID);
+          long latestId = latestID.length() == 0 ? 0 : Long.parseLong(latestID);
+          mSyncState.setHighWaterMark(table, latestId);
+          return latestId;
+        }
+        else
+        {
+          Log.d(TAG, "Server did not respond");
+        }
+      }
+      else
+      {
+        Log.d(TAG, "Server responded with status code: " + statusCode);
+        fail("HTTP " + statusCode);
+        // Release the connection back to the pool
+        if (httpResponse.getEntity() != null)
+          httpResponse.getEntity().consumeContent();
+        return -1;
+      }
+    }
+    catch (Exception e)
+    {
+      Log.d(TAG, "Exception occurred: " + e.getMessage());
+      fail(e.getClass().getSimpleName());
+      return -1;
+    }
+    fail("Empty response");
+    return -1;
+  }
+
+  /**
+   * Records which optional request body formats the server supports, as
+   * advertised by the headers of any successful response: gzip through
+   * {@code Accept-Encoding} and {@link ColumnarFormat} through
+   * {@code Accept-Post}. A format is only changed by a response carrying
+   * the header, since most uploads are answered without it; otherwise it
+   * is only turned off by a 415.
+   */
+  private void updateCapabilities(HttpResponse response)
+  {
+    if (response.containsHeader("Accept-Encoding"))
+      mSyncState.setGzipSupported(hasHeaderValue(response, "Accept-Encoding", GzipEntity.GZIP));
+    if (response.containsHeader("Accept-Post"))
+      mSyncState.setColumnarSupported(hasHeaderValue(response, "Accept-Post", ColumnarFormat.CONTENT_TYPE));
+  }
+
+  /** Tells whether a header of {@code response} mentions {@code value}. */
+  private static boolean hasHeaderValue(HttpResponse response, String name, String value)
+  {
+    for (Header header : response.getHeaders(name))
+      if (header.getValue().toLowerCase().contains(value))
+        return true;
+    return false;
+  }
+}
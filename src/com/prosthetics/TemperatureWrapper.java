@@ -14,32 +14,43 @@ public class TemperatureWrapper
   public final static String TAG = "TemperatureWrapper";
   private static final boolean D = true;
 
-  private String timestamp;
+  private long timestamp;
+  private String deviceTimestamp;
   private float temperature1;
   private float temperature2;
 
   /**
    * Constructs an object of type {@code TemperatureWrapper}.
-   * @param timestamp The timestamp of adding the temperature
-   * data to the patient db.
+   * @param timestamp The time the sample was received, in ms since the
+   * epoch.
+   * @param deviceTimestamp The timestamp sent by the embedded system.
    * @param temperature The temperature value from the sensor
    */
-  public TemperatureWrapper( String timestamp, float temperature1, float temperature2)
+  public TemperatureWrapper( long timestamp, String deviceTimestamp, float temperature1, float temperature2)
   {
     if (D) Log.i(TAG, "Create a LocationWrapper.");
     this.timestamp = timestamp;
+    this.deviceTimestamp = deviceTimestamp;
     this.temperature1 = temperature1;
     this.temperature2 = temperature2;
   }
   
   /**
-   * @return The recorded-at timestamp of the location.
+   * @return The time the sample was received, in ms since the epoch.
    */
-  public String getTimestamp()
+  public long getTimestamp()
   {
     return timestamp;
   }
 
+  /**
+   * @return The timestamp as sent by the embedded system.
+   */
+  public String getDeviceTimestamp()
+  {
+    return deviceTimestamp;
+  }
+
   /**
    * @return The value of tempererature1 that was recorded.
    */
@@ -0,0 +1,24 @@
+package com.prosthetics;
+
+import org.apache.http.HttpEntity;
+
+/**
+ * A request body holding a batch of rows pushed to the server by
+ * {@link SyncService}. The rows are sent in ascending id order.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ * @see CursorJsonEntity
+ * @see ColumnarEntity
+ */
+public interface UploadBatch extends HttpEntity
+{
+  /**
+   * @return The id of the last row written, or -1 if nothing was written.
+   */
+  long getLastId();
+
+  /**
+   * @return The number of rows written the last time the body was sent.
+   */
+  int getRowsWritten();
+}
@@ -0,0 +1,127 @@
+package com.prosthetics.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import android.content.res.AssetManager;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.prosthetics.ActivityFeatures;
+import com.prosthetics.AggregationSettings;
+import com.prosthetics.GaitFeatureExtractor;
+import com.prosthetics.SampleParser;
+
+/**
+ * Replays the recorded sample files in the {@link #RECORDINGS} directory of
+ * the test assets through {@link SampleParser} and a
+ * {@link GaitFeatureExtractor} with the default settings, and checks the
+ * steps and activity class of each against {@link #EXPECTED}. A recording
+ * is a stream as sent by the embedded system, one frame per line; adding
+ * one only takes the file and its two entries in {@link #EXPECTED}.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ */
+public class GaitReplayTest extends InstrumentationTestCase
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "GaitReplayTest";
+
+  /** Directory of the recordings in the test assets. */
+  private static final String RECORDINGS = "gait";
+  /**
+   * Expected results, {@code <name>.steps} for the number of steps and
+   * {@code <name>.class} for the {@code CLASS_} constant of
+   * {@link ActivityFeatures} every window must have.
+   */
+  private static final String EXPECTED = "expected.properties";
+  /** Share of the expected steps the extractor may miss or add. */
+  private static final double STEP_TOLERANCE = 0.05;
+
+  public void testRecordings() throws IOException
+  {
+    AssetManager assets = getInstrumentation().getContext().getAssets();
+    Properties expected = new Properties();
+    InputStream in = assets.open(RECORDINGS + "/" + EXPECTED);
+    try
+    {
+      expected.load(in);
+    }
+    finally
+    {
+      in.close();
+    }
+
+    int replayed = 0;
+    for (String file : assets.list(RECORDINGS))
+    {
+      if (!file.endsWith(".csv"))
+        continue;
+      in = assets.open(RECORDINGS + "/" + file);
+      try
+      {
+        check(file.substring(0, file.length() - 4), replay(in), expected);
+      }
+      finally
+      {
+        in.close();
+      }
+      replayed++;
+    }
+    assertTrue("No recordings in " + RECORDINGS, replayed > 0);
+  }
+
+  /**
+   * Replays a recording, using the timestamps of the embedded system.
+   * @return The features of every window of the recording.
+   */
+  static List<ActivityFeatures> replay(InputStream in) throws IOException
+  {
+    SampleParser parser = new SampleParser();
+    GaitFeatureExtractor extractor = new GaitFeatureExtractor(AggregationSettings.DEFAULT_ACTIVITY_WINDOW,
+                                                              AggregationSettings.DEFAULT_UPRIGHT_AXIS);
+    List<ActivityFeatures> windows = new ArrayList<ActivityFeatures>();
+    while (parser.fill(in) >= 0)
+    {
+      while (parser.next())
+      {
+        ActivityFeatures features = extractor.add(parser.getTimestampValue(),
+                                                  parser.getX(), parser.getY(), parser.getZ());
+        if (features != null)
+          windows.add(features);
+      }
+    }
+    ActivityFeatures last = extractor.close();
+    if (last != null)
+      windows.add(last);
+    assertEquals(0, parser.getStats().getCorruptedCount() + parser.getStats().getMalformedCount());
+    return windows;
+  }
+
+  /** Checks the windows of the recording {@code name} against its expected results. */
+  private static void check(String name, List<ActivityFeatures> windows, Properties expected)
+  {
+    String steps = expected.getProperty(name + ".steps");
+    String activityClass = expected.getProperty(name + ".class");
+    assertNotNull("No expected steps for " + name, steps);
+    assertNotNull("No expected class for " + name, activityClass);
+    assertFalse("No windows in " + name, windows.isEmpty());
+
+    int total = 0;
+    for (ActivityFeatures features : windows)
+    {
+      Log.i(TAG, name + ": " + features.getSteps() + " steps, cadence " + Math.round(features.getCadence())
+                 + ", intensity " + String.format("%.3f", features.getIntensity())
+                 + ", class " + features.getActivityClass());
+      assertEquals(name + " window at " + features.getTimestamp(),
+                   Integer.parseInt(activityClass), features.getActivityClass());
+      total += features.getSteps();
+    }
+    int expectedSteps = Integer.parseInt(steps);
+    assertTrue(name + ": " + total + " steps, expected " + expectedSteps,
+               Math.abs(total - expectedSteps) <= expectedSteps * STEP_TOLERANCE);
+  }
+}
@@ -0,0 +1,128 @@
+package com.prosthetics.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.prosthetics.AccelerometerWrapper;
+import com.prosthetics.LocationWrapper;
+import com.prosthetics.LocationsDB;
+import com.prosthetics.PatientDB;
+import com.prosthetics.PatientDBHelper;
+import com.prosthetics.SampleWriter;
+
+/**
+ * Compares the rows per second stored by the single-row inserts of
+ * {@link PatientDB} and {@link LocationsDB}, one autocommit each, with the
+ * batched inserts, one transaction and compiled statement per batch of
+ * {@link SampleWriter#BATCH_SIZE} rows. Results are logged under
+ * {@link #TAG}. Both run on dbs of their own in the cache directory.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ */
+public class InsertBenchmark extends AndroidTestCase
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "InsertBenchmark";
+
+  /** Rows stored one at a time, each costing a journal sync. */
+  private static final int SINGLE_ROWS = 1000;
+  /** Rows stored in batches. */
+  private static final int BATCHED_ROWS = 50000;
+
+  private File mPatientFile;
+  private File mLocationsFile;
+  private PatientDB mPatientDB;
+  private LocationsDB mLocationsDB;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    mPatientFile = new File(getContext().getCacheDir(), "insert-benchmark-patient.sqlite3");
+    mLocationsFile = new File(getContext().getCacheDir(), "insert-benchmark-locations.sqlite3");
+    mPatientFile.delete();
+    mLocationsFile.delete();
+    mPatientDB = new PatientDB(getContext(), mPatientFile.getPath());
+    mLocationsDB = new LocationsDB(getContext(), mLocationsFile.getPath());
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    mPatientDB.close();
+    mLocationsDB.close();
+    mPatientFile.delete();
+    mLocationsFile.delete();
+    super.tearDown();
+  }
+
+  public void testAccelerometerInserts()
+  {
+    List<AccelerometerWrapper> samples = createAccelerometerSamples(BATCHED_ROWS);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < SINGLE_ROWS; i++)
+      mPatientDB.addAccelerometerSample(samples.get(i));
+    double single = report("addAccelerometerSample", SINGLE_ROWS, System.nanoTime() - start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < BATCHED_ROWS; i += SampleWriter.BATCH_SIZE)
+      mPatientDB.addAccelerometerSamples(samples.subList(i, Math.min(i + SampleWriter.BATCH_SIZE, BATCHED_ROWS)));
+    double batched = report("addAccelerometerSamples", BATCHED_ROWS, System.nanoTime() - start);
+
+    assertEquals(SINGLE_ROWS + BATCHED_ROWS, mPatientDB.countPendingSamples(PatientDBHelper.ACC_TABLE, 0));
+    assertTrue("Batched inserts are not faster", batched > single);
+  }
+
+  public void testLocationInserts()
+  {
+    List<LocationWrapper> locations = createLocations(BATCHED_ROWS);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < SINGLE_ROWS; i++)
+      mLocationsDB.addLocation(locations.get(i));
+    double single = report("addLocation", SINGLE_ROWS, System.nanoTime() - start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < BATCHED_ROWS; i += SampleWriter.BATCH_SIZE)
+      mLocationsDB.addLocations(locations.subList(i, Math.min(i + SampleWriter.BATCH_SIZE, BATCHED_ROWS)));
+    double batched = report("addLocations", BATCHED_ROWS, System.nanoTime() - start);
+
+    assertEquals(SINGLE_ROWS + BATCHED_ROWS, mLocationsDB.countPendingLocations(0));
+    assertTrue("Batched inserts are not faster", batched > single);
+  }
+
+  /** Builds {@code count} accelerometer samples 10 ms apart. */
+  static List<AccelerometerWrapper> createAccelerometerSamples(int count)
+  {
+    List<AccelerometerWrapper> samples = new ArrayList<AccelerometerWrapper>(count);
+    long time = 1373000000000L;
+    for (int i = 0; i < count; i++)
+      samples.add(new AccelerometerWrapper(time + i * 10, Long.toString(i), i % 512 - 256, i % 97, 1000 - i % 300));
+    return samples;
+  }
+
+  /** Builds {@code count} locations a minute apart. */
+  static List<LocationWrapper> createLocations(int count)
+  {
+    List<LocationWrapper> locations = new ArrayList<LocationWrapper>(count);
+    long time = 1373000000000L;
+    for (int i = 0; i < count; i++)
+      locations.add(new LocationWrapper(time + i * 60000L, i % 3 == 0 ? "gps" : "network",
+                                        55.86 + i * 1e-6, -4.25 - i * 1e-6, 5 + i % 40));
+    return locations;
+  }
+
+  /** Logs the rate of an insert run and returns it in rows per second. */
+  private static double report(String name, int rows, long elapsed)
+  {
+    double rate = rows * 1e9 / Math.max(elapsed, 1);
+    Log.i(TAG, name + ": " + rows + " rows in " + (elapsed / 1000000) + " ms, "
+               + Math.round(rate) + " rows/s");
+    return rate;
+  }
+}
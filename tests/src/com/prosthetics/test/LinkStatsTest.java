@@ -0,0 +1,91 @@
+package com.prosthetics.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import com.prosthetics.LinkStats;
+import com.prosthetics.SampleParser;
+
+/**
+ * Drives a fake stream from the embedded system through
+ * {@link SampleParser} across disconnections, replays and duplicates, and
+ * checks the frames let through and the counters of {@link LinkStats}.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ */
+public class LinkStatsTest extends TestCase
+{
+  public void testCountsGapsAndBackfills() throws IOException
+  {
+    SampleParser parser = new SampleParser();
+    assertEquals(100, feed(parser, 0, 100));
+    // Frames 100 to 149 lost in a drop the link did not notice
+    assertEquals(50, feed(parser, 150, 200));
+    LinkStats stats = parser.getStats();
+    assertEquals(1, stats.getGapCount());
+    assertEquals(50, stats.getLostCount());
+
+    // Replayed late, then part of the replay sent twice
+    assertEquals(50, feed(parser, 100, 150));
+    assertEquals(0, feed(parser, 120, 130));
+    assertEquals(50, stats.getBackfilledCount());
+    assertEquals(0, stats.getLostCount());
+    assertEquals(10, stats.getDuplicateCount());
+    assertEquals(200, stats.getFrameCount());
+    assertEquals(199, stats.getLastSequence());
+    assertEquals(0.0, stats.getLossRate());
+  }
+
+  public void testDropsStoredFramesAfterReconnecting() throws IOException
+  {
+    // New connection, frames up to 99 already stored
+    SampleParser parser = new SampleParser();
+    parser.getStats().resumeAfter(99);
+    assertEquals(50, feed(parser, 100, 150));
+    assertEquals(0, feed(parser, 90, 100));
+    assertEquals(10, parser.getStats().getDuplicateCount());
+    assertEquals(0, parser.getStats().getRestartCount());
+  }
+
+  public void testKeepsFramesOfRestartedDevice() throws IOException
+  {
+    // The embedded system restarted since frame 500 was stored
+    SampleParser parser = new SampleParser();
+    parser.getStats().resumeAfter(500);
+    assertEquals(100, feed(parser, 0, 100));
+    assertEquals(0, feed(parser, 50, 60));
+    LinkStats stats = parser.getStats();
+    assertEquals(1, stats.getRestartCount());
+    assertEquals(10, stats.getDuplicateCount());
+    assertEquals(99, stats.getLastSequence());
+  }
+
+  public void testRestartsFarBehind() throws IOException
+  {
+    SampleParser parser = new SampleParser();
+    assertEquals(3000, feed(parser, 0, 3000));
+    assertEquals(10, feed(parser, 0, 10));
+    assertEquals(1, parser.getStats().getRestartCount());
+    assertEquals(0, parser.getStats().getDuplicateCount());
+  }
+
+  /**
+   * Feeds the frames from {@code first} to {@code end}, excluded, to
+   * {@code parser}.
+   * @return The number of frames let through.
+   */
+  private static int feed(SampleParser parser, int first, int end) throws IOException
+  {
+    InputStream in = new ByteArrayInputStream(SampleLinkTest.frames(first, end).toString().getBytes("US-ASCII"));
+    int accepted = 0;
+    while (parser.fill(in) >= 0)
+    {
+      while (parser.next())
+        accepted++;
+    }
+    return accepted;
+  }
+}
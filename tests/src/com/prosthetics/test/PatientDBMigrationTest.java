@@ -0,0 +1,249 @@
+package com.prosthetics.test;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Locale;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.prosthetics.AccelerometerWrapper;
+import com.prosthetics.MigrationRunner;
+import com.prosthetics.PatientDB;
+import com.prosthetics.PatientDBHelper;
+
+/**
+ * Upgrades a version 1 patient db of several million rows, built in the
+ * cache directory, to the current schema. The rows are moved in batches
+ * the size {@link MigrationRunner} uses, the move is interrupted halfway by
+ * closing the db, as when the process dies, and resumed from a new
+ * connection. Checks that every row arrives once, converted, and that ids
+ * carry on from the legacy counter. The time taken is logged under
+ * {@link #TAG}.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ */
+public class PatientDBMigrationTest extends AndroidTestCase
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "PatientDBMigrationTest";
+
+  /** Accelerometer rows of the version 1 db. */
+  private static final int ACC_ROWS = 2000000;
+  /** Temperature rows of the version 1 db. */
+  private static final int TEM_ROWS = 200000;
+  /** Newest rows deleted from the version 1 db, as if uploaded and cleaned up. */
+  private static final int DELETED_ROWS = 10;
+  /** Rows moved per batch, as in {@link MigrationRunner}. */
+  private static final int BATCH_SIZE = 1000;
+  /** One row in this many has an ISO 8601 timestamp rather than epoch ms. */
+  private static final int ISO_INTERVAL = 1000;
+  /** Device timestamp of the first row, in ms since the epoch. */
+  private static final long START_TIME = 1373000000000L;
+
+  private File mPatientFile;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    mPatientFile = new File(getContext().getCacheDir(), "migration-patient.sqlite3");
+    mPatientFile.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    mPatientFile.delete();
+    new File(mPatientFile.getPath() + "-journal").delete();
+    new File(mPatientFile.getPath() + "-wal").delete();
+    new File(mPatientFile.getPath() + "-shm").delete();
+    super.tearDown();
+  }
+
+  public void testResumedMigration()
+  {
+    long start = System.nanoTime();
+    createVersion1();
+    report("Built version 1 db", ACC_ROWS + TEM_ROWS, System.nanoTime() - start);
+
+    // Opening runs onUpgrade, which only renames and creates tables
+    PatientDB patientDB = new PatientDB(getContext(), mPatientFile.getPath());
+    start = System.nanoTime();
+    assertTrue(patientDB.isMigrating(PatientDBHelper.ACC_TABLE));
+    report("Upgraded schema", 0, System.nanoTime() - start);
+
+    // Move half the accelerometer rows, then lose the connection
+    start = System.nanoTime();
+    int moved = 0;
+    while (moved < ACC_ROWS / 2)
+      moved += patientDB.migrateBatch(BATCH_SIZE);
+    patientDB.close();
+
+    // Rows stored while the move is unfinished get ids after the legacy ones
+    patientDB = new PatientDB(getContext(), mPatientFile.getPath());
+    assertTrue(patientDB.isMigrating(PatientDBHelper.ACC_TABLE));
+    patientDB.addAccelerometerSample(new AccelerometerWrapper(START_TIME + ACC_ROWS * 10L, "resumed", 1, 2, 3));
+    assertEquals(ACC_ROWS + 1, patientDB.queryMaxId(PatientDBHelper.ACC_TABLE));
+
+    for (int n; (n = patientDB.migrateBatch(BATCH_SIZE)) > 0; )
+      moved += n;
+    long elapsed = System.nanoTime() - start;
+    report("Moved rows", moved, elapsed);
+    assertEquals(ACC_ROWS + TEM_ROWS - 2 * DELETED_ROWS, moved);
+    assertFalse(patientDB.isMigrating(PatientDBHelper.ACC_TABLE));
+    assertFalse(patientDB.isMigrating(PatientDBHelper.TEM_TABLE));
+    patientDB.close();
+
+    checkMigrated();
+  }
+
+  /** Builds the version 1 db, with text timestamps and no index. */
+  private void createVersion1()
+  {
+    SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mPatientFile, null);
+    try
+    {
+      db.execSQL("create table " + PatientDBHelper.ACC_TABLE + " ("
+                 + PatientDBHelper.ID + " integer primary key autoincrement, "
+                 + PatientDBHelper.UID + " integer, "
+                 + PatientDBHelper.TIMESTAMP + " text, "
+                 + PatientDBHelper.X_AXIS + " integer, "
+                 + PatientDBHelper.Y_AXIS + " integer, "
+                 + PatientDBHelper.Z_AXIS + " integer);");
+      db.execSQL("create table " + PatientDBHelper.TEM_TABLE + " ("
+                 + PatientDBHelper.ID + " integer primary key autoincrement, "
+                 + PatientDBHelper.UID + " integer, "
+                 + PatientDBHelper.TIMESTAMP + " text, "
+                 + PatientDBHelper.VALUE1 + " integer, "
+                 + PatientDBHelper.VALUE2 + " integer);");
+      fill(db, "insert into " + PatientDBHelper.ACC_TABLE + " ("
+                + PatientDBHelper.UID + ", " + PatientDBHelper.TIMESTAMP + ", "
+                + PatientDBHelper.X_AXIS + ", " + PatientDBHelper.Y_AXIS + ", " + PatientDBHelper.Z_AXIS
+                + ") values (1, ?, ?, ?, ?)", ACC_ROWS, 3);
+      fill(db, "insert into " + PatientDBHelper.TEM_TABLE + " ("
+                + PatientDBHelper.UID + ", " + PatientDBHelper.TIMESTAMP + ", "
+                + PatientDBHelper.VALUE1 + ", " + PatientDBHelper.VALUE2
+                + ") values (1, ?, ?, ?)", TEM_ROWS, 2);
+      // The counters stay ahead of the highest id left
+      db.delete(PatientDBHelper.ACC_TABLE, PatientDBHelper.ID + " > ?", new String[] { Integer.toString(ACC_ROWS - DELETED_ROWS) });
+      db.delete(PatientDBHelper.TEM_TABLE, PatientDBHelper.ID + " > ?", new String[] { Integer.toString(TEM_ROWS - DELETED_ROWS) });
+      db.setVersion(1);
+    }
+    finally
+    {
+      db.close();
+    }
+  }
+
+  /**
+   * Inserts {@code rows} rows through {@code sql}, whose first parameter
+   * is the timestamp followed by {@code values} integer values, in
+   * transactions of {@link #BATCH_SIZE} rows.
+   */
+  private static void fill(SQLiteDatabase db, String sql, int rows, int values)
+  {
+    SQLiteStatement insert = db.compileStatement(sql);
+    try
+    {
+      for (int i = 0; i < rows; )
+      {
+        db.beginTransaction();
+        try
+        {
+          for (int end = Math.min(i + BATCH_SIZE, rows); i < end; i++)
+          {
+            insert.bindString(1, getLegacyTimestamp(i));
+            for (int v = 0; v < values; v++)
+              insert.bindLong(v + 2, (i + v * 97) % 1024 - 512);
+            insert.executeInsert();
+          }
+          db.setTransactionSuccessful();
+        }
+        finally
+        {
+          db.endTransaction();
+        }
+      }
+    }
+    finally
+    {
+      insert.close();
+    }
+  }
+
+  /** Checks the converted rows, reading the db file directly. */
+  private void checkMigrated()
+  {
+    SQLiteDatabase db = SQLiteDatabase.openDatabase(mPatientFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+    try
+    {
+      String acc = PatientDBHelper.ACC_TABLE;
+      assertEquals(ACC_ROWS - DELETED_ROWS + 1, queryLong(db, "select count(*) from " + acc));
+      assertEquals(1, queryLong(db, "select min(id) from " + acc));
+      assertEquals(ACC_ROWS + 1, queryLong(db, "select max(id) from " + acc));
+      assertEquals(0, queryLong(db, "select count(*) from " + acc + " where " + PatientDBHelper.TIMESTAMP + " is null"));
+      assertEquals(0, queryLong(db, "select count(*) from sqlite_master where name like '%\\_v1' escape '\\'"));
+
+      // Epoch ms and ISO 8601 timestamps are both converted, the text kept
+      assertEquals(START_TIME + 10, queryLong(db, "select " + PatientDBHelper.TIMESTAMP + " from " + acc + " where id = 2"));
+      int iso = ISO_INTERVAL * 3;
+      assertEquals((START_TIME + iso * 10L) / 1000 * 1000,
+                   queryLong(db, "select " + PatientDBHelper.TIMESTAMP + " from " + acc + " where id = " + (iso + 1)));
+      assertEquals(getLegacyTimestamp(iso), queryString(db, "select " + PatientDBHelper.DEVICE_TIMESTAMP + " from " + acc + " where id = " + (iso + 1)));
+
+      String tem = PatientDBHelper.TEM_TABLE;
+      assertEquals(TEM_ROWS - DELETED_ROWS, queryLong(db, "select count(*) from " + tem));
+      assertEquals(TEM_ROWS, queryLong(db, "select seq from sqlite_sequence where name = '" + tem + "'"));
+    }
+    finally
+    {
+      db.close();
+    }
+  }
+
+  /** Returns the text timestamp of row {@code i}, 10 ms after the previous one. */
+  private static String getLegacyTimestamp(int i)
+  {
+    long time = START_TIME + i * 10L;
+    if (i % ISO_INTERVAL != 0 || i == 0)
+      return Long.toString(time);
+    // Whole seconds, as the legacy UI wrote them
+    return String.format(Locale.US, "%tF %<tT", new Date(time - time % 1000));
+  }
+
+  private static long queryLong(SQLiteDatabase db, String sql)
+  {
+    SQLiteStatement statement = db.compileStatement(sql);
+    try
+    {
+      return statement.simpleQueryForLong();
+    }
+    finally
+    {
+      statement.close();
+    }
+  }
+
+  private static String queryString(SQLiteDatabase db, String sql)
+  {
+    SQLiteStatement statement = db.compileStatement(sql);
+    try
+    {
+      return statement.simpleQueryForString();
+    }
+    finally
+    {
+      statement.close();
+    }
+  }
+
+  /** Logs the time of a step and, if it handled rows, their rate. */
+  private static void report(String name, int rows, long elapsed)
+  {
+    Log.i(TAG, name + ": " + (rows > 0 ? rows + " rows in " : "") + (elapsed / 1000000) + " ms"
+               + (rows > 0 ? ", " + Math.round(rows * 1e9 / Math.max(elapsed, 1)) + " rows/s" : ""));
+  }
+}
@@ -0,0 +1,217 @@
+package com.prosthetics.test;
+
+import java.io.File;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.prosthetics.PatientDB;
+import com.prosthetics.PatientDBHelper;
+
+/**
+ * Compares time range queries on the accelerometer table of a version 1
+ * patient db, with text timestamps and no index, with the same queries on
+ * the current schema, with integer timestamps and the
+ * {@code (user_id, timestamp)} index. Both dbs hold the same rows of
+ * several users, in dbs of their own in the cache directory. Results are
+ * logged under {@link #TAG}.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ */
+public class RangeQueryBenchmark extends AndroidTestCase
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "RangeQueryBenchmark";
+
+  /** Users whose samples are interleaved in the table. */
+  private static final int USERS = 4;
+  /** Samples per user, 10 ms apart. */
+  private static final int ROWS_PER_USER = 100000;
+  /** Length of each queried range, in ms. */
+  private static final long RANGE = 10000;
+  /** Ranges queried per schema. */
+  private static final int QUERIES = 50;
+  /** Rows inserted per transaction. */
+  private static final int BATCH_SIZE = 1000;
+  /** Device timestamp of the first row, in ms since the epoch. */
+  private static final long START_TIME = 1373000000000L;
+
+  private static final String ACC = PatientDBHelper.ACC_TABLE;
+  private static final String RANGE_QUERY =
+    "select " + PatientDBHelper.ID + ", " + PatientDBHelper.X_AXIS + ", "
+      + PatientDBHelper.Y_AXIS + ", " + PatientDBHelper.Z_AXIS
+      + " from " + ACC
+      + " where " + PatientDBHelper.UID + " = ? and " + PatientDBHelper.TIMESTAMP + " >= ? and "
+      + PatientDBHelper.TIMESTAMP + " < ?";
+
+  private File mLegacyFile;
+  private File mPatientFile;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    mLegacyFile = new File(getContext().getCacheDir(), "range-benchmark-v1.sqlite3");
+    mPatientFile = new File(getContext().getCacheDir(), "range-benchmark-patient.sqlite3");
+    mLegacyFile.delete();
+    mPatientFile.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    mLegacyFile.delete();
+    mPatientFile.delete();
+    super.tearDown();
+  }
+
+  public void testAccelerometerRanges()
+  {
+    SQLiteDatabase legacy = SQLiteDatabase.openOrCreateDatabase(mLegacyFile, null);
+    SQLiteDatabase current = null;
+    try
+    {
+      legacy.execSQL("create table " + ACC + " ("
+                     + PatientDBHelper.ID + " integer primary key autoincrement, "
+                     + PatientDBHelper.UID + " integer, "
+                     + PatientDBHelper.TIMESTAMP + " text, "
+                     + PatientDBHelper.X_AXIS + " integer, "
+                     + PatientDBHelper.Y_AXIS + " integer, "
+                     + PatientDBHelper.Z_AXIS + " integer);");
+      fill(legacy, true);
+
+      // Opening creates the current schema, index included
+      new PatientDB(getContext(), mPatientFile.getPath()).close();
+      current = SQLiteDatabase.openDatabase(mPatientFile.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+      fill(current, false);
+      assertTrue("Range query does not use the index", usesIndex(current));
+
+      long[] starts = new long[QUERIES];
+      for (int q = 0; q < QUERIES; q++)
+        starts[q] = START_TIME + (q * 7919L % (ROWS_PER_USER - RANGE / 10)) * 10;
+
+      // Warm the page cache of both files alike before timing
+      query(legacy, starts[0]);
+      query(current, starts[0]);
+
+      long start = System.nanoTime();
+      int legacyRows = 0;
+      for (long from : starts)
+        legacyRows += query(legacy, from);
+      double before = report("text timestamp, no index", legacyRows, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      int currentRows = 0;
+      for (long from : starts)
+        currentRows += query(current, from);
+      double after = report("integer timestamp, (user_id, timestamp) index", currentRows, System.nanoTime() - start);
+
+      assertEquals(QUERIES * RANGE / 10, currentRows);
+      assertEquals(legacyRows, currentRows);
+      assertTrue("Indexed range queries are not faster", after < before);
+    }
+    finally
+    {
+      legacy.close();
+      if (current != null)
+        current.close();
+    }
+  }
+
+  /**
+   * Stores {@link #ROWS_PER_USER} samples of each user, interleaved as if
+   * uploaded together, with text timestamps if {@code text}.
+   */
+  private static void fill(SQLiteDatabase db, boolean text)
+  {
+    SQLiteStatement insert = db.compileStatement(
+      "insert into " + ACC + " (" + PatientDBHelper.UID + ", " + PatientDBHelper.TIMESTAMP + ", "
+        + PatientDBHelper.X_AXIS + ", " + PatientDBHelper.Y_AXIS + ", " + PatientDBHelper.Z_AXIS
+        + ") values (?, ?, ?, ?, ?)");
+    try
+    {
+      int rows = USERS * ROWS_PER_USER;
+      for (int i = 0; i < rows; )
+      {
+        db.beginTransaction();
+        try
+        {
+          for (int end = Math.min(i + BATCH_SIZE, rows); i < end; i++)
+          {
+            long time = START_TIME + (i / USERS) * 10L;
+            insert.bindLong(1, i % USERS + 1);
+            if (text)
+              insert.bindString(2, Long.toString(time));
+            else
+              insert.bindLong(2, time);
+            insert.bindLong(3, i % 512 - 256);
+            insert.bindLong(4, i % 97);
+            insert.bindLong(5, 1000 - i % 300);
+            insert.executeInsert();
+          }
+          db.setTransactionSuccessful();
+        }
+        finally
+        {
+          db.endTransaction();
+        }
+      }
+    }
+    finally
+    {
+      insert.close();
+    }
+  }
+
+  /** Reads every row of user 1 in the range starting at {@code from}. */
+  private static int query(SQLiteDatabase db, long from)
+  {
+    Cursor cursor = db.rawQuery(RANGE_QUERY, new String[] {
+      "1", Long.toString(from), Long.toString(from + RANGE)
+    });
+    try
+    {
+      int rows = 0;
+      while (cursor.moveToNext())
+      {
+        cursor.getLong(1);
+        rows++;
+      }
+      return rows;
+    }
+    finally
+    {
+      cursor.close();
+    }
+  }
+
+  /** Tells whether SQLite plans {@link #RANGE_QUERY} through the index. */
+  private static boolean usesIndex(SQLiteDatabase db)
+  {
+    Cursor plan = db.rawQuery("explain query plan " + RANGE_QUERY, new String[] { "1", "0", "1" });
+    try
+    {
+      String index = ACC + "_" + PatientDBHelper.UID + "_" + PatientDBHelper.TIMESTAMP;
+      while (plan.moveToNext())
+        if (plan.getString(plan.getColumnCount() - 1).contains(index))
+          return true;
+      return false;
+    }
+    finally
+    {
+      plan.close();
+    }
+  }
+
+  /** Logs the time of the queries of one schema and returns it in ms per query. */
+  private static double report(String name, int rows, long elapsed)
+  {
+    double perQuery = elapsed / 1e6 / QUERIES;
+    Log.i(TAG, name + ": " + QUERIES + " queries, " + rows + " rows in " + (elapsed / 1000000) + " ms, "
+               + String.format("%.2f", perQuery) + " ms per query");
+    return perQuery;
+  }
+}
@@ -0,0 +1,204 @@
+package com.prosthetics.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import android.test.AndroidTestCase;
+
+import com.prosthetics.AggregationSettings;
+import com.prosthetics.LinkStats;
+import com.prosthetics.PatientDB;
+import com.prosthetics.PatientDBHelper;
+import com.prosthetics.SampleParser;
+import com.prosthetics.SampleWriter;
+
+/**
+ * Sends frames over a local socket pair, standing in for the Bluetooth
+ * socket, and reads them the way the connected thread of
+ * {@link com.prosthetics.BluetoothLinkService} does, into a
+ * {@link SampleWriter} storing them in a patient db of its own.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ */
+public class SampleLinkTest extends AndroidTestCase
+{
+  private File mPatientFile;
+  private PatientDB mPatientDB;
+  private AggregationSettings mSettings;
+  private boolean mKeepRaw;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    mPatientFile = new File(getContext().getCacheDir(), "sample-link-patient.sqlite3");
+    mPatientFile.delete();
+    mPatientDB = new PatientDB(getContext(), mPatientFile.getPath());
+    mSettings = new AggregationSettings(getContext());
+    mKeepRaw = mSettings.isKeepRaw();
+    mSettings.setKeepRaw(true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    mSettings.setKeepRaw(mKeepRaw);
+    mPatientDB.close();
+    mPatientFile.delete();
+    super.tearDown();
+  }
+
+  public void testStoresEachFrameOnce() throws Exception
+  {
+    StringBuilder frames = frames(0, 1000);
+    // Resent after a drop the embedded system did not notice
+    frames.append(frames(900, 1000));
+    frames.append(frames(1000, 2000));
+
+    SampleWriter writer = new SampleWriter(getContext(), mPatientDB);
+    writer.start();
+    LinkStats stats = connect(writer, frames);
+
+    assertEquals(2000, stats.getFrameCount());
+    assertEquals(100, stats.getDuplicateCount());
+    assertEquals(2000, mPatientDB.countPendingSamples(PatientDBHelper.ACC_TABLE, 0));
+    assertEquals(1999, writer.getCommittedSequence());
+    assertEquals(1999, mPatientDB.queryLastSequence());
+  }
+
+  public void testResumesAfterCommittedSequence() throws Exception
+  {
+    SampleWriter writer = new SampleWriter(getContext(), mPatientDB);
+    writer.start();
+    connect(writer, frames(0, 500));
+
+    // A new writer, as after the app restarted, and the replay requested
+    writer = new SampleWriter(getContext(), mPatientDB);
+    writer.start();
+    assertEquals(499, writer.getCommittedSequence());
+    LinkStats stats = connect(writer, frames(500, 800));
+
+    assertEquals(300, stats.getFrameCount());
+    assertEquals(0, stats.getGapCount());
+    assertEquals(800, mPatientDB.countPendingSamples(PatientDBHelper.ACC_TABLE, 0));
+    assertEquals(799, mPatientDB.queryLastSequence());
+  }
+
+  public void testAcceptsRestartedCount() throws Exception
+  {
+    SampleWriter writer = new SampleWriter(getContext(), mPatientDB);
+    writer.start();
+    connect(writer, frames(0, 500));
+
+    // The embedded system restarted and counts from 0 again
+    writer = new SampleWriter(getContext(), mPatientDB);
+    writer.start();
+    LinkStats stats = connect(writer, frames(0, 100));
+
+    assertEquals(100, stats.getFrameCount());
+    assertEquals(0, stats.getDuplicateCount());
+    assertEquals(1, stats.getRestartCount());
+    assertEquals(600, mPatientDB.countPendingSamples(PatientDBHelper.ACC_TABLE, 0));
+  }
+
+  /**
+   * Sends {@code frames} from one end of a socket pair and reads them from
+   * the other into {@code writer}, resuming after its committed sequence
+   * number, until the sending end closes. Then flushes and cancels the
+   * writer.
+   * @return The statistics of the connection.
+   */
+  private static LinkStats connect(SampleWriter writer, CharSequence frames) throws Exception
+  {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    Sender sender = new Sender(server.getLocalPort(), frames.toString().getBytes("US-ASCII"));
+    sender.start();
+    Socket socket = server.accept();
+    server.close();
+
+    SampleParser parser = new SampleParser();
+    parser.getStats().resumeAfter(writer.getCommittedSequence());
+    InputStream in = socket.getInputStream();
+    try
+    {
+      while (parser.fill(in) >= 0)
+      {
+        while (parser.next())
+        {
+          long deviceTimestamp = parser.getTimestampValue();
+          assertTrue(writer.submit(System.currentTimeMillis(), deviceTimestamp,
+                                   deviceTimestamp < 0 ? parser.getTimestamp() : null, parser.getSequence(),
+                                   parser.getX(), parser.getY(), parser.getZ(),
+                                   parser.getTemperature1(), parser.getTemperature2()));
+        }
+      }
+    }
+    finally
+    {
+      socket.close();
+      writer.flush();
+      writer.requestCancelAndWait();
+    }
+    sender.join();
+    assertNull(sender.mError);
+    assertEquals(0, writer.getFailedCount());
+    return parser.getStats();
+  }
+
+  /** Builds the frames with sequence numbers from {@code first} to {@code end}, excluded. */
+  static StringBuilder frames(int first, int end)
+  {
+    StringBuilder frames = new StringBuilder();
+    long time = 1373000000000L;
+    for (int i = first; i < end; i++)
+    {
+      String line = (time + i * 10) + "," + i + "," + (i % 512 - 256) + "," + (i % 97) + "," + (1000 - i % 300)
+                    + "," + (200 + i % 50) + "," + (190 + i % 40);
+      frames.append(line).append(',').append(Integer.toHexString(SampleParserTest.crc8(line))).append("\r\n");
+    }
+    return frames;
+  }
+
+  /** Writes the frames into the other end of the socket pair, then closes it. */
+  private static class Sender extends Thread
+  {
+    private final int mPort;
+    private final byte[] mFrames;
+    private volatile IOException mError;
+
+    Sender(int port, byte[] frames)
+    {
+      mPort = port;
+      mFrames = frames;
+    }
+
+    public void run()
+    {
+      try
+      {
+        Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), mPort);
+        try
+        {
+          OutputStream out = socket.getOutputStream();
+          // Odd sized writes, so frames are split across reads
+          for (int i = 0; i < mFrames.length; i += 333)
+            out.write(mFrames, i, Math.min(333, mFrames.length - i));
+          out.flush();
+        }
+        finally
+        {
+          socket.close();
+        }
+      }
+      catch (IOException e)
+      {
+        mError = e;
+      }
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package com.prosthetics.test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import android.os.Debug;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import com.prosthetics.SampleParser;
+
+/**
+ * Measures the lines per second parsed by {@link SampleParser} and the
+ * objects it allocates per line, against the {@code readLine()} and
+ * {@code split(",")} loop it replaced. Results are logged under
+ * {@link #TAG}; the test only fails if the parser allocates per line.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ */
+public class SampleParserBenchmark extends TestCase
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "SampleParserBenchmark";
+
+  /** Number of lines parsed per run. */
+  private static final int LINES = 100000;
+  /** Runs made before measuring, so the code is compiled. */
+  private static final int WARMUP_RUNS = 3;
+
+  private byte[] mStream;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    StringBuilder lines = new StringBuilder();
+    long time = 1373000000000L;
+    for (int i = 0; i < LINES; i++)
+    {
+      String line = (time + i * 10) + "," + i + "," + (i % 512 - 256) + "," + (i % 97) + "," + (1000 - i % 300)
+                    + "," + (200 + i % 50) + "," + (190 + i % 40);
+      lines.append(line).append(',').append(Integer.toHexString(SampleParserTest.crc8(line))).append("\r\n");
+    }
+    mStream = lines.toString().getBytes("US-ASCII");
+  }
+
+  public void testParser() throws IOException
+  {
+    for (int i = 0; i < WARMUP_RUNS; i++)
+      assertEquals(LINES, parseAll());
+    Debug.startAllocCounting();
+    Debug.resetThreadAllocCount();
+    long start = System.nanoTime();
+    int lines = parseAll();
+    long elapsed = System.nanoTime() - start;
+    int allocations = Debug.getThreadAllocCount();
+    Debug.stopAllocCounting();
+
+    assertEquals(LINES, lines);
+    report("SampleParser", lines, elapsed, allocations);
+    // Only the parser and the input stream of the run itself may be allocated
+    assertTrue("Allocated " + allocations + " objects", allocations < lines / 1000);
+  }
+
+  public void testLegacyParser() throws IOException
+  {
+    for (int i = 0; i < WARMUP_RUNS; i++)
+      assertEquals(LINES, parseAllLegacy());
+    Debug.startAllocCounting();
+    Debug.resetThreadAllocCount();
+    long start = System.nanoTime();
+    int lines = parseAllLegacy();
+    long elapsed = System.nanoTime() - start;
+    int allocations = Debug.getThreadAllocCount();
+    Debug.stopAllocCounting();
+
+    assertEquals(LINES, lines);
+    report("readLine/split", lines, elapsed, allocations);
+  }
+
+  /** Parses the whole stream with a new {@link SampleParser}. */
+  private int parseAll() throws IOException
+  {
+    SampleParser parser = new SampleParser();
+    InputStream in = new ByteArrayInputStream(mStream);
+    int lines = 0;
+    long sum = 0;
+    while (parser.fill(in) >= 0)
+    {
+      while (parser.next())
+      {
+        sum += parser.getX() + parser.getTemperature2() + parser.getTimestampValue();
+        lines++;
+      }
+    }
+    assertTrue(sum != 0);
+    return lines;
+  }
+
+  /** Parses the whole stream the way the read loop did before. */
+  private int parseAllLegacy() throws IOException
+  {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(mStream), "US-ASCII"));
+    int lines = 0;
+    long sum = 0;
+    String line;
+    while ((line = reader.readLine()) != null)
+    {
+      String[] data = line.split(",");
+      sum += Integer.parseInt(data[2]) + Integer.parseInt(data[6]) + Long.parseLong(data[0]);
+      lines++;
+    }
+    assertTrue(sum != 0);
+    return lines;
+  }
+
+  private static void report(String name, int lines, long elapsed, int allocations)
+  {
+    Log.i(TAG, name + ": " + (lines * 1000000000L / Math.max(elapsed, 1)) + " lines/s, "
+               + (elapsed / lines) + " ns/line, "
+               + String.format("%.2f", (double) allocations / lines) + " allocations/line");
+  }
+}
@@ -0,0 +1,98 @@
+package com.prosthetics.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import com.prosthetics.SampleParser;
+
+/**
+ * Checks the lines accepted and dropped by {@link SampleParser}.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ */
+public class SampleParserTest extends TestCase
+{
+  public void testParsesFields() throws IOException
+  {
+    SampleParser parser = parse("1373000000000,7,12,-34,56,210,-5\n");
+    assertTrue(parser.next());
+    assertEquals(7, parser.getSequence());
+    assertEquals(12, parser.getX());
+    assertEquals(-34, parser.getY());
+    assertEquals(56, parser.getZ());
+    assertEquals(210, parser.getTemperature1());
+    assertEquals(-5, parser.getTemperature2());
+    assertEquals(1373000000000L, parser.getTimestampValue());
+    assertEquals("1373000000000", parser.getTimestamp());
+    assertFalse(parser.next());
+  }
+
+  public void testKeepsLongTimestamps() throws IOException
+  {
+    String timestamp = "2013-07-03T10:15:30.123456789+01:00[Europe/London]";
+    SampleParser parser = parse(timestamp + ",1,1,2,3,4,5\n");
+    assertTrue(parser.next());
+    assertEquals(timestamp, parser.getTimestamp());
+    assertEquals(-1, parser.getTimestampValue());
+  }
+
+  public void testKeepsLeadingZerosAsText() throws IOException
+  {
+    SampleParser parser = parse("0042,1,1,2,3,4,5\n0,2,1,2,3,4,5\n");
+    assertTrue(parser.next());
+    assertEquals(-1, parser.getTimestampValue());
+    assertEquals("0042", parser.getTimestamp());
+    assertTrue(parser.next());
+    assertEquals(0, parser.getTimestampValue());
+  }
+
+  public void testDropsMalformedLines() throws IOException
+  {
+    StringBuilder tooLong = new StringBuilder();
+    for (int i = 0; i <= SampleParser.LINE_CAPACITY; i++)
+      tooLong.append('1');
+    SampleParser parser = parse("1,1,2,3\n"
+                                + "1,2,a,2,3,4,5\n"
+                                + tooLong + ",3,1,2,3,4,5\n"
+                                + "1,4,1,2,3,4,5\r\n");
+    assertTrue(parser.next());
+    assertEquals(4, parser.getSequence());
+    assertEquals(3, parser.getStats().getMalformedCount());
+  }
+
+  public void testChecksChecksums() throws IOException
+  {
+    String line = "1,1,1,2,3,4,5";
+    SampleParser parser = parse(line + "," + Integer.toHexString(crc8(line)) + "\n"
+                                + "1,2,1,2,3,4,5,00\n");
+    assertTrue(parser.next());
+    assertFalse(parser.next());
+    assertEquals(1, parser.getStats().getCorruptedCount());
+  }
+
+  /** Returns a parser holding {@code lines}. */
+  static SampleParser parse(String lines) throws IOException
+  {
+    SampleParser parser = new SampleParser();
+    InputStream in = new ByteArrayInputStream(lines.getBytes("US-ASCII"));
+    while (parser.fill(in) > 0)
+      ;
+    return parser;
+  }
+
+  /** CRC-8 with polynomial 0x07, as expected by the parser. */
+  static int crc8(String text)
+  {
+    int crc = 0;
+    for (int i = 0; i < text.length(); i++)
+    {
+      crc ^= text.charAt(i);
+      for (int bit = 0; bit < 8; bit++)
+        crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xff : (crc << 1) & 0xff;
+    }
+    return crc;
+  }
+}
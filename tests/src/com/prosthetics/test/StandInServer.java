@@ -0,0 +1,363 @@
+package com.prosthetics.test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.prosthetics.TableUploader;
+
+/**
+ * Local stand-in for the {@code <table>/input} and {@code <table>/latest}
+ * endpoints of the server, speaking just enough HTTP/1.1, with keep-alive,
+ * for {@link TableUploader}. Uploads are JSON arrays of
+ * {@code {"key": {"id": ...}}} objects, gzip compressed or not, and are
+ * answered with the highest id stored, or {@code 409 Conflict} if they do
+ * not continue from it. It can be told to accept only part of each batch
+ * or to drop connections without answering, as a flaky server would.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ */
+class StandInServer extends Thread
+{
+  private final ServerSocket mServerSocket;
+  private final Map<String, Long> mLatest = new HashMap<String, Long>();
+  private final Map<String, Set<Long>> mStored = new HashMap<String, Set<Long>>();
+
+  // Behaviour, guarded by this
+  private int mAcceptLimit = Integer.MAX_VALUE;
+  private int mAnswersBeforeDrop = -1;
+  private boolean mAdvertiseGzip = false;
+
+  // Counters, guarded by this
+  private int mUploads = 0;
+  private int mLatestRequests = 0;
+  private int mConflicts = 0;
+  private int mRowsReceived = 0;
+  private int mDuplicates = 0;
+  private long mBytesReceived = 0;
+  private int mGzipUploads = 0;
+
+  /**
+   * Binds the stand-in to a free port of the loopback interface. It still
+   * has to be started.
+   */
+  StandInServer() throws IOException
+  {
+    super("StandInServer");
+    setDaemon(true);
+    mServerSocket = new ServerSocket(0, 4, InetAddress.getByName("127.0.0.1"));
+  }
+
+  /** @return The base URL of the stand-in, ending with a slash. */
+  String getUrl()
+  {
+    return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/";
+  }
+
+  /** Stops accepting connections. */
+  void close() throws IOException
+  {
+    mServerSocket.close();
+  }
+
+  /** Only the first {@code limit} new rows of each upload are stored. */
+  synchronized void setAcceptLimit(int limit)
+  {
+    mAcceptLimit = limit;
+  }
+
+  /**
+   * Answers {@code answers} more uploads, then drops every connection after
+   * reading the request. A negative value never drops.
+   */
+  synchronized void setAnswersBeforeDrop(int answers)
+  {
+    mAnswersBeforeDrop = answers;
+  }
+
+  /** Makes every answer advertise {@code Accept-Encoding: gzip}. */
+  synchronized void setAdvertiseGzip(boolean advertise)
+  {
+    mAdvertiseGzip = advertise;
+  }
+
+  /** Takes the rows of {@code table} up to {@code id} as stored already. */
+  synchronized void setLatest(String table, long id)
+  {
+    mLatest.put(table, id);
+  }
+
+  synchronized long getLatest(String table)
+  {
+    Long latest = mLatest.get(table);
+    return latest == null ? 0 : latest;
+  }
+
+  /** @return The number of distinct rows of {@code table} stored. */
+  synchronized int getStoredCount(String table)
+  {
+    Set<Long> stored = mStored.get(table);
+    return stored == null ? 0 : stored.size();
+  }
+
+  /** @return The number of uploads read, answered or not. */
+  synchronized int getUploadCount()
+  {
+    return mUploads;
+  }
+
+  synchronized int getLatestRequestCount()
+  {
+    return mLatestRequests;
+  }
+
+  synchronized int getConflictCount()
+  {
+    return mConflicts;
+  }
+
+  /** @return The number of rows read in uploads, stored or not. */
+  synchronized int getRowsReceived()
+  {
+    return mRowsReceived;
+  }
+
+  /** @return The number of rows received again after they had been stored. */
+  synchronized int getDuplicateCount()
+  {
+    return mDuplicates;
+  }
+
+  /** @return The number of body bytes of the uploads, as sent on the wire. */
+  synchronized long getBytesReceived()
+  {
+    return mBytesReceived;
+  }
+
+  synchronized int getGzipUploadCount()
+  {
+    return mGzipUploads;
+  }
+
+  /** Clears the counters, but not the rows stored. */
+  synchronized void resetCounters()
+  {
+    mUploads = 0;
+    mLatestRequests = 0;
+    mConflicts = 0;
+    mRowsReceived = 0;
+    mDuplicates = 0;
+    mBytesReceived = 0;
+    mGzipUploads = 0;
+  }
+
+  /** Accepts connections until closed, serving each on a thread of its own. */
+  public void run()
+  {
+    while (true)
+    {
+      final Socket socket;
+      try
+      {
+        socket = mServerSocket.accept();
+      }
+      catch (IOException e)
+      {
+        return;
+      }
+      Thread connection = new Thread("StandInConnection")
+      {
+        public void run()
+        {
+          serve(socket);
+        }
+      };
+      connection.setDaemon(true);
+      connection.start();
+    }
+  }
+
+  /** Answers the requests of one connection until either end closes it. */
+  private void serve(Socket socket)
+  {
+    try
+    {
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+      String requestLine;
+      while ((requestLine = readLine(in)) != null && requestLine.length() > 0)
+      {
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0)
+        {
+          int colon = line.indexOf(':');
+          headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+        }
+        if ("100-continue".equalsIgnoreCase(headers.get("expect")))
+        {
+          out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("US-ASCII"));
+          out.flush();
+        }
+        String length = headers.get("content-length");
+        byte[] body = new byte[length == null ? 0 : Integer.parseInt(length)];
+        for (int read = 0, n; read < body.length; read += n)
+          if ((n = in.read(body, read, body.length - read)) < 0)
+            return;
+
+        String[] request = requestLine.split(" ");
+        String path = request[1].substring(1);
+        if (request[0].equals("GET") && path.endsWith("/latest"))
+          answer(out, 200, Long.toString(latest(path.substring(0, path.length() - "/latest".length()))));
+        else if (request[0].equals("POST") && path.endsWith("/input"))
+        {
+          String table = path.substring(0, path.length() - "/input".length());
+          if (shouldDrop())
+            return;
+          Answer answer = upload(table, headers, body);
+          answer(out, answer.mStatus, answer.mBody);
+        }
+        else
+          answer(out, 404, "");
+      }
+    }
+    catch (Exception e)
+    {
+      // The client went away, or sent something the stand-in does not know
+    }
+    finally
+    {
+      try
+      {
+        socket.close();
+      }
+      catch (IOException e)
+      {
+      }
+    }
+  }
+
+  private synchronized long latest(String table)
+  {
+    mLatestRequests++;
+    return getLatest(table);
+  }
+
+  /** Counts an upload and tells whether its connection is to be dropped. */
+  private synchronized boolean shouldDrop()
+  {
+    mUploads++;
+    if (mAnswersBeforeDrop < 0)
+      return false;
+    if (mAnswersBeforeDrop == 0)
+      return true;
+    mAnswersBeforeDrop--;
+    return false;
+  }
+
+  /** Stores the rows of an upload that continues from the latest id. */
+  private synchronized Answer upload(String table, Map<String, String> headers, byte[] body)
+    throws IOException, JSONException
+  {
+    mBytesReceived += body.length;
+    InputStream in = new ByteArrayInputStream(body);
+    if ("gzip".equals(headers.get("content-encoding")))
+    {
+      mGzipUploads++;
+      in = new GZIPInputStream(in);
+    }
+    JSONArray rows = new JSONArray(new String(readAll(in), "UTF-8"));
+    mRowsReceived += rows.length();
+
+    long latest = getLatest(table);
+    String since = headers.get(TableUploader.SINCE_HEADER.toLowerCase(Locale.US));
+    if (since != null && Long.parseLong(since) != latest)
+    {
+      mConflicts++;
+      return new Answer(409, Long.toString(latest));
+    }
+
+    Set<Long> stored = mStored.get(table);
+    if (stored == null)
+      mStored.put(table, stored = new HashSet<Long>());
+    int accepted = 0;
+    for (int i = 0; i < rows.length() && accepted < mAcceptLimit; i++)
+    {
+      JSONObject row = rows.getJSONObject(i);
+      long id = row.getJSONObject((String) row.keys().next()).getLong("id");
+      if (!stored.add(id))
+        mDuplicates++;
+      latest = Math.max(latest, id);
+      accepted++;
+    }
+    mLatest.put(table, latest);
+    return new Answer(200, Long.toString(latest));
+  }
+
+  private void answer(OutputStream out, int status, String body) throws IOException
+  {
+    byte[] bytes = body.getBytes("UTF-8");
+    boolean gzip;
+    synchronized (this)
+    {
+      gzip = mAdvertiseGzip;
+    }
+    String head = "HTTP/1.1 " + status + (status == 200 ? " OK" : " Error") + "\r\n"
+                  + "Content-Type: text/plain; charset=UTF-8\r\n"
+                  + "Content-Length: " + bytes.length + "\r\n"
+                  + (gzip ? "Accept-Encoding: gzip\r\n" : "")
+                  + "\r\n";
+    out.write(head.getBytes("US-ASCII"));
+    out.write(bytes);
+    out.flush();
+  }
+
+  /** Reads a line of the request head, or returns {@code null} at the end of the stream. */
+  private static String readLine(InputStream in) throws IOException
+  {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = in.read()) >= 0 && c != '\n')
+      if (c != '\r')
+        line.append((char) c);
+    return c < 0 && line.length() == 0 ? null : line.toString();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int n; (n = in.read(buffer)) > 0; )
+      out.write(buffer, 0, n);
+    return out.toByteArray();
+  }
+
+  /** Status and body of an answer. */
+  private static class Answer
+  {
+    final int mStatus;
+    final String mBody;
+
+    Answer(int status, String body)
+    {
+      mStatus = status;
+      mBody = body;
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package com.prosthetics.test;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.prosthetics.CursorJsonEntity;
+import com.prosthetics.LocationsDB;
+import com.prosthetics.LocationsDBHelper;
+import com.prosthetics.SyncState;
+import com.prosthetics.TableUploader;
+import com.prosthetics.UploadBatch;
+
+/**
+ * Pushes a locations db of its own to a {@link StandInServer} through
+ * {@link TableUploader}, and checks that each batch is acknowledged and
+ * remembered, so a drop halfway only resends the unacknowledged tail. The
+ * {@link SyncState} is kept in preferences of its own, so the high-water
+ * marks of the app are left alone.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ */
+public class TableUploaderTest extends AndroidTestCase
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "TableUploaderTest";
+
+  /** Prefix of the preferences used instead of those of the app. */
+  private static final String PREFS_PREFIX = "test.";
+  /** Rows in the locations db. */
+  private static final int ROWS = 2000;
+
+  private static final String TABLE = LocationsDBHelper.TABLE;
+
+  private File mLocationsFile;
+  private LocationsDB mLocationsDB;
+  private final Set<String> mPrefsNames = new HashSet<String>();
+  private SyncState mSyncState;
+  private StandInServer mServer;
+  private DefaultHttpClient mClient;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    mLocationsFile = new File(getContext().getCacheDir(), "uploader-locations.sqlite3");
+    mLocationsFile.delete();
+    mLocationsDB = new LocationsDB(getContext(), mLocationsFile.getPath());
+    mLocationsDB.addLocations(InsertBenchmark.createLocations(ROWS));
+
+    mSyncState = new SyncState(new ContextWrapper(getContext())
+    {
+      @Override
+      public SharedPreferences getSharedPreferences(String name, int mode)
+      {
+        mPrefsNames.add(PREFS_PREFIX + name);
+        return super.getSharedPreferences(PREFS_PREFIX + name, mode);
+      }
+    });
+    mServer = new StandInServer();
+    mServer.start();
+    mSyncState.setServer(mServer.getUrl());
+    mClient = new DefaultHttpClient();
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    mClient.getConnectionManager().shutdown();
+    mServer.close();
+    for (String name : mPrefsNames)
+      getContext().getSharedPreferences(name, Context.MODE_PRIVATE).edit().clear().commit();
+    mLocationsDB.close();
+    mLocationsFile.delete();
+    super.tearDown();
+  }
+
+  public void testUploadsInAcknowledgedBatches()
+  {
+    long start = System.nanoTime();
+    TableUploader uploader = new TableUploader(mSyncState, mClient);
+    assertTrue(uploader.upload(TABLE, new LocationSource()));
+    long elapsed = System.nanoTime() - start;
+
+    assertEquals(ROWS, mServer.getStoredCount(TABLE));
+    assertEquals(0, mServer.getDuplicateCount());
+    assertEquals(ROWS, uploader.getRowsAcked());
+    assertEquals(ROWS, mSyncState.getHighWaterMark(TABLE));
+    // The high-water mark was unknown, and is only asked for once
+    assertEquals(1, mServer.getLatestRequestCount());
+    assertTrue(mServer.getUploadCount() >= ROWS / TableUploader.CHUNK_SIZE);
+    Log.i(TAG, ROWS + " rows in " + mServer.getUploadCount() + " uploads, "
+               + mServer.getBytesReceived() + " bytes, " + (elapsed / 1000000) + " ms");
+
+    // Nothing left to send
+    mServer.resetCounters();
+    assertTrue(new TableUploader(mSyncState, mClient).upload(TABLE, new LocationSource()));
+    assertEquals(0, mServer.getUploadCount());
+    assertEquals(0, mServer.getLatestRequestCount());
+  }
+
+  public void testResendsOnlyTailAfterDrop()
+  {
+    mServer.setAnswersBeforeDrop(2);
+    TableUploader uploader = new TableUploader(mSyncState, mClient);
+    assertFalse(uploader.upload(TABLE, new LocationSource()));
+    assertNotNull(uploader.getError());
+    long acked = mSyncState.getHighWaterMark(TABLE);
+    assertEquals(mServer.getLatest(TABLE), acked);
+    assertTrue(acked > 0 && acked < ROWS);
+
+    mServer.setAnswersBeforeDrop(-1);
+    mServer.resetCounters();
+    uploader = new TableUploader(mSyncState, mClient);
+    assertTrue(uploader.upload(TABLE, new LocationSource()));
+
+    assertEquals(ROWS, mServer.getStoredCount(TABLE));
+    assertEquals(0, mServer.getDuplicateCount());
+    assertEquals(ROWS - acked, mServer.getRowsReceived());
+    assertEquals(0, mServer.getLatestRequestCount());
+    Log.i(TAG, "Drop after " + acked + " rows, " + mServer.getRowsReceived() + " rows resent");
+  }
+
+  public void testFollowsPartialAcknowledgements()
+  {
+    mServer.setAcceptLimit(100);
+    TableUploader uploader = new TableUploader(mSyncState, mClient);
+    assertTrue(uploader.upload(TABLE, new LocationSource()));
+
+    assertEquals(ROWS, mServer.getStoredCount(TABLE));
+    assertEquals(0, mServer.getDuplicateCount());
+    assertEquals(ROWS / 100, mServer.getUploadCount());
+  }
+
+  public void testRecoversFromStaleHighWaterMark()
+  {
+    mServer.setLatest(TABLE, 700);
+    mSyncState.setHighWaterMark(TABLE, 200);
+    TableUploader uploader = new TableUploader(mSyncState, mClient);
+    assertTrue(uploader.upload(TABLE, new LocationSource()));
+
+    assertEquals(1, mServer.getConflictCount());
+    assertEquals(ROWS - 700, mServer.getStoredCount(TABLE));
+    assertEquals(ROWS, mSyncState.getHighWaterMark(TABLE));
+  }
+
+  public void testCompressesOnceAdvertised()
+  {
+    mServer.setAdvertiseGzip(true);
+    mSyncState.setGzipSupported(false);
+    TableUploader uploader = new TableUploader(mSyncState, mClient);
+    assertTrue(uploader.upload(TABLE, new LocationSource()));
+
+    assertTrue(mSyncState.isGzipSupported());
+    assertEquals(ROWS, mServer.getStoredCount(TABLE));
+    assertEquals(mServer.getUploadCount(), mServer.getGzipUploadCount());
+    Log.i(TAG, ROWS + " rows gzip compressed in " + mServer.getBytesReceived() + " bytes");
+  }
+
+  /** The rows of the locations db of the test. */
+  private class LocationSource implements TableUploader.RowSource
+  {
+    public Cursor queryRows(long latestId, int limit)
+    {
+      return mLocationsDB.queryLatestLocations(latestId, limit);
+    }
+
+    public UploadBatch createEntity(Cursor rows, boolean columnar, long maxSize)
+    {
+      return new CursorJsonEntity(rows, "location", LocationsDB.EXPORT_TYPES, maxSize);
+    }
+  }
+}
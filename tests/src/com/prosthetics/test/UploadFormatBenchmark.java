@@ -0,0 +1,192 @@
+package com.prosthetics.test;
+
+import java.io.File;
+import java.util.List;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.prosthetics.AccelerometerWrapper;
+import com.prosthetics.ColumnarEntity;
+import com.prosthetics.CursorJsonEntity;
+import com.prosthetics.GzipEntity;
+import com.prosthetics.LocationWrapper;
+import com.prosthetics.LocationsDB;
+import com.prosthetics.PatientDB;
+import com.prosthetics.SampleWriter;
+import com.prosthetics.TableUploader;
+import com.prosthetics.UploadBatch;
+
+/**
+ * Measures the bytes on the wire and the time taken to encode the upload
+ * bodies of tables of 1k, 10k and 100k rows: locations as plain JSON and
+ * gzip compressed, and accelerometer samples as JSON and in the columnar
+ * layout, each also gzip compressed. Rows are read in the batches
+ * {@link TableUploader} sends, of at most {@link TableUploader#CHUNK_SIZE}
+ * rows and {@link TableUploader#MAX_BATCH_SIZE} characters or bytes, from
+ * dbs of their own in the cache directory. Results are logged under
+ * {@link #TAG}.
+ * @author aumar11 and jbanford
+ * @version 1.0
+ */
+public class UploadFormatBenchmark extends AndroidTestCase
+{
+  /** Tag for Log statements in this class. */
+  public static final String TAG = "UploadFormatBenchmark";
+
+  /** Table sizes measured. */
+  private static final int[] ROWS = { 1000, 10000, 100000 };
+
+  private File mLocationsFile;
+  private File mPatientFile;
+  private LocationsDB mLocationsDB;
+  private PatientDB mPatientDB;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    super.setUp();
+    mLocationsFile = new File(getContext().getCacheDir(), "format-benchmark-locations.sqlite3");
+    mPatientFile = new File(getContext().getCacheDir(), "format-benchmark-patient.sqlite3");
+    mLocationsFile.delete();
+    mPatientFile.delete();
+    mLocationsDB = new LocationsDB(getContext(), mLocationsFile.getPath());
+    mPatientDB = new PatientDB(getContext(), mPatientFile.getPath());
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    mLocationsDB.close();
+    mPatientDB.close();
+    mLocationsFile.delete();
+    mPatientFile.delete();
+    super.tearDown();
+  }
+
+  public void testLocationsGzip()
+  {
+    List<LocationWrapper> locations = InsertBenchmark.createLocations(ROWS[ROWS.length - 1]);
+    TableUploader.RowSource source = new TableUploader.RowSource()
+    {
+      public Cursor queryRows(long latestId, int limit)
+      {
+        return mLocationsDB.queryLatestLocations(latestId, limit);
+      }
+
+      public UploadBatch createEntity(Cursor rows, boolean columnar, long maxSize)
+      {
+        return new CursorJsonEntity(rows, "location", LocationsDB.EXPORT_TYPES, maxSize);
+      }
+    };
+
+    int stored = 0;
+    for (int rows : ROWS)
+    {
+      for (; stored < rows; stored += SampleWriter.BATCH_SIZE)
+        mLocationsDB.addLocations(locations.subList(stored, Math.min(stored + SampleWriter.BATCH_SIZE, rows)));
+      stored = rows;
+
+      Totals json = measure(source, false, rows);
+      json.report("locations json", rows);
+      assertTrue("gzip is not smaller", json.mGzipBytes < json.mBytes);
+    }
+  }
+
+  public void testAccelerometerFormats()
+  {
+    List<AccelerometerWrapper> samples = InsertBenchmark.createAccelerometerSamples(ROWS[ROWS.length - 1]);
+    TableUploader.RowSource source = new TableUploader.RowSource()
+    {
+      public Cursor queryRows(long latestId, int limit)
+      {
+        return mPatientDB.queryLatestAccelerometerSamples(latestId, limit);
+      }
+
+      public UploadBatch createEntity(Cursor rows, boolean columnar, long maxSize)
+      {
+        return columnar
+             ? new ColumnarEntity(rows, PatientDB.ACC_EXPORT_TYPES, maxSize)
+             : new CursorJsonEntity(rows, "accelerometer", PatientDB.ACC_EXPORT_TYPES, maxSize);
+      }
+    };
+
+    int stored = 0;
+    for (int rows : ROWS)
+    {
+      for (; stored < rows; stored += SampleWriter.BATCH_SIZE)
+        mPatientDB.addAccelerometerSamples(samples.subList(stored, Math.min(stored + SampleWriter.BATCH_SIZE, rows)));
+      stored = rows;
+
+      Totals json = measure(source, false, rows);
+      json.report("accelerometer json", rows);
+      Totals columnar = measure(source, true, rows);
+      columnar.report("accelerometer columnar", rows);
+      assertTrue("columnar is not smaller", columnar.mBytes < json.mBytes);
+      assertTrue("columnar gzip is not smaller", columnar.mGzipBytes < json.mGzipBytes);
+    }
+  }
+
+  /**
+   * Encodes every row of {@code source} in the batches
+   * {@link TableUploader} sends, and compresses each batch.
+   */
+  private static Totals measure(TableUploader.RowSource source, boolean columnar, int rows)
+  {
+    Totals totals = new Totals();
+    long latestId = 0;
+    while (true)
+    {
+      Cursor cursor = source.queryRows(latestId, TableUploader.CHUNK_SIZE);
+      try
+      {
+        if (cursor.getCount() == 0)
+          break;
+        long start = System.nanoTime();
+        UploadBatch batch = source.createEntity(cursor, columnar, TableUploader.MAX_BATCH_SIZE);
+        long encoded = System.nanoTime();
+        GzipEntity gzip = new GzipEntity(batch);
+        totals.add(batch, encoded - start, gzip.getContentLength(), System.nanoTime() - encoded);
+        latestId = batch.getLastId();
+      }
+      finally
+      {
+        cursor.close();
+      }
+    }
+    assertEquals(rows, totals.mRows);
+    return totals;
+  }
+
+  /** Bytes and encoding times summed over the batches of a table. */
+  private static class Totals
+  {
+    int mBatches;
+    long mRows;
+    long mBytes;
+    long mEncodeNanos;
+    long mGzipBytes;
+    long mGzipNanos;
+
+    void add(UploadBatch batch, long encodeNanos, long gzipBytes, long gzipNanos)
+    {
+      mBatches++;
+      mRows += batch.getRowsWritten();
+      mBytes += batch.getContentLength();
+      mEncodeNanos += encodeNanos;
+      mGzipBytes += gzipBytes;
+      mGzipNanos += gzipNanos;
+    }
+
+    void report(String name, int rows)
+    {
+      Log.i(TAG, name + ", " + rows + " rows in " + mBatches + " batches: "
+                 + mBytes + " bytes in " + (mEncodeNanos / 1000000) + " ms, gzip "
+                 + mGzipBytes + " bytes (" + Math.round(100.0 * mGzipBytes / Math.max(mBytes, 1))
+                 + "%) in a further " + (mGzipNanos / 1000000) + " ms, "
+                 + Math.round(mBytes / (double) mRows) + " / " + Math.round(mGzipBytes / (double) mRows)
+                 + " bytes per row");
+    }
+  }
+}